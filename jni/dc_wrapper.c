@@ -602,6 +602,32 @@ JNIEXPORT jlong Java_com_b44t_messenger_DcContext_getMsgCPtr(JNIEnv *env, jobjec
 }
 
 
+JNIEXPORT jlongArray Java_com_b44t_messenger_DcContext_getMsgTimestamps(JNIEnv *env, jobject obj, jintArray msg_ids)
+{
+	/* returns the timestamps of the given messages with a single call,
+	without creating a DcMsg object for each of them.
+	as the core has no bulk query, each message is still loaded by dc_get_msg(). */
+	int i, msg_ids_cnt = 0;
+	uint32_t* msg_ids_ptr = jintArray2uint32Pointer(env, msg_ids, &msg_ids_cnt);
+	jlongArray ret = (*env)->NewLongArray(env, msg_ids_cnt);
+	if (ret && msg_ids_cnt) {
+		jlong* temp = calloc(msg_ids_cnt, sizeof(jlong));
+		if (temp) {
+			dc_context_t* context = get_dc_context(env, obj);
+			for (i = 0; i < msg_ids_cnt; i++) {
+				dc_msg_t* msg = dc_get_msg(context, msg_ids_ptr[i]);
+				temp[i] = JTIMESTAMP(dc_msg_get_timestamp(msg));
+				dc_msg_unref(msg);
+			}
+			(*env)->SetLongArrayRegion(env, ret, 0, msg_ids_cnt, temp);
+			free(temp);
+		}
+	}
+	free(msg_ids_ptr);
+	return ret;
+}
+
+
 JNIEXPORT jlong Java_com_b44t_messenger_DcContext_createMsgCPtr(JNIEnv *env, jobject obj, jint viewtype)
 {
 	return (jlong)dc_msg_new(get_dc_context(env, obj), viewtype);
@@ -150,6 +150,7 @@ public class DcContext {
     public native void         deleteChat           (int chat_id);
     public @NonNull DcMsg      getMsg               (int msg_id) { return new DcMsg(getMsgCPtr(msg_id)); }
     public native String       getMsgInfo           (int id);
+    public native long[]       getMsgTimestamps     (int msg_ids[]);
     public native int          getFreshMsgCount     (int chat_id);
     public native void         deleteMsgs           (int msg_ids[]);
     public native void         forwardMsgs          (int msg_ids[], int chat_id);
@@ -21,6 +21,7 @@ public class DcMsg {
     public final static int DC_STATE_IN_NOTICED = 13;
     public final static int DC_STATE_IN_SEEN = 16;
     public final static int DC_STATE_OUT_PREPARING = 18;
+    public final static int DC_STATE_OUT_DRAFT = 19;
     public final static int DC_STATE_OUT_PENDING = 20;
     public final static int DC_STATE_OUT_ERROR = 24;
     public final static int DC_STATE_OUT_DELIVERED = 26;
@@ -55,6 +56,11 @@ public class DcMsg {
         return this.getId()==that.getId() && this.getId()!=0;
     }
 
+    @Override
+    public int hashCode() {
+        return this.getId();
+    }
+
     public native int     getId              ();
     public native String  getText            ();
     public native long    getTimestamp       ();
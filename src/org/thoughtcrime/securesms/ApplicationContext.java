@@ -25,10 +25,15 @@ import org.thoughtcrime.securesms.crypto.PRNGFixes;
 import org.thoughtcrime.securesms.geolocation.DcLocationManager;
 import org.thoughtcrime.securesms.jobmanager.JobManager;
 import org.thoughtcrime.securesms.notifications.MessageNotifierCompat;
+import org.thoughtcrime.securesms.notifications.NotificationLatency;
+import org.thoughtcrime.securesms.search.MessageSearchIndex;
 import org.thoughtcrime.securesms.util.AndroidSignalProtocolLogger;
 import org.thoughtcrime.securesms.util.DynamicLanguage;
+import org.thoughtcrime.securesms.util.MemoryPressureManager;
 import org.thoughtcrime.securesms.util.ScreenLockUtil;
 import org.thoughtcrime.securesms.util.SignalProtocolLoggerProvider;
+import org.thoughtcrime.securesms.util.Util;
+import org.thoughtcrime.securesms.video.recode.VideoRecodeJob;
 
 import java.util.concurrent.TimeUnit;
 //import com.squareup.leakcanary.LeakCanary;
@@ -60,8 +65,10 @@ public class ApplicationContext extends MultiDexApplication implements DefaultLi
 
     initializeRandomNumberFix();
     initializeLogging();
+    MemoryPressureManager.init(this);
     initializeJobManager();
     initializeIncomingMessageNotifier();
+    initializeMessageSearchIndex();
     ProcessLifecycleOwner.get().getLifecycle().addObserver(this);
     MessageNotifierCompat.init(this);
 
@@ -80,9 +87,16 @@ public class ApplicationContext extends MultiDexApplication implements DefaultLi
         @Override
         public void onReceive(Context context, Intent intent) {
             dcContext.setStockTranslations();
+            MessageNotifierCompat.rebuildNotifications();
         }
     }, filter);
 
+    // the notification state is not persisted, restore it from the fresh messages
+    MessageNotifierCompat.rebuildNotifications();
+
+    // jobs are not persisted either, restart the recoding of videos that were not sent yet
+    Util.runOnAnyBackgroundThread(() -> VideoRecodeJob.resumePendingJobs(this));
+
     // MAYBE TODO: i think the ApplicationContext is also created
     // when the app is stated by FetchWorker timeouts.
     // in this case, the normal threads shall not be started.
@@ -112,6 +126,7 @@ public class ApplicationContext extends MultiDexApplication implements DefaultLi
   public void onStop(@NonNull LifecycleOwner owner) {
     isAppVisible = false;
     ScreenLockUtil.setShouldLockApp(true);
+    MessageSearchIndex.getInstance(this).compact();
   }
 
   public JobManager getJobManager() {
@@ -137,6 +152,7 @@ public class ApplicationContext extends MultiDexApplication implements DefaultLi
     dcEventCenter.addObserver(DcContext.DC_EVENT_INCOMING_MSG, new DcEventCenter.DcEventDelegate() {
       @Override
       public void handleEvent(int eventId, Object data1, Object data2) {
+        NotificationLatency.mark(((Long) data2).intValue(), NotificationLatency.DISPATCHED);
         MessageNotifierCompat.updateNotification(((Long) data1).intValue(), ((Long) data2).intValue());
       }
 
@@ -147,6 +163,34 @@ public class ApplicationContext extends MultiDexApplication implements DefaultLi
     });
   }
 
+  private void initializeMessageSearchIndex() {
+    MessageSearchIndex searchIndex = MessageSearchIndex.getInstance(this);
+    DcEventCenter.DcEventDelegate indexer = new DcEventCenter.DcEventDelegate() {
+      @Override
+      public void handleEvent(int eventId, Object data1, Object data2) {
+        searchIndex.onMsgChanged(((Long) data2).intValue());
+      }
+
+      @Override
+      public boolean runOnMain() {
+        return false;
+      }
+    };
+    dcContext.eventCenter.addObserver(DcContext.DC_EVENT_INCOMING_MSG, indexer);
+    dcContext.eventCenter.addObserver(DcContext.DC_EVENT_MSGS_CHANGED, indexer);
+    dcContext.eventCenter.addObserver(DcContext.DC_EVENT_IMEX_PROGRESS, new DcEventCenter.DcEventDelegate() {
+      @Override
+      public void handleEvent(int eventId, Object data1, Object data2) {
+        searchIndex.onImexProgress(((Long) data1).intValue());
+      }
+
+      @Override
+      public boolean runOnMain() {
+        return false;
+      }
+    });
+  }
+
   private void initializeJobManager() {
     this.jobManager = JobManager.newBuilder(this)
                                 .withName("TextSecureJobs")
@@ -107,7 +107,9 @@ import org.thoughtcrime.securesms.util.Util;
 import org.thoughtcrime.securesms.util.ViewUtil;
 import org.thoughtcrime.securesms.util.concurrent.AssertedSuccessListener;
 import org.thoughtcrime.securesms.util.concurrent.ListenableFuture;
+import org.thoughtcrime.securesms.util.concurrent.OrderedPreparer;
 import org.thoughtcrime.securesms.util.concurrent.SettableFuture;
+import org.thoughtcrime.securesms.util.views.ProgressDialog;
 import org.thoughtcrime.securesms.util.views.Stub;
 import org.thoughtcrime.securesms.video.recode.VideoRecoder;
 
@@ -120,6 +122,7 @@ import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
+import java.util.Locale;
 import java.util.concurrent.ExecutionException;
 
 import static org.thoughtcrime.securesms.TransportOption.Type;
@@ -921,6 +924,7 @@ public class ConversationActivity extends PassphraseRequiredActionBarActivity
   }
 
   private String getRealPathFromAttachment(Attachment attachment) {
+    String path = null;
     try {
       // get file in the blobdir as `<blobdir>/<name>[-<uniqueNumber>].<ext>`
       String filename = attachment.getFileName();
@@ -936,7 +940,7 @@ public class ConversationActivity extends PassphraseRequiredActionBarActivity
           filename = filename.substring(0, i);
         }
       }
-      String path = dcContext.getBlobdirFile(filename, ext);
+      path = dcContext.getBlobdirFile(filename, ext);
 
       // copy content to this file
       if(path!=null) {
@@ -949,6 +953,10 @@ public class ConversationActivity extends PassphraseRequiredActionBarActivity
     }
     catch(Exception e) {
       e.printStackTrace();
+      if(path != null) {
+        // the file created by getBlobdirFile() is not used
+        new File(path).delete();
+      }
       return null;
     }
   }
@@ -1064,16 +1072,29 @@ public class ConversationActivity extends PassphraseRequiredActionBarActivity
     return future;
   }
 
-  private static class RelayingTask extends AsyncTask<Void, Void, Void> {
+  private static class RelayingTask extends AsyncTask<Void, Integer, Void> {
+
+    // shared attachments are copied in parallel, bounded by the cores
+    private static final int MAX_PARALLEL_PREPARATIONS = 4;
 
     WeakReference<Activity> activityRef;
     int chatId;
+    // the dialog references the activity, so it is held weakly as well
+    private WeakReference<ProgressDialog> progressDialogRef = new WeakReference<>(null);
 
     RelayingTask(Activity activity, int chatId) {
       activityRef = new WeakReference<>(activity);
       this.chatId = chatId;
     }
 
+    @Override
+    protected void onPreExecute() {
+      Activity activity = activityRef.get();
+      if (activity != null && !isForwarding(activity) && isSharing(activity)) {
+        progressDialogRef = new WeakReference<>(ProgressDialog.show(activity, "", activity.getString(R.string.one_moment), true));
+      }
+    }
+
     @Override
     protected Void doInBackground(Void... voids) {
       Activity activity = activityRef.get();
@@ -1085,31 +1106,72 @@ public class ConversationActivity extends PassphraseRequiredActionBarActivity
       if (isForwarding(activity)) {
         handleForwarding(activity);
       } else if (isSharing(activity)) {
-        handleSharing(activity);
+        // the activity is not referenced while the attachments are relayed
+        ArrayList<Uri> uris    = getSharedUris(activity);
+        Context        context = activity.getApplicationContext();
+        activity = null;
+        handleSharing(context, uris);
       }
       return null;
     }
 
+    @Override
+    protected void onProgressUpdate(Integer... progress) {
+      Activity       activity       = activityRef.get();
+      ProgressDialog progressDialog = progressDialogRef.get();
+      if (activity != null && progressDialog != null) {
+        progressDialog.setMessage(activity.getString(R.string.one_moment) + " " + progress[0] + "/" + progress[1]);
+      }
+    }
+
+    @Override
+    protected void onPostExecute(Void result) {
+      ProgressDialog progressDialog = progressDialogRef.get();
+      if (progressDialog != null) {
+        try {
+          progressDialog.dismiss();
+        } catch (IllegalArgumentException e) {
+          // activity already destroyed
+        }
+      }
+    }
+
 
     private void handleForwarding(Activity activity) {
       DcContext dcContext = DcHelper.getContext(activity);
       dcContext.forwardMsgs(getForwardedMessageIDs(activity), chatId);
     }
 
-    private void handleSharing(Activity activity) {
-      DcContext dcContext = DcHelper.getContext(activity);
-      ArrayList<Uri> uris = getSharedUris(activity);
+    private void handleSharing(Context context, ArrayList<Uri> uris) {
+      DcContext dcContext   = DcHelper.getContext(context);
+      int       threads     = getParallelPreparations(uris.size());
+      long      startMillis = System.currentTimeMillis();
+      int[]     sent        = new int[1];
+
+      // the files are copied to the blobdir in parallel, the messages are sent in the shared order;
+      // if relaying is cancelled, the copies of the messages not sent are deleted again
       try {
-        for(Uri uri : uris) {
-          DcMsg message = createMessage(activityRef.get(), uri);
+        OrderedPreparer.run(uris, threads, uri -> createMessage(context, uri), (index, uri, message) -> {
           dcContext.sendMsg(chatId, message);
-          cleanup(activity, uri);
-        }
-      } catch (NullPointerException npe) {
-        Log.w(TAG, "Activity destroyed before background task finished. " +
-                "Cancelling message relaying. " +
-                npe.getMessage());
+          cleanup(context, uri);
+          publishProgress(++sent[0], uris.size());
+        }, message -> {
+          if (message.getFile() != null) {
+            new File(message.getFile()).delete();
+          }
+        });
+      } catch (InterruptedException | ExecutionException e) {
+        Log.w(TAG, "Cancelling message relaying.", e);
       }
+
+      long elapsedMillis = System.currentTimeMillis() - startMillis;
+      Log.i(TAG, "relayed " + sent[0] + " of " + uris.size() + " attachments with " + threads + " threads in " + elapsedMillis + " ms"
+          + (elapsedMillis > 0 ? String.format(Locale.ROOT, " (%.2f/s)", sent[0] * 1000f / elapsedMillis) : ""));
+    }
+
+    private static int getParallelPreparations(int count) {
+      int byCores = Runtime.getRuntime().availableProcessors();
+      return Math.max(1, Math.min(count, Math.min(MAX_PARALLEL_PREPARATIONS, byCores)));
     }
 
     private void cleanup(Context context, final @Nullable Uri uri) {
@@ -1143,6 +1205,7 @@ public class ConversationActivity extends PassphraseRequiredActionBarActivity
 
   private static String getRealPathFromUri(Context context, Uri uri) throws NullPointerException {
     ApplicationDcContext dcContext = DcHelper.getContext(context);
+    String path = null;
     try {
       String filename = uri.getPathSegments().get(2); // Get real file name from Uri
       String ext = "";
@@ -1151,7 +1214,7 @@ public class ConversationActivity extends PassphraseRequiredActionBarActivity
         ext = filename.substring(i);
         filename = filename.substring(0, i);
       }
-      String path = dcContext.getBlobdirFile(filename, ext);
+      path = dcContext.getBlobdirFile(filename, ext);
 
       // copy content to this file
       if(path != null) {
@@ -1164,6 +1227,10 @@ public class ConversationActivity extends PassphraseRequiredActionBarActivity
     }
     catch(Exception e) {
       e.printStackTrace();
+      if(path != null) {
+        // the file created by getBlobdirFile() is not used
+        new File(path).delete();
+      }
       return null;
     }
   }
@@ -36,6 +36,7 @@ import org.thoughtcrime.securesms.mms.GlideRequests;
 import org.thoughtcrime.securesms.recipients.Recipient;
 import org.thoughtcrime.securesms.util.DateUtils;
 import org.thoughtcrime.securesms.util.LRUCache;
+import org.thoughtcrime.securesms.util.MemoryPressureManager;
 import org.thoughtcrime.securesms.util.StickyHeaderDecoration;
 import org.thoughtcrime.securesms.util.Util;
 import org.thoughtcrime.securesms.util.ViewUtil;
@@ -59,13 +60,12 @@ import java.util.Set;
  */
 public class ConversationAdapter <V extends View & BindableConversationItem>
     extends RecyclerView.Adapter
-  implements StickyHeaderDecoration.StickyHeaderAdapter<HeaderViewHolder>
+  implements StickyHeaderDecoration.StickyHeaderAdapter<HeaderViewHolder>, MemoryPressureManager.TrimmableCache
 {
 
   private static final int MAX_CACHE_SIZE = 40;
   private static final String TAG = ConversationAdapter.class.getSimpleName();
-  private final Map<Integer,SoftReference<DcMsg>> recordCache =
-      Collections.synchronizedMap(new LRUCache<Integer,SoftReference<DcMsg>>(MAX_CACHE_SIZE));
+  private final Map<Integer,SoftReference<DcMsg>> recordCache;
 
   private static final int MESSAGE_TYPE_OUTGOING           = 0;
   private static final int MESSAGE_TYPE_INCOMING           = 1;
@@ -210,6 +210,8 @@ public class ConversationAdapter <V extends View & BindableConversationItem>
     this.inflater = LayoutInflater.from(context);
     this.calendar = Calendar.getInstance();
     this.dcContext     = DcHelper.getContext(context);
+    this.recordCache   = Collections.synchronizedMap(new LRUCache<Integer,SoftReference<DcMsg>>(MemoryPressureManager.scaleCacheSize(context, MAX_CACHE_SIZE)));
+    MemoryPressureManager.register(this, "conversationRecords", MemoryPressureManager.Priority.MEDIUM);
 
     setHasStableIds(true);
   }
@@ -351,6 +353,17 @@ public class ConversationAdapter <V extends View & BindableConversationItem>
     notifyDataSetChanged();
   }
 
+  @Override
+  public void trimMemory(int level) {
+    // the records are loaded again when they are bound
+    recordCache.clear();
+  }
+
+  @Override
+  public @NonNull String getFootprint() {
+    return recordCache.size() + " records";
+  }
+
   private int findLastSeenPosition(long lastSeen) {
     if (lastSeen <= 0)     return -1;
     if (!isActive())       return -1;
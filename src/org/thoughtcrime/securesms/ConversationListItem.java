@@ -115,7 +115,7 @@ public class ConversationListItem extends RelativeLayout
                    @NonNull Set<Long> selectedThreads,
                    boolean batchMode)
   {
-    bind(thread, msgId, dcSummary, glideRequests, locale, selectedThreads, batchMode, null);
+    bind(thread, msgId, dcSummary, glideRequests, locale, selectedThreads, batchMode, (Spanned) null);
   }
 
   public void bind(@NonNull ThreadRecord thread,
@@ -126,6 +126,22 @@ public class ConversationListItem extends RelativeLayout
                    @NonNull Set<Long> selectedThreads,
                    boolean batchMode,
                    @Nullable String highlightSubstring)
+  {
+    bind(thread, msgId, dcSummary, glideRequests, locale, selectedThreads, batchMode,
+         highlightSubstring != null ? getHighlightedSpan(locale, thread.getRecipient().getName(), highlightSubstring) : null);
+  }
+
+  /**
+   * @param highlightedName prebuilt name with the search query highlighted, null to show the name as usual
+   */
+  public void bind(@NonNull ThreadRecord thread,
+                   int msgId,
+                   @NonNull DcLot dcSummary,
+                   @NonNull GlideRequests glideRequests,
+                   @NonNull Locale locale,
+                   @NonNull Set<Long> selectedThreads,
+                   boolean batchMode,
+                   @Nullable Spanned highlightedName)
   {
     this.dcSummary        = dcSummary;
     this.selectedThreads  = selectedThreads;
@@ -135,8 +151,8 @@ public class ConversationListItem extends RelativeLayout
     this.glideRequests    = glideRequests;
     this.unreadCount      = thread.getUnreadCount();
 
-    if (highlightSubstring != null) {
-      this.fromView.setText(getHighlightedSpan(locale, recipient.getName(), highlightSubstring));
+    if (highlightedName != null) {
+      this.fromView.setText(highlightedName);
     } else {
       this.fromView.setText(recipient, unreadCount == 0);
     }
@@ -181,14 +197,26 @@ public class ConversationListItem extends RelativeLayout
                    @NonNull  GlideRequests glideRequests,
                    @NonNull  Locale        locale,
                    @Nullable String        highlightSubstring)
+  {
+    bind(contact,
+         DcHelper.getContext(getContext()).getRecipient(contact),
+         getHighlightedSpan(locale, contact.getDisplayName(), highlightSubstring),
+         getHighlightedSpan(locale, contact.getAddr(), highlightSubstring),
+         glideRequests);
+  }
+
+  public void bind(@NonNull DcContact     contact,
+                   @NonNull Recipient     recipient,
+                   @NonNull Spanned       highlightedName,
+                   @NonNull Spanned       highlightedAddr,
+                   @NonNull GlideRequests glideRequests)
   {
     this.selectedThreads = Collections.emptySet();
-    Recipient recipient  = DcHelper.getContext(getContext()).getRecipient(contact);
     this.glideRequests   = glideRequests;
 
-    fromView.setText(getHighlightedSpan(locale, contact.getDisplayName(), highlightSubstring));
+    fromView.setText(highlightedName);
     fromView.setCompoundDrawablesWithIntrinsicBounds(0, 0, 0, 0);
-    subjectView.setText(getHighlightedSpan(locale, contact.getAddr(), highlightSubstring));
+    subjectView.setText(highlightedAddr);
     dateView.setText("");
     dateView.setCompoundDrawablesWithIntrinsicBounds(0, 0, 0, 0);
     archivedView.setVisibility(GONE);
@@ -207,13 +235,25 @@ public class ConversationListItem extends RelativeLayout
   {
     ApplicationDcContext dcContext = DcHelper.getContext(getContext());
     DcContact sender = dcContext.getContact(messageResult.getFromId());
+    bind(messageResult,
+         dcContext.getRecipient(sender),
+         getHighlightedSpan(locale, messageResult.getSummarytext(512), highlightSubstring),
+         glideRequests,
+         locale);
+  }
+
+  public void bind(@NonNull DcMsg         messageResult,
+                   @NonNull Recipient     recipient,
+                   @NonNull Spanned       highlightedSubject,
+                   @NonNull GlideRequests glideRequests,
+                   @NonNull Locale        locale)
+  {
     this.selectedThreads = Collections.emptySet();
-    Recipient recipient  = DcHelper.getContext(getContext()).getRecipient(sender);
     this.glideRequests   = glideRequests;
 
     fromView.setText(recipient, true);
     fromView.setCompoundDrawablesWithIntrinsicBounds(0, 0, 0, 0);
-    subjectView.setText(getHighlightedSpan(locale, messageResult.getSummarytext(512), highlightSubstring));
+    subjectView.setText(highlightedSubject);
 
     long timestamp = messageResult.getTimestamp();
     if(timestamp>0) {
@@ -314,9 +354,9 @@ public class ConversationListItem extends RelativeLayout
     }
   }
 
-  private Spanned getHighlightedSpan(@NonNull  Locale locale,
-                                     @Nullable String value,
-                                     @Nullable String highlight)
+  public static Spanned getHighlightedSpan(@NonNull  Locale locale,
+                                           @Nullable String value,
+                                           @Nullable String highlight)
   {
     if (TextUtils.isEmpty(value)) {
       return new SpannableString("");
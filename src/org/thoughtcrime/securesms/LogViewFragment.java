@@ -36,10 +36,13 @@ import android.view.View;
 import android.view.ViewGroup;
 import android.widget.EditText;
 
-import com.b44t.messenger.DcContext;
-
+import org.thoughtcrime.securesms.connect.ApplicationDcContext;
 import org.thoughtcrime.securesms.connect.DcHelper;
 import org.thoughtcrime.securesms.database.NoExternalStorageException;
+import org.thoughtcrime.securesms.mms.ThumbnailDiskCache;
+import org.thoughtcrime.securesms.notifications.NotificationLatency;
+import org.thoughtcrime.securesms.search.MessageSearchIndex;
+import org.thoughtcrime.securesms.util.MemoryPressureManager;
 import org.thoughtcrime.securesms.util.Scrubber;
 import org.thoughtcrime.securesms.util.StorageUtil;
 
@@ -245,7 +248,14 @@ public class LogViewFragment extends Fragment {
     }
 
     builder.append("\n");
-    DcContext dcContext = DcHelper.getContext(context);
+    ApplicationDcContext dcContext = DcHelper.getContext(context);
+    builder.append(dcContext.getThreadsInfo());
+    builder.append(dcContext.getConfigCacheInfo());
+    builder.append(MessageSearchIndex.getInstance(context).getInfo());
+    builder.append(NotificationLatency.getInfo(context));
+    builder.append(ThumbnailDiskCache.getInstance(context).getInfo());
+    builder.append(MemoryPressureManager.getInfo());
+    builder.append("\n");
     builder.append(dcContext.getInfo());
 
     return builder.toString();
@@ -3,44 +3,75 @@ package org.thoughtcrime.securesms.attachments;
 
 import android.content.Context;
 import android.net.Uri;
+import android.os.SystemClock;
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 import android.util.Log;
 
 import org.thoughtcrime.securesms.mms.PartAuthority;
 import org.thoughtcrime.securesms.util.Util;
 import org.thoughtcrime.securesms.util.Hex;
 
-import java.io.BufferedOutputStream;
-import java.io.BufferedReader;
-import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.OutputStream;
 import java.net.InetAddress;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.net.SocketException;
-import java.net.SocketTimeoutException;
+import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.security.MessageDigest;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Locale;
-import java.util.Map;
-import java.util.Properties;
-import java.util.StringTokenizer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
+ * Streams an attachment to a local media player over HTTP.
+ *
+ * All connections are served by one selector thread, so a seek, which the player sends as a new
+ * Range request, does not wait for the previous request to finish. Files are sent with
+ * FileChannel.transferTo(), other streams are copied through a small direct buffer.
+ *
+ * Only non-blocking calls are made on the selector thread: opening the attachment, skipping to
+ * the start of a range and reading streams that are not backed by a file may block and are done
+ * by worker threads, which hand their results back to the selector thread.
+ *
  * @author      Stefan "frostymarvelous" Froelich <stefan d0t froelich At whisppa DoT com>
  */
 public class AttachmentServer implements Runnable {
 
   private static final String TAG = AttachmentServer.class.getSimpleName();
 
-  private final Context      context;
-  private final Attachment   attachment;
-  private final ServerSocket socket;
-  private final int          port;
-  private final String       auth;
+  private static final int MAX_HEADER_SIZE     = 8192;
+  private static final int TRANSFER_CHUNK_SIZE = 512 * 1024;
+  private static final int COPY_BUFFER_SIZE    = 64 * 1024;
+  private static final int MAX_METRICS         = 32;
+
+  private final Context             context;
+  private final Attachment          attachment;
+  private final ServerSocketChannel serverChannel;
+  private final Selector            selector;
+  private final int                 port;
+  private final String              auth;
+
+  private final ArrayDeque<RequestMetrics> metrics = new ArrayDeque<>(); // guarded by itself
+
+  private final ExecutorService ioExecutor    = Executors.newCachedThreadPool();
+  private final Queue<Runnable> selectorTasks = new ConcurrentLinkedQueue<>();
 
   private volatile boolean isRunning;
 
@@ -48,13 +79,15 @@ public class AttachmentServer implements Runnable {
       throws IOException
   {
     try {
-      this.context      = context;
-      this.attachment   = attachment;
-      this.socket       = new ServerSocket(0, 0, InetAddress.getByAddress(new byte[]{127, 0, 0, 1}));
-      this.port         = socket.getLocalPort();
-      this.auth         = Hex.toStringCondensed(Util.getSecretBytes(16));
-
-      this.socket.setSoTimeout(5000);
+      this.context       = context;
+      this.attachment    = attachment;
+      this.serverChannel = ServerSocketChannel.open();
+      this.serverChannel.socket().bind(new InetSocketAddress(InetAddress.getByAddress(new byte[]{127, 0, 0, 1}), 0));
+      this.serverChannel.configureBlocking(false);
+      this.selector      = Selector.open();
+      this.serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+      this.port          = serverChannel.socket().getLocalPort();
+      this.auth          = Hex.toStringCondensed(Util.getSecretBytes(16));
     } catch (UnknownHostException e) {
       throw new AssertionError(e);
     }
@@ -66,308 +99,571 @@ public class AttachmentServer implements Runnable {
 
   public void start() {
     isRunning = true;
-    new Thread(this).start();
+    new Thread(this, TAG).start();
   }
 
   public void stop() {
     isRunning = false;
+    selector.wakeup();
+  }
+
+  /**
+   * @return the metrics of the last requests, the oldest first.
+   */
+  public @NonNull List<RequestMetrics> getRecentRequests() {
+    synchronized (metrics) {
+      return new ArrayList<>(metrics);
+    }
   }
 
   @Override
   public void run() {
-    while (isRunning) {
-      Socket client = null;
+    try {
+      while (isRunning) {
+        selector.select(5000);
 
-      try {
-        client = socket.accept();
+        Runnable task;
+        while ((task = selectorTasks.poll()) != null) {
+          task.run();
+        }
 
-        if (client != null) {
-          StreamToMediaPlayerTask task = new StreamToMediaPlayerTask(client, "/" + auth);
+        Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+        while (keys.hasNext()) {
+          SelectionKey key = keys.next();
+          keys.remove();
 
-          if (task.processRequest()) {
-            task.execute();
+          if (!key.isValid()) {
+            continue;
           }
-        }
 
-      } catch (SocketTimeoutException e) {
-        Log.w(TAG, e);
-      } catch (IOException e) {
-        Log.e(TAG, "Error connecting to client", e);
-      } finally {
-        try {if (client != null) client.close();} catch (IOException e) {}
+          try {
+            if (key.isAcceptable()) {
+              accept();
+            } else {
+              Connection connection = (Connection) key.attachment();
+              if (key.isReadable())                   connection.onReadable();
+              if (key.isValid() && key.isWritable())  connection.onWritable();
+            }
+          } catch (IOException e) {
+            Log.w(TAG, "Connection closed: " + e.getMessage());
+            if (key.attachment() instanceof Connection) {
+              ((Connection) key.attachment()).close();
+            }
+          }
+        }
       }
+    } catch (IOException | ClosedSelectorException e) {
+      Log.e(TAG, "Error in server loop", e);
+    } finally {
+      shutdown();
     }
 
     Log.d(TAG, "Proxy interrupted. Shutting down.");
   }
 
+  private void accept() throws IOException {
+    SocketChannel client = serverChannel.accept();
+    if (client != null) {
+      client.configureBlocking(false);
+      client.socket().setTcpNoDelay(true);
+      SelectionKey key = client.register(selector, SelectionKey.OP_READ);
+      key.attach(new Connection(key, client));
+    }
+  }
 
-  private class StreamToMediaPlayerTask {
+  /**
+   * Runs the given task on the selector thread, used by the worker threads to hand back their results.
+   */
+  private void runOnSelector(@NonNull Runnable task) {
+    selectorTasks.add(task);
+    selector.wakeup();
+  }
 
-    private final @NonNull Socket client;
-    private final @NonNull String auth;
+  private void shutdown() {
+    ioExecutor.shutdownNow();
 
-    private long       cbSkip;
-    private Properties parameters;
-    private Properties request;
-    private Properties requestHeaders;
-//    private String filePath;
+    try {
+      for (SelectionKey key : selector.keys()) {
+        if (key.attachment() instanceof Connection) {
+          ((Connection) key.attachment()).close();
+        }
+      }
+      selector.close();
+    } catch (IOException | ClosedSelectorException e) {
+      Log.w(TAG, e);
+    }
 
-    public StreamToMediaPlayerTask(@NonNull Socket client, @NonNull String auth) {
+    try {
+      serverChannel.close();
+    } catch (IOException e) {
+      Log.w(TAG, e);
+    }
+  }
+
+  private void addMetrics(@NonNull RequestMetrics requestMetrics) {
+    Log.i(TAG, requestMetrics.toString());
+    synchronized (metrics) {
+      metrics.addLast(requestMetrics);
+      if (metrics.size() > MAX_METRICS) {
+        metrics.removeFirst();
+      }
+    }
+  }
+
+  /**
+   * The state of one client connection; a connection may serve several requests one after another.
+   */
+  private class Connection {
+
+    private final @NonNull SelectionKey  key;
+    private final @NonNull SocketChannel client;
+    private final @NonNull ByteBuffer    requestBuffer = ByteBuffer.allocate(MAX_HEADER_SIZE);
+
+    private @Nullable Response response;
+
+    Connection(@NonNull SelectionKey key, @NonNull SocketChannel client) {
+      this.key    = key;
       this.client = client;
-      this.auth   = auth;
-    }
-
-    public boolean processRequest() throws IOException {
-            InputStream is         = client.getInputStream();
-      final int         bufferSize = 8192;
-            byte[]      buffer     = new byte[bufferSize];
-            int         splitByte  = 0;
-            int         readLength = 0;
-
-      {
-        int read = is.read(buffer, 0, bufferSize);
-        while (read > 0) {
-          readLength += read;
-          splitByte = findHeaderEnd(buffer, readLength);
-          if (splitByte > 0)
-            break;
-          read = is.read(buffer, readLength, bufferSize - readLength);
+    }
+
+    void onReadable() throws IOException {
+      if (client.read(requestBuffer) == -1) {
+        close();
+        return;
+      }
+      processRequest();
+    }
+
+    private void processRequest() throws IOException {
+      int headerEnd = findHeaderEnd(requestBuffer.array(), requestBuffer.position());
+
+      if (headerEnd == 0) {
+        if (!requestBuffer.hasRemaining()) {
+          Log.w(TAG, "Request header too large");
+          startResponse(Response.error(431, "Request Header Fields Too Large"));
         }
+        return;
       }
 
-      // Create a BufferedReader for parsing the header.
-      ByteArrayInputStream hbis = new ByteArrayInputStream(buffer, 0, readLength);
-      BufferedReader       hin  = new BufferedReader(new InputStreamReader(hbis));
+      String header = new String(requestBuffer.array(), 0, headerEnd, "ISO-8859-1");
+
+      // keep what the client has sent after the header, eg. a pipelined request
+      requestBuffer.flip();
+      requestBuffer.position(headerEnd);
+      requestBuffer.compact();
+
+      // opening the attachment may block, do not listen to the client until the response is ready
+      key.interestOps(0);
+      ioExecutor.execute(() -> {
+        try {
+          Response response = handleRequest(header);
+          runOnSelector(() -> {
+            if (key.isValid()) startResponse(response);
+            else               response.close();
+          });
+        } catch (IOException e) {
+          Log.w(TAG, "Cannot open attachment: " + e.getMessage());
+          runOnSelector(this::close);
+        }
+      });
+    }
 
-      request        = new Properties();
-      parameters     = new Properties();
-      requestHeaders = new Properties();
+    private void startResponse(@NonNull Response response) {
+      this.response = response;
+      key.interestOps(SelectionKey.OP_WRITE);
+    }
 
-      try {
-        decodeHeader(hin, request, parameters, requestHeaders);
-      } catch (InterruptedException e1) {
-        Log.e(TAG, "Exception: " + e1.getMessage());
-        e1.printStackTrace();
+    void onWritable() throws IOException {
+      Response response = this.response;
+      if (response == null) {
+        return;
       }
 
-      for (Map.Entry<Object, Object> e : requestHeaders.entrySet()) {
-        Log.i(TAG, "Header: " + e.getKey() + " : " + e.getValue());
+      if (!response.write(client)) {
+        if (response.needsFill()) {
+          fill(response);
+        }
+        return;
       }
 
-      String range = requestHeaders.getProperty("range");
+      finishResponse();
 
-      if (range != null) {
-        Log.i(TAG, "range is: " + range);
-        range = range.substring(6);
-        int charPos = range.indexOf('-');
-        if (charPos > 0) {
-          range = range.substring(0, charPos);
+      if (response.keepAlive && isRunning) {
+        key.interestOps(SelectionKey.OP_READ);
+        if (requestBuffer.position() > 0) {
+          processRequest();
         }
-        cbSkip = Long.parseLong(range);
-        Log.i(TAG, "range found!! " + cbSkip);
+      } else {
+        close();
       }
+    }
 
-      if (!"GET".equals(request.get("method"))) {
-        Log.e(TAG, "Only GET is supported: " + request.get("method"));
-        return false;
-      }
+    /**
+     * Reads the next chunk of a stream on a worker thread, the socket is written again when it is read.
+     */
+    private void fill(@NonNull Response response) {
+      key.interestOps(0);
+      ioExecutor.execute(() -> {
+        try {
+          response.fill();
+          runOnSelector(() -> {
+            if (key.isValid() && this.response == response) key.interestOps(SelectionKey.OP_WRITE);
+          });
+        } catch (IOException e) {
+          Log.w(TAG, "Cannot read attachment: " + e.getMessage());
+          runOnSelector(() -> {
+            if (this.response == response) close();
+          });
+        }
+      });
+    }
 
-      String receivedAuth = request.getProperty("uri");
+    private void finishResponse() {
+      if (response != null) {
+        response.close();
+        if (response.metrics != null) {
+          addMetrics(response.metrics.finish());
+        }
+        response = null;
+      }
+    }
 
-      if (receivedAuth == null || !MessageDigest.isEqual(receivedAuth.getBytes(), auth.getBytes())) {
-        Log.w(TAG, "Bad auth token!");
-        return false;
+    void close() {
+      finishResponse();
+      key.cancel();
+      try {
+        client.close();
+      } catch (IOException e) {
+        Log.w(TAG, e);
       }
+    }
+  }
 
-//      filePath = request.getProperty("uri");
+  private @NonNull Response handleRequest(@NonNull String header) throws IOException {
+    String[] lines       = header.split("\r\n");
+    String[] requestLine = lines[0].split(" ");
 
-      return true;
+    if (requestLine.length < 2) {
+      Log.w(TAG, "BAD REQUEST: " + lines[0]);
+      return Response.error(400, "Bad Request");
+    }
+
+    String  method    = requestLine[0];
+    String  uri       = requestLine[1];
+    String  range     = null;
+    boolean keepAlive = requestLine.length < 3 || !"HTTP/1.0".equals(requestLine[2]);
+
+    // header names are case insensitive and vary by client
+    for (int i = 1; i < lines.length; i++) {
+      int separator = lines[i].indexOf(':');
+      if (separator <= 0) continue;
+
+      String name  = lines[i].substring(0, separator).trim().toLowerCase(Locale.ROOT);
+      String value = lines[i].substring(separator + 1).trim();
+
+      if      (name.equals("range"))      range     = value;
+      else if (name.equals("connection")) keepAlive = value.equalsIgnoreCase("keep-alive") || (keepAlive && !value.equalsIgnoreCase("close"));
     }
 
-    protected void execute() throws IOException {
-      InputStream inputStream = PartAuthority.getAttachmentStream(context, attachment.getDataUri());
-      long        fileSize    = attachment.getSize();
-
-      String headers = "";
-      if (cbSkip > 0) {// It is a seek or skip request if there's a Range
-        // header
-        headers += "HTTP/1.1 206 Partial Content\r\n";
-        headers += "Content-Type: " + attachment.getContentType() + "\r\n";
-        headers += "Accept-Ranges: bytes\r\n";
-        headers += "Content-Length: " + (fileSize - cbSkip) + "\r\n";
-        headers += "Content-Range: bytes " + cbSkip + "-" + (fileSize - 1) + "/" + fileSize + "\r\n";
-        headers += "Connection: Keep-Alive\r\n";
-        headers += "\r\n";
+    if (!"GET".equals(method) && !"HEAD".equals(method)) {
+      Log.e(TAG, "Only GET and HEAD are supported: " + method);
+      return Response.error(405, "Method Not Allowed");
+    }
+
+    int query = uri.indexOf('?');
+    if (query >= 0) {
+      uri = uri.substring(0, query);
+    }
+
+    if (!MessageDigest.isEqual(uri.getBytes(), ("/" + auth).getBytes())) {
+      Log.w(TAG, "Bad auth token!");
+      return Response.error(403, "Forbidden");
+    }
+
+    return Response.forAttachment(context, attachment, range, "HEAD".equals(method), keepAlive);
+  }
+
+  /**
+   * Find byte index separating header from body. It must be the last byte of
+   * the first two sequential new lines.
+   **/
+  private static int findHeaderEnd(final byte[] buf, int rlen) {
+    int splitbyte = 0;
+    while (splitbyte + 3 < rlen) {
+      if (buf[splitbyte] == '\r' && buf[splitbyte + 1] == '\n'
+          && buf[splitbyte + 2] == '\r' && buf[splitbyte + 3] == '\n')
+        return splitbyte + 4;
+      splitbyte++;
+    }
+    return 0;
+  }
+
+  /**
+   * The header and the body of a response, written to the client as far as its socket accepts it.
+   */
+  private static class Response {
+
+    private final @NonNull  ByteBuffer          header;
+    private final @Nullable FileChannel         fileChannel;
+    private final @Nullable ReadableByteChannel streamChannel;
+    private final @Nullable ByteBuffer          copyBuffer;
+    private final @Nullable RequestMetrics      metrics;
+    private final           boolean             keepAlive;
+
+    private long position;
+    private long remaining;
+
+    private Response(@NonNull String header,
+                     @Nullable FileChannel fileChannel,
+                     @Nullable ReadableByteChannel streamChannel,
+                     long position, long length,
+                     @Nullable RequestMetrics metrics,
+                     boolean keepAlive)
+    {
+      this.header        = ByteBuffer.wrap(header.getBytes());
+      this.fileChannel   = fileChannel;
+      this.streamChannel = streamChannel;
+      this.copyBuffer    = streamChannel != null ? ByteBuffer.allocateDirect(COPY_BUFFER_SIZE) : null;
+      this.position      = position;
+      this.remaining     = length;
+      this.metrics       = metrics;
+      this.keepAlive     = keepAlive;
+
+      if (copyBuffer != null) {
+        copyBuffer.limit(0);
+      }
+    }
+
+    static @NonNull Response error(int status, @NonNull String reason) {
+      String header = "HTTP/1.1 " + status + " " + reason + "\r\n" +
+                      "Content-Length: 0\r\n" +
+                      "Connection: close\r\n" +
+                      "\r\n";
+      return new Response(header, null, null, 0, 0, null, false);
+    }
+
+    static @NonNull Response forAttachment(@NonNull Context context, @NonNull Attachment attachment,
+                                           @Nullable String range, boolean headOnly, boolean keepAlive)
+        throws IOException
+    {
+      InputStream         inputStream   = PartAuthority.getAttachmentStream(context, attachment.getDataUri());
+      FileChannel         fileChannel   = null;
+      ReadableByteChannel streamChannel = null;
+      long                fileSize;
+
+      if (inputStream instanceof FileInputStream) {
+        fileChannel = ((FileInputStream) inputStream).getChannel();
+        fileSize    = fileChannel.size();
       } else {
-        headers += "HTTP/1.1 200 OK\r\n";
-        headers += "Content-Type: " + attachment.getContentType() + "\r\n";
-        headers += "Accept-Ranges: bytes\r\n";
-        headers += "Content-Length: " + fileSize + "\r\n";
-        headers += "Connection: Keep-Alive\r\n";
-        headers += "\r\n";
+        fileSize    = attachment.getSize();
       }
 
-      Log.i(TAG, "headers: " + headers);
+      long[] byteRange = parseRange(range, fileSize);
+      String header;
+
+      if (byteRange == null) {
+        inputStream.close();
+        header = "HTTP/1.1 416 Range Not Satisfiable\r\n" +
+                 "Content-Range: bytes */" + fileSize + "\r\n" +
+                 "Content-Length: 0\r\n" +
+                 "Connection: close\r\n" +
+                 "\r\n";
+        return new Response(header, null, null, 0, 0, null, false);
+      }
 
-      OutputStream output = null;
-      byte[] buff = new byte[64 * 1024];
-      try {
-        output = new BufferedOutputStream(client.getOutputStream(), 32 * 1024);
-        output.write(headers.getBytes());
+      long start  = byteRange[0];
+      long length = byteRange[1] - byteRange[0] + 1;
 
-        inputStream.skip(cbSkip);
-//        dataSource.skipFully(data, cbSkip);//try to skip as much as possible
+      if (range != null && (start > 0 || length < fileSize)) {
+        header = "HTTP/1.1 206 Partial Content\r\n" +
+                 "Content-Range: bytes " + start + "-" + byteRange[1] + "/" + fileSize + "\r\n";
+      } else {
+        header = "HTTP/1.1 200 OK\r\n";
+      }
+      header += "Content-Type: " + attachment.getContentType() + "\r\n" +
+                "Accept-Ranges: bytes\r\n" +
+                "Content-Length: " + length + "\r\n" +
+                "Connection: " + (keepAlive ? "Keep-Alive" : "close") + "\r\n" +
+                "\r\n";
+
+      if (headOnly) {
+        inputStream.close();
+        return new Response(header, null, null, 0, 0, null, keepAlive);
+      }
 
-        // Loop as long as there's stuff to send and client has not closed
-        int cbRead;
-        while (!client.isClosed() && (cbRead = inputStream.read(buff, 0, buff.length)) != -1) {
-          output.write(buff, 0, cbRead);
-        }
+      if (fileChannel == null) {
+        skipFully(inputStream, start);
+        streamChannel = Channels.newChannel(inputStream);
       }
-      catch (SocketException socketException) {
-        Log.e(TAG, "SocketException() thrown, proxy client has probably closed. This can exit harmlessly");
+
+      RequestMetrics metrics = new RequestMetrics(start, length, fileChannel != null);
+      return new Response(header, fileChannel, streamChannel, start, length, metrics, keepAlive);
+    }
+
+    /**
+     * @return the first and the last byte of the range, the whole file if there is no usable range
+     *         or null if the range cannot be satisfied.
+     */
+    private static @Nullable long[] parseRange(@Nullable String range, long fileSize) {
+      long[] all = new long[]{0, fileSize - 1};
+
+      // multiple ranges are not supported, the whole file is sent then, as allowed by RFC 7233
+      if (range == null || !range.startsWith("bytes=") || range.indexOf(',') != -1) {
+        return all;
       }
-      catch (Exception e) {
-        Log.e(TAG, "Exception thrown from streaming task:");
-        Log.e(TAG, e.getClass().getName() + " : " + e.getLocalizedMessage());
+
+      String spec     = range.substring(6).trim();
+      int    dash     = spec.indexOf('-');
+      if (dash < 0) {
+        return all;
       }
 
-      // Cleanup
       try {
-        if (output != null) {
-          output.close();
+        String first = spec.substring(0, dash).trim();
+        String last  = spec.substring(dash + 1).trim();
+        long   start;
+        long   end;
+
+        if (first.isEmpty()) {
+          // suffix range, the last n bytes
+          long suffix = Long.parseLong(last);
+          if (suffix <= 0 || fileSize == 0) return null;
+          start = Math.max(0, fileSize - suffix);
+          end   = fileSize - 1;
+        } else {
+          start = Long.parseLong(first);
+          end   = last.isEmpty() ? fileSize - 1 : Math.min(Long.parseLong(last), fileSize - 1);
+          if (start >= fileSize || end < start) return null;
         }
-        client.close();
+
+        return new long[]{start, end};
+      } catch (NumberFormatException e) {
+        Log.w(TAG, "Ignoring bad range: " + range);
+        return all;
       }
-      catch (IOException e) {
-        Log.e(TAG, "IOException while cleaning up streaming task:");
-        Log.e(TAG, e.getClass().getName() + " : " + e.getLocalizedMessage());
-        e.printStackTrace();
+    }
+
+    private static void skipFully(@NonNull InputStream inputStream, long bytes) throws IOException {
+      while (bytes > 0) {
+        long skipped = inputStream.skip(bytes);
+        if (skipped <= 0) {
+          if (inputStream.read() == -1) throw new EOFException("Cannot skip to " + bytes);
+          skipped = 1;
+        }
+        bytes -= skipped;
       }
     }
 
     /**
-     * Find byte index separating header from body. It must be the last byte of
-     * the first two sequential new lines.
-     **/
-    private int findHeaderEnd(final byte[] buf, int rlen) {
-      int splitbyte = 0;
-      while (splitbyte + 3 < rlen) {
-        if (buf[splitbyte] == '\r' && buf[splitbyte + 1] == '\n'
-            && buf[splitbyte + 2] == '\r' && buf[splitbyte + 3] == '\n')
-          return splitbyte + 4;
-        splitbyte++;
+     * @return true if the response is written completely, false if the socket is full.
+     */
+    boolean write(@NonNull SocketChannel client) throws IOException {
+      if (header.hasRemaining()) {
+        client.write(header);
+        if (header.hasRemaining()) return false;
       }
-      return 0;
-    }
 
+      while (remaining > 0) {
+        long written;
 
-    /**
-     * Decodes the sent headers and loads the data into java Properties' key -
-     * value pairs
-     **/
-    private void decodeHeader(BufferedReader in, Properties pre,
-                              Properties parms, Properties header) throws InterruptedException {
-      try {
-        // Read the request line
-        String inLine = in.readLine();
-        if (inLine == null)
-          return;
-        StringTokenizer st = new StringTokenizer(inLine);
-        if (!st.hasMoreTokens())
-          Log.e(TAG,
-                "BAD REQUEST: Syntax error. Usage: GET /example/file.html");
-
-        String method = st.nextToken();
-        pre.put("method", method);
-
-        if (!st.hasMoreTokens())
-          Log.e(TAG,
-                "BAD REQUEST: Missing URI. Usage: GET /example/file.html");
-
-        String uri = st.nextToken();
-
-        // Decode parameters from the URI
-        int qmi = uri.indexOf('?');
-        if (qmi >= 0) {
-          decodeParms(uri.substring(qmi + 1), parms);
-          uri = decodePercent(uri.substring(0, qmi));
-        } else
-          uri = decodePercent(uri);
-
-        // If there's another token, it's protocol version,
-        // followed by HTTP headers. Ignore version but parse headers.
-        // NOTE: this now forces header names lowercase since they are
-        // case insensitive and vary by client.
-        if (st.hasMoreTokens()) {
-          String line = in.readLine();
-          while (line != null && line.trim().length() > 0) {
-            int p = line.indexOf(':');
-            if (p >= 0)
-              header.put(line.substring(0, p).trim().toLowerCase(),
-                         line.substring(p + 1).trim());
-            line = in.readLine();
+        if (fileChannel != null) {
+          written = fileChannel.transferTo(position, Math.min(remaining, TRANSFER_CHUNK_SIZE), client);
+        } else {
+          //noinspection ConstantConditions
+          if (!copyBuffer.hasRemaining()) {
+            return false; // see needsFill()
           }
+          written = client.write(copyBuffer);
+        }
+
+        if (written == 0) {
+          return false;
         }
 
-        pre.put("uri", uri);
-      } catch (IOException ioe) {
-        Log.e(TAG,
-              "SERVER INTERNAL ERROR: IOException: " + ioe.getMessage());
+        position  += written;
+        remaining -= written;
+        if (metrics != null) metrics.bytesSent += written;
       }
+
+      return true;
     }
 
     /**
-     * Decodes parameters in percent-encoded URI-format ( e.g.
-     * "name=Jack%20Daniels&pass=Single%20Malt" ) and adds them to given
-     * Properties. NOTE: this doesn't support multiple identical keys due to the
-     * simplicity of Properties -- if you need multiples, you might want to
-     * replace the Properties with a Hashtable of Vectors or such.
+     * @return true if write() cannot continue until fill() has read the next chunk of the stream.
      */
-    private void decodeParms(String parms, Properties p)
-        throws InterruptedException {
-      if (parms == null)
-        return;
-
-      StringTokenizer st = new StringTokenizer(parms, "&");
-      while (st.hasMoreTokens()) {
-        String e = st.nextToken();
-        int sep = e.indexOf('=');
-        if (sep >= 0)
-          p.put(decodePercent(e.substring(0, sep)).trim(),
-                decodePercent(e.substring(sep + 1)));
-      }
+    boolean needsFill() {
+      //noinspection ConstantConditions
+      return streamChannel != null && !header.hasRemaining() && remaining > 0 && !copyBuffer.hasRemaining();
     }
 
     /**
-     * Decodes the percent encoding scheme. <br/>
-     * For example: "an+example%20string" -> "an example string"
+     * Reads the next chunk of the stream, blocks and must not be called on the selector thread.
      */
-    private String decodePercent(String str) throws InterruptedException {
+    void fill() throws IOException {
+      //noinspection ConstantConditions
+      copyBuffer.clear();
+      copyBuffer.limit((int) Math.min(copyBuffer.capacity(), remaining));
+      //noinspection ConstantConditions
+      if (streamChannel.read(copyBuffer) == -1) throw new EOFException("Attachment ended early");
+      copyBuffer.flip();
+    }
+
+    void close() {
       try {
-        StringBuffer sb = new StringBuffer();
-        for (int i = 0; i < str.length(); i++) {
-          char c = str.charAt(i);
-          switch (c) {
-            case '+':
-              sb.append(' ');
-              break;
-            case '%':
-              sb.append((char) Integer.parseInt(
-                  str.substring(i + 1, i + 3), 16));
-              i += 2;
-              break;
-            default:
-              sb.append(c);
-              break;
-          }
-        }
-        return sb.toString();
-      } catch (Exception e) {
-        Log.e(TAG, "BAD REQUEST: Bad percent-encoding.");
-        return null;
+        if (fileChannel != null)   fileChannel.close();
+        if (streamChannel != null) streamChannel.close();
+      } catch (IOException e) {
+        Log.w(TAG, e);
       }
     }
   }
-}
\ No newline at end of file
+
+  /**
+   * The throughput of one request, see getRecentRequests().
+   */
+  public static class RequestMetrics {
+
+    public final long    rangeStart;
+    public final long    rangeLength;
+    public final boolean zeroCopy;
+
+    private final long startTime = SystemClock.elapsedRealtime();
+
+    private long bytesSent;
+    private long durationMs;
+
+    RequestMetrics(long rangeStart, long rangeLength, boolean zeroCopy) {
+      this.rangeStart  = rangeStart;
+      this.rangeLength = rangeLength;
+      this.zeroCopy    = zeroCopy;
+    }
+
+    @NonNull RequestMetrics finish() {
+      durationMs = SystemClock.elapsedRealtime() - startTime;
+      return this;
+    }
+
+    public long getBytesSent() {
+      return bytesSent;
+    }
+
+    public long getDurationMs() {
+      return durationMs;
+    }
+
+    public boolean isComplete() {
+      return bytesSent == rangeLength;
+    }
+
+    public long getBytesPerSecond() {
+      return bytesSent * 1000 / Math.max(1, durationMs);
+    }
+
+    @Override
+    public @NonNull String toString() {
+      return String.format(Locale.ROOT, "range %d+%d: %d bytes in %d ms, %d KB/s%s%s",
+                           rangeStart, rangeLength, bytesSent, durationMs, getBytesPerSecond() / 1024,
+                           zeroCopy ? ", zero-copy" : "", isComplete() ? "" : ", aborted");
+    }
+  }
+}
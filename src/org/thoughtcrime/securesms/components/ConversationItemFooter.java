@@ -4,25 +4,30 @@ import android.content.Context;
 import android.content.res.TypedArray;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
+import androidx.core.view.ViewCompat;
 import android.util.AttributeSet;
 import android.view.View;
 import android.widget.ImageView;
 import android.widget.LinearLayout;
 import android.widget.TextView;
 
+import com.b44t.messenger.DcEventCenter;
 import com.b44t.messenger.DcMsg;
 
 import org.thoughtcrime.securesms.R;
+import org.thoughtcrime.securesms.connect.DcHelper;
 import org.thoughtcrime.securesms.util.DateUtils;
+import org.thoughtcrime.securesms.video.recode.VideoRecodeJob;
 
 import java.util.Locale;
 
-public class ConversationItemFooter extends LinearLayout {
+public class ConversationItemFooter extends LinearLayout implements DcEventCenter.DcEventDelegate {
 
   private TextView            dateView;
   private ImageView           secureIndicatorView;
   private ImageView           locationIndicatorView;
   private DeliveryStatusView  deliveryStatusView;
+  private int                 preparingMsgId;
 
   public ConversationItemFooter(Context context) {
     super(context);
@@ -54,12 +59,22 @@ public class ConversationItemFooter extends LinearLayout {
     }
   }
 
+  @Override
+  protected void onAttachedToWindow() {
+    super.onAttachedToWindow();
+    if (preparingMsgId != 0) {
+      DcHelper.getContext(getContext()).eventCenter.addObserver(VideoRecodeJob.EVENT_PROGRESS, this);
+    }
+  }
+
   @Override
   protected void onDetachedFromWindow() {
     super.onDetachedFromWindow();
+    DcHelper.getContext(getContext()).eventCenter.removeObservers(this);
   }
 
   public void setMessageRecord(@NonNull DcMsg messageRecord, @NonNull Locale locale) {
+    observeRecodeProgress(messageRecord.isPreparing() ? messageRecord.getId() : 0);
     presentDate(messageRecord, locale);
     secureIndicatorView.setVisibility(messageRecord.isSecure() ? View.VISIBLE : View.GONE);
     locationIndicatorView.setVisibility(messageRecord.hasLocation() ? View.VISIBLE : View.GONE);
@@ -73,8 +88,38 @@ public class ConversationItemFooter extends LinearLayout {
     deliveryStatusView.setTint(color);
   }
 
+  private void observeRecodeProgress(int msgId) {
+    if (msgId == preparingMsgId) {
+      return;
+    }
+    DcEventCenter eventCenter = DcHelper.getContext(getContext()).eventCenter;
+    if (preparingMsgId != 0) {
+      eventCenter.removeObservers(this);
+    }
+    if (msgId != 0 && ViewCompat.isAttachedToWindow(this)) {
+      eventCenter.addObserver(VideoRecodeJob.EVENT_PROGRESS, this);
+    }
+    preparingMsgId = msgId;
+  }
+
+  @Override
+  public void handleEvent(int eventId, Object data1, Object data2) {
+    if (eventId == VideoRecodeJob.EVENT_PROGRESS && (Integer) data1 == preparingMsgId) {
+      presentProgress((Integer) data2);
+    }
+  }
+
+  private void presentProgress(int percent) {
+    dateView.setText(percent + "%");
+  }
+
   private void presentDate(@NonNull DcMsg messageRecord, @NonNull Locale locale) {
     dateView.forceLayout();
+    int progress = preparingMsgId != 0 ? VideoRecodeJob.getProgress(preparingMsgId) : -1;
+    if (progress >= 0) {
+      presentProgress(progress);
+      return;
+    }
 //    if(messageRecord.hasDeviatingTimestamp()) {
       dateView.setText(DateUtils.getExtendedRelativeTimeSpanString(getContext(), locale, messageRecord.getTimestamp()));
 //    }
@@ -26,11 +26,13 @@ import org.thoughtcrime.securesms.mms.GlideRequest;
 import org.thoughtcrime.securesms.mms.GlideRequests;
 import org.thoughtcrime.securesms.mms.Slide;
 import org.thoughtcrime.securesms.mms.SlideClickListener;
+import org.thoughtcrime.securesms.mms.ThumbnailDiskCache;
 import org.thoughtcrime.securesms.util.MediaUtil;
 import org.thoughtcrime.securesms.util.Util;
 import org.thoughtcrime.securesms.util.concurrent.ListenableFuture;
 import org.thoughtcrime.securesms.util.concurrent.SettableFuture;
 
+import java.io.File;
 import java.util.Locale;
 
 import static com.bumptech.glide.load.resource.drawable.DrawableTransitionOptions.withCrossFade;
@@ -253,33 +255,7 @@ public class ThumbnailView extends FrameLayout {
 
     if (slide.getThumbnailUri() != null)
     {
-      if(slide.hasVideo())
-      {
-        Uri dataUri = slide.getUri();
-        Uri thumbnailUri = slide.getThumbnailUri();
-        ImageView img = findViewById(R.id.thumbnail_image);
-        Context context = getContext();
-        new AsyncTask<Void, Void, Boolean>() {
-          @Override
-          protected Boolean doInBackground(Void... params) {
-            return MediaUtil.createVideoThumbnailIfNeeded(context, dataUri, thumbnailUri, null);
-          }
-          @Override
-          protected void onPostExecute(Boolean success) {
-            GlideRequest request = applySizing(glideRequests.load(new DecryptableUri(thumbnailUri))
-                .diskCacheStrategy(DiskCacheStrategy.NONE)
-                .transition(withCrossFade()), new CenterCrop());
-            request.into(new GlideDrawableListeningTarget(img, result));
-          }
-        }.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
-      }
-      else
-      {
-        GlideRequest request = applySizing(glideRequests.load(new DecryptableUri(slide.getThumbnailUri()))
-            .diskCacheStrategy(DiskCacheStrategy.NONE)
-            .transition(withCrossFade()), new CenterCrop());
-        request.into(new GlideDrawableListeningTarget(image, result));
-      }
+      loadThumbnail(glideRequests, slide, result);
     }
     else
     {
@@ -290,6 +266,48 @@ public class ThumbnailView extends FrameLayout {
     return result;
   }
 
+  private void loadThumbnail(@NonNull GlideRequests glideRequests, @NonNull Slide slide, @NonNull SettableFuture<Boolean> result) {
+    Context context      = getContext();
+    Uri     dataUri      = slide.getUri();
+    Uri     thumbnailUri = slide.getThumbnailUri();
+    boolean hasVideo     = slide.hasVideo();
+    int[]   size         = getTargetSize();
+
+    // gifs are shown animated, there is no thumbnail to cache
+    File blob = MediaUtil.isGif(slide.getContentType()) || size[WIDTH] == 0 || size[HEIGHT] == 0
+              ? null : ThumbnailDiskCache.getBlobFile(thumbnailUri);
+
+    if (!hasVideo && blob == null) {
+      GlideRequest request = applySizing(glideRequests.load(new DecryptableUri(thumbnailUri))
+          .diskCacheStrategy(DiskCacheStrategy.NONE)
+          .transition(withCrossFade()), new CenterCrop());
+      request.into(new GlideDrawableListeningTarget(image, result));
+      return;
+    }
+
+    new AsyncTask<Void, Void, Object>() {
+      @Override
+      protected Object doInBackground(Void... params) {
+        if (hasVideo) {
+          MediaUtil.createVideoThumbnailIfNeeded(context, dataUri, thumbnailUri, null);
+        }
+        File thumbnail = blob != null ? ThumbnailDiskCache.getInstance(context).getOrCreate(blob, thumbnailUri, size[WIDTH], size[HEIGHT]) : null;
+        return thumbnail != null ? thumbnail : new DecryptableUri(thumbnailUri);
+      }
+      @Override
+      protected void onPostExecute(Object model) {
+        if (!slide.equals(ThumbnailView.this.slide)) {
+          result.set(false);
+          return;
+        }
+        GlideRequest request = applySizing(glideRequests.load(model)
+            .diskCacheStrategy(DiskCacheStrategy.NONE)
+            .transition(withCrossFade()), new CenterCrop());
+        request.into(new GlideDrawableListeningTarget(image, result));
+      }
+    }.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+  }
+
   public ListenableFuture<Boolean> setImageResource(@NonNull GlideRequests glideRequests, @NonNull Uri uri) {
     SettableFuture<Boolean> future = new SettableFuture<>();
 
@@ -312,13 +330,18 @@ public class ThumbnailView extends FrameLayout {
     slide = null;
   }
 
-  private GlideRequest applySizing(@NonNull GlideRequest request, @NonNull BitmapTransformation fitting) {
+  private int[] getTargetSize() {
     int[] size = new int[2];
     fillTargetDimensions(size, dimens, bounds);
     if (size[WIDTH] == 0 && size[HEIGHT] == 0) {
       size[WIDTH]  = getDefaultWidth();
       size[HEIGHT] = getDefaultHeight();
     }
+    return size;
+  }
+
+  private GlideRequest applySizing(@NonNull GlideRequest request, @NonNull BitmapTransformation fitting) {
+    int[] size = getTargetSize();
     return request.override(size[WIDTH], size[HEIGHT])
                   .transforms(fitting, new RoundedCorners(radius));
   }
@@ -11,6 +11,7 @@ import com.bumptech.glide.load.engine.DiskCacheStrategy;
 import org.thoughtcrime.securesms.components.emoji.EmojiPageModel;
 import org.thoughtcrime.securesms.mms.GlideApp;
 import org.thoughtcrime.securesms.util.ListenableFutureTask;
+import org.thoughtcrime.securesms.util.MemoryPressureManager;
 import org.thoughtcrime.securesms.util.Util;
 
 import java.io.IOException;
@@ -18,7 +19,7 @@ import java.lang.ref.SoftReference;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 
-public class EmojiPageBitmap {
+public class EmojiPageBitmap implements MemoryPressureManager.TrimmableCache {
 
   private static final String TAG = EmojiPageBitmap.class.getName();
 
@@ -26,13 +27,15 @@ public class EmojiPageBitmap {
   private final EmojiPageModel model;
   private final float          decodeScale;
 
-  private SoftReference<Bitmap>        bitmapReference;
+  private volatile SoftReference<Bitmap> bitmapReference;
   private ListenableFutureTask<Bitmap> task;
 
   public EmojiPageBitmap(@NonNull Context context, @NonNull EmojiPageModel model, float decodeScale) {
     this.context     = context.getApplicationContext();
     this.model       = model;
     this.decodeScale = decodeScale;
+
+    MemoryPressureManager.register(this, "emojiPage " + model.getSprite(), MemoryPressureManager.Priority.LOW);
   }
 
   public ListenableFutureTask<Bitmap> get() {
@@ -93,6 +96,18 @@ public class EmojiPageBitmap {
     }
   }
 
+  @Override
+  public void trimMemory(int level) {
+    // the page is decoded again from the assets when it is needed
+    bitmapReference = null;
+  }
+
+  @Override
+  public @NonNull String getFootprint() {
+    Bitmap bitmap = bitmapReference != null ? bitmapReference.get() : null;
+    return bitmap != null ? (bitmap.getByteCount() / 1024) + "KB" : "not loaded";
+  }
+
   @Override
   public String toString() {
     return model.getSprite();
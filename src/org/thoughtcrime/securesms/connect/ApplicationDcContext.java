@@ -29,12 +29,18 @@ import org.thoughtcrime.securesms.ApplicationContext;
 import org.thoughtcrime.securesms.BuildConfig;
 import org.thoughtcrime.securesms.R;
 import org.thoughtcrime.securesms.database.model.ThreadRecord;
+import org.thoughtcrime.securesms.mms.ThumbnailDiskCache;
+import org.thoughtcrime.securesms.notifications.NotificationLatency;
 import org.thoughtcrime.securesms.recipients.Recipient;
+import org.thoughtcrime.securesms.search.MessageSearchIndex;
 import org.thoughtcrime.securesms.util.Util;
+import org.thoughtcrime.securesms.video.recode.VideoRecodeJob;
 
 import java.io.File;
-import java.util.Date;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 
 public class ApplicationDcContext extends DcContext {
 
@@ -211,20 +217,77 @@ public class ApplicationDcContext extends DcContext {
     return mimeType;
   }
 
+  private final Object blobdirCritical = new Object();
+  private HashMap<String, Integer> blobdirCounters = null; // next suffix to try for "filename+ext"
+
+  /**
+   * Returns the path of a new, empty file in the blobdir, named after the given filename.
+   * The file is created atomically, so concurrent callers never get the same path;
+   * the suffixes in use are counted in memory, so usually only one file operation is needed.
+   * The caller owns the file: if it is not used, eg. because writing it fails, the caller has to delete it.
+   */
   public String getBlobdirFile(String filename, String ext) {
-    String outPath = null;
-    for (int i = 0; i < 1000; i++) {
-      String test = getBlobdir() + "/" + filename + (i == 0 ? "" : i < 100 ? "-" + i : "-" + (new Date().getTime() + i)) + ext;
-      if (!new File(test).exists()) {
-        outPath = test;
-        break;
+    String blobdir = getBlobdir();
+    String key = filename + ext;
+    synchronized (blobdirCritical) {
+      if (blobdirCounters == null) {
+        blobdirCounters = scanBlobdirCounters(blobdir);
+      }
+
+      Integer next = blobdirCounters.get(key);
+      int i = next == null ? 0 : next;
+      for (int tries = 0; tries < 1000; tries++, i++) {
+        String test = blobdir + "/" + filename + (i == 0 ? "" : "-" + i) + ext;
+        try {
+          if (new File(test).createNewFile()) {
+            blobdirCounters.put(key, i + 1);
+            return test;
+          }
+        } catch (IOException e) {
+          Log.w(TAG, "cannot create " + test, e);
+          break;
+        }
       }
     }
-    if(outPath==null) {
-      // should not happen
-      outPath = getBlobdir() + "/" + Math.random();
+
+    // should not happen
+    return blobdir + "/" + Math.random();
+  }
+
+  private static HashMap<String, Integer> scanBlobdirCounters(String blobdir) {
+    HashMap<String, Integer> counters = new HashMap<>();
+    String[] names = new File(blobdir).list();
+    if (names == null) {
+      return counters;
+    }
+
+    for (String name : names) {
+      String base = name;
+      String ext = "";
+      int point = name.indexOf('.');
+      if (point != -1) {
+        ext = name.substring(point);
+        base = name.substring(0, point);
+      }
+
+      int suffix = 0;
+      int dash = base.lastIndexOf('-');
+      if (dash != -1) {
+        try {
+          suffix = Integer.parseInt(base.substring(dash + 1));
+          base = base.substring(0, dash);
+        } catch (NumberFormatException e) {
+          // not one of our suffixes (or an old timestamp suffix), the name is used as a whole
+        }
+      }
+
+      String key = base + ext;
+      Integer next = counters.get(key);
+      if (next == null || next <= suffix) {
+        counters.put(key, suffix + 1);
+      }
     }
-    return outPath;
+    return counters;
   }
 
   public String getBlobdirFile(String path) {
@@ -239,6 +302,49 @@ public class ApplicationDcContext extends DcContext {
 
   }
 
+  @Override
+  public void deleteMsgs(int[] msg_ids) {
+    VideoRecodeJob.cancel(context, msg_ids);
+    List<String> blobPaths = getThumbnailBlobPaths(msg_ids);
+    super.deleteMsgs(msg_ids);
+    MessageSearchIndex.getInstance(context).onMsgsDeleted(msg_ids);
+    removeThumbnails(blobPaths);
+  }
+
+  @Override
+  public void deleteChat(int chat_id) {
+    // may be called from the ui thread, so the messages and media of the chat are looked up in the background;
+    // the search index finds the messages of the chat in its own data.
+    Util.runOnAnyBackgroundThread(() -> {
+      int[] msg_ids = getChatMsgs(chat_id, 0, 0);
+      VideoRecodeJob.cancel(context, msg_ids);
+      List<String> blobPaths = getThumbnailBlobPaths(getChatMedia(chat_id, DcMsg.DC_MSG_IMAGE, DcMsg.DC_MSG_VIDEO, 0));
+      super.deleteChat(chat_id);
+      MessageSearchIndex.getInstance(context).onChatDeleted(chat_id);
+      removeThumbnails(blobPaths);
+    });
+  }
+
+  // the blobs are deleted by the core, their cached thumbnails are removed here
+  private List<String> getThumbnailBlobPaths(int[] msg_ids) {
+    List<String> blobPaths = new ArrayList<>();
+    for (int msg_id : msg_ids) {
+      DcMsg msg = getMsg(msg_id);
+      if (msg.getType() == DcMsg.DC_MSG_IMAGE) {
+        blobPaths.add(msg.getFile());
+      } else if (msg.getType() == DcMsg.DC_MSG_VIDEO) {
+        blobPaths.add(msg.getFile() + "-preview.jpg");
+      }
+    }
+    return blobPaths;
+  }
+
+  private void removeThumbnails(List<String> blobPaths) {
+    if (!blobPaths.isEmpty()) {
+      Util.runOnAnyBackgroundThread(() -> ThumbnailDiskCache.getInstance(context).remove(blobPaths));
+    }
+  }
+
   /***********************************************************************************************
    * create objects compatible to the database model of Signal
    **********************************************************************************************/
@@ -295,23 +401,39 @@ public class ApplicationDcContext extends DcContext {
   private final Object threadsCritical = new Object();
   private final Object incLoopsCritical= new Object();
 
-  public Thread imapThread = null;
+  public final static int LOOP_INBOX = 0x01;
+  public final static int LOOP_MVBOX = 0x02;
+  public final static int LOOP_SMTP  = 0x04;
+
+  public volatile Thread imapThread = null;
   private PowerManager.WakeLock imapWakeLock = null;
   private int inboxLoops = 0;
+  private final LoopStats inboxStats = new LoopStats("inbox");
 
-  public Thread mvboxThread = null;
+  public volatile Thread mvboxThread = null;
+  private Thread stoppedMvboxThread = null;
   private PowerManager.WakeLock mvboxWakeLock = null;
   private int mvboxLoops = 0;
+  private final LoopStats mvboxStats = new LoopStats("mvbox");
 
-  public Thread sentboxThread = null;
+  public volatile Thread sentboxThread = null;
+  private Thread stoppedSentboxThread = null;
   private PowerManager.WakeLock sentboxWakeLock = null;
+  private final LoopStats sentboxStats = new LoopStats("sentbox");
 
-  public Thread smtpThread = null;
+  public volatile Thread smtpThread = null;
   private PowerManager.WakeLock smtpWakeLock = null;
   private int smtpLoops = 0;
+  private final LoopStats smtpStats = new LoopStats("smtp");
 
   public final static int INTERRUPT_IDLE = 0x01; // interrupt idle if the thread is already running
 
+  /**
+   * Starts the loops needed for the current configuration and stops the others.
+   * The imap and smtp loops are always needed as they also execute the jobs;
+   * the mvbox and sentbox loops only run if the corresponding folder is watched.
+   * A loop stops after its current iteration when it is no longer the current thread of its kind.
+   */
   public void startThreads(int flags) {
     synchronized (threadsCritical) {
 
@@ -320,14 +442,20 @@ public class ApplicationDcContext extends DcContext {
         imapThread = new Thread(() -> {
           Log.i(TAG, "###################### IMAP-Thread started. ######################");
           while (true) {
+            long start = System.currentTimeMillis();
             imapWakeLock.acquire();
             performImapJobs();
+            long jobsDone = System.currentTimeMillis();
             performImapFetch();
+            long fetchDone = System.currentTimeMillis();
             imapWakeLock.release();
+            noteFetchDone(start, fetchDone);
             synchronized (incLoopsCritical) {
               inboxLoops++;
+              incLoopsCritical.notifyAll();
             }
             performImapIdle();
+            inboxStats.addIteration(jobsDone - start, fetchDone - jobsDone, System.currentTimeMillis() - fetchDone, fetchDone - start);
           }
         }, "imapThread");
         imapThread.setPriority(Thread.NORM_PRIORITY);
@@ -339,20 +467,39 @@ public class ApplicationDcContext extends DcContext {
       }
 
 
-      if (mvboxThread == null || !mvboxThread.isAlive()) {
+      if (getConfigInt(DcHelper.CONFIG_MVBOX_WATCH) == 0) {
+        if (mvboxThread != null) {
+          Log.i(TAG, "mvbox not watched, stopping MVBOX-Thread");
+          stoppedMvboxThread = mvboxThread;
+          mvboxThread = null;
+          interruptMvboxIdle();
+        }
+      } else if (mvboxThread == null || !mvboxThread.isAlive()) {
 
+        final Thread previousThread = stoppedMvboxThread;
+        stoppedMvboxThread = null;
         mvboxThread = new Thread(() -> {
+          joinStoppedThread(previousThread, this::interruptMvboxIdle);
           Log.i(TAG, "###################### MVBOX-Thread started. ######################");
-          while (true) {
+          while (mvboxThread == Thread.currentThread()) {
+            long start = System.currentTimeMillis();
             mvboxWakeLock.acquire();
             performMvboxJobs();
+            long jobsDone = System.currentTimeMillis();
             performMvboxFetch();
+            long fetchDone = System.currentTimeMillis();
             mvboxWakeLock.release();
             synchronized (incLoopsCritical) {
               mvboxLoops++;
+              incLoopsCritical.notifyAll();
+            }
+            if (mvboxThread != Thread.currentThread()) {
+              break;
             }
             performMvboxIdle();
+            mvboxStats.addIteration(jobsDone - start, fetchDone - jobsDone, System.currentTimeMillis() - fetchDone, fetchDone - start);
           }
+          Log.i(TAG, "###################### MVBOX-Thread stopped. ######################");
         }, "mvboxThread");
         mvboxThread.setPriority(Thread.NORM_PRIORITY);
         mvboxThread.start();
@@ -363,17 +510,35 @@ public class ApplicationDcContext extends DcContext {
       }
 
 
-      if (sentboxThread == null || !sentboxThread.isAlive()) {
+      if (getConfigInt(DcHelper.CONFIG_SENTBOX_WATCH) == 0) {
+        if (sentboxThread != null) {
+          Log.i(TAG, "sentbox not watched, stopping SENTBOX-Thread");
+          stoppedSentboxThread = sentboxThread;
+          sentboxThread = null;
+          interruptSentboxIdle();
+        }
+      } else if (sentboxThread == null || !sentboxThread.isAlive()) {
 
+        final Thread previousThread = stoppedSentboxThread;
+        stoppedSentboxThread = null;
         sentboxThread = new Thread(() -> {
+          joinStoppedThread(previousThread, this::interruptSentboxIdle);
           Log.i(TAG, "###################### SENTBOX-Thread started. ######################");
-          while (true) {
+          while (sentboxThread == Thread.currentThread()) {
+            long start = System.currentTimeMillis();
             sentboxWakeLock.acquire();
             performSentboxJobs();
+            long jobsDone = System.currentTimeMillis();
             performSentboxFetch();
+            long fetchDone = System.currentTimeMillis();
             sentboxWakeLock.release();
+            if (sentboxThread != Thread.currentThread()) {
+              break;
+            }
             performSentboxIdle();
+            sentboxStats.addIteration(jobsDone - start, fetchDone - jobsDone, System.currentTimeMillis() - fetchDone, fetchDone - start);
           }
+          Log.i(TAG, "###################### SENTBOX-Thread stopped. ######################");
         }, "sentboxThread");
         sentboxThread.setPriority(Thread.NORM_PRIORITY-1);
         sentboxThread.start();
@@ -387,13 +552,17 @@ public class ApplicationDcContext extends DcContext {
         smtpThread = new Thread(() -> {
           Log.i(TAG, "###################### SMTP-Thread started. ######################");
           while (true) {
+            long start = System.currentTimeMillis();
             smtpWakeLock.acquire();
             performSmtpJobs();
+            long jobsDone = System.currentTimeMillis();
             smtpWakeLock.release();
             synchronized (incLoopsCritical) {
               smtpLoops++;
+              incLoopsCritical.notifyAll();
             }
             performSmtpIdle();
+            smtpStats.addIteration(jobsDone - start, 0, System.currentTimeMillis() - jobsDone, jobsDone - start);
           }
         }, "smtpThread");
         smtpThread.setPriority(Thread.MAX_PRIORITY);
@@ -402,14 +571,170 @@ public class ApplicationDcContext extends DcContext {
     }
   }
 
-  public void waitForThreadsExecutedOnce() {
-    while(true) {
-      synchronized (incLoopsCritical) {
-        if(inboxLoops>0 && mvboxLoops>0 && smtpLoops>0) {
-          break;
+  private volatile long networkChangeMillis = 0;
+  private volatile long networkToFetchMillis = -1;
+
+  /**
+   * Called when the network becomes available;
+   * the time until the next inbox fetch is done is logged and shown in the log view.
+   */
+  public void noteNetworkChange() {
+    networkChangeMillis = System.currentTimeMillis();
+  }
+
+  private void noteFetchDone(long fetchStart, long fetchDone) {
+    long changed = networkChangeMillis;
+    if (changed != 0 && fetchStart >= changed) {
+      networkChangeMillis = 0;
+      networkToFetchMillis = fetchDone - changed;
+      Log.i(TAG, "first inbox fetch done " + networkToFetchMillis + " ms after network change");
+    }
+  }
+
+  private static void joinStoppedThread(Thread thread, Runnable interruptIdle) {
+    // a stopped loop may still finish its last iteration, wait for it to avoid two loops on the same folder.
+    // if the stop-interrupt came before the loop entered idle, it has to be repeated.
+    if (thread != null) {
+      try {
+        while (thread.isAlive()) {
+          interruptIdle.run();
+          thread.join(1000);
         }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
       }
-      Util.sleep(500);
+    }
+  }
+
+  public String getThreadsInfo() {
+    return inboxStats + "\n"
+        + mvboxStats + (mvboxThread == null ? " (stopped)" : "") + "\n"
+        + sentboxStats + (sentboxThread == null ? " (stopped)" : "") + "\n"
+        + smtpStats + "\n"
+        + "networkToFetch=" + (networkToFetchMillis >= 0 ? networkToFetchMillis + "ms" : "n/a") + "\n";
+  }
+
+  /**
+   * @return the number of completed iterations of the inbox, mvbox and smtp loops,
+   *         to be passed to waitForThreadsExecutedOnce().
+   */
+  public int[] getLoopCounts() {
+    synchronized (incLoopsCritical) {
+      return new int[]{inboxLoops, mvboxLoops, smtpLoops};
+    }
+  }
+
+  /**
+   * Blocks until each of the given loops (LOOP_INBOX, LOOP_MVBOX, LOOP_SMTP)
+   * has completed its jobs and fetch at least once since getLoopCounts() returned loopCountsBefore,
+   * or until the timeout is reached.
+   * The loop threads signal completion, so there is no polling involved.
+   *
+   * @return true if all given loops were executed, false on timeout
+   */
+  public boolean waitForThreadsExecutedOnce(int loops, int[] loopCountsBefore, long timeoutMillis) {
+    long deadline = System.currentTimeMillis() + timeoutMillis;
+    synchronized (incLoopsCritical) {
+      while (!loopsExecutedOnce(loops, loopCountsBefore)) {
+        long remaining = deadline - System.currentTimeMillis();
+        if (remaining <= 0) {
+          return false;
+        }
+        try {
+          incLoopsCritical.wait(remaining);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          return false;
+        }
+      }
+    }
+    return true;
+  }
+
+  private boolean loopsExecutedOnce(int loops, int[] loopCountsBefore) {
+    // must be called with incLoopsCritical held
+    return ((loops & LOOP_INBOX) == 0 || inboxLoops > loopCountsBefore[0])
+        && ((loops & LOOP_MVBOX) == 0 || mvboxLoops > loopCountsBefore[1])
+        && ((loops & LOOP_SMTP)  == 0 || smtpLoops > loopCountsBefore[2]);
+  }
+
+
+  /***********************************************************************************************
+   * Config Cache
+   **********************************************************************************************/
+
+  // getConfig() goes through JNI and the database; as the ui reads the same values again and again,
+  // they are cached here. "sys.*" keys are computed live by the core and always bypass the cache.
+  private final Object configCacheCritical = new Object();
+  private final HashMap<String, String> configCache = new HashMap<>();
+  private int configCacheGeneration = 0; // incremented on each change, avoids caching values read before the change
+  private int configCacheHits = 0;
+  private int configCacheMisses = 0;
+
+  @Override
+  public String getConfig(String key) {
+    if (key.startsWith("sys.")) {
+      return super.getConfig(key);
+    }
+
+    int generation;
+    synchronized (configCacheCritical) {
+      if (configCache.containsKey(key)) {
+        configCacheHits++;
+        return configCache.get(key);
+      }
+      configCacheMisses++;
+      generation = configCacheGeneration;
+    }
+
+    String value = super.getConfig(key);
+    synchronized (configCacheCritical) {
+      if (generation == configCacheGeneration) {
+        configCache.put(key, value);
+      }
+    }
+    return value;
+  }
+
+  @Override
+  public void setConfig(String key, String value) {
+    super.setConfig(key, value);
+    synchronized (configCacheCritical) {
+      // the core may normalize the value, so just drop it and read it again on the next access
+      configCache.remove(key);
+      configCacheGeneration++;
+    }
+
+    if (key.equals(DcHelper.CONFIG_MVBOX_WATCH) || key.equals(DcHelper.CONFIG_SENTBOX_WATCH)) {
+      startThreads(0);
+    }
+  }
+
+  @Override
+  public void configure() {
+    invalidateConfigCache();
+    super.configure();
+  }
+
+  @Override
+  public void imex(int what, String dir) {
+    invalidateConfigCache();
+    if (what == DC_IMEX_IMPORT_BACKUP) {
+      MessageSearchIndex.getInstance(context).onImportStarted();
+    }
+    super.imex(what, dir);
+  }
+
+  public void invalidateConfigCache() {
+    synchronized (configCacheCritical) {
+      configCache.clear();
+      configCacheGeneration++;
+    }
+  }
+
+  public String getConfigCacheInfo() {
+    synchronized (configCacheCritical) {
+      return "configCache: entries=" + configCache.size() + " hits=" + configCacheHits + " misses=" + configCacheMisses + "\n";
     }
   }
 
@@ -522,6 +847,12 @@ public class ApplicationDcContext extends DcContext {
         break;
 
       default: {
+        if (event == DC_EVENT_CONFIGURE_PROGRESS || event == DC_EVENT_IMEX_PROGRESS) {
+          // configure() and imex() run in the background and change the config on their way
+          invalidateConfigCache();
+        } else if (event == DC_EVENT_INCOMING_MSG) {
+          NotificationLatency.mark((int) data2, NotificationLatency.EMITTED);
+        }
         final Object data1obj = data1IsString(event) ? dataToString(data1) : data1;
         final Object data2obj = data2IsString(event) ? dataToString(data2) : data2;
         if (eventCenter != null) {
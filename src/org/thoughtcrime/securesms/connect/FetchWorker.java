@@ -8,6 +8,9 @@ import androidx.work.Worker;
 import androidx.work.WorkerParameters;
 
 public class FetchWorker extends Worker {
+    // the os gives a worker about 10 minutes; we do not want to keep the device awake that long
+    private static final long MAX_WAIT_MILLIS = 60 * 1000;
+
     private @NonNull Context context;
 
     public FetchWorker(
@@ -25,10 +28,23 @@ public class FetchWorker extends Worker {
         // - when threads are running: interrupt-all-idle
 
         Log.i("DeltaChat", "-------------------- FetchWorker.doWork() started --------------------");
+        long startMillis = System.currentTimeMillis();
         ApplicationDcContext dcContext = DcHelper.getContext(context);
+        // the loops may have run before in this process, so wait for iterations after the interrupt
+        int[] loopCountsBefore = dcContext.getLoopCounts();
         dcContext.startThreads(ApplicationDcContext.INTERRUPT_IDLE);
-        dcContext.waitForThreadsExecutedOnce();
-        Log.i("DeltaChat", "-------------------- FetchWorker.doWork() done --------------------");
+
+        // messages moved to the mvbox are only of interest if the mvbox is watched at all,
+        // otherwise we can return as soon as the inbox (and smtp) are done.
+        int loops = ApplicationDcContext.LOOP_INBOX | ApplicationDcContext.LOOP_SMTP;
+        if (dcContext.getConfigInt(DcHelper.CONFIG_MVBOX_WATCH) != 0) {
+            loops |= ApplicationDcContext.LOOP_MVBOX;
+        }
+        boolean executed = dcContext.waitForThreadsExecutedOnce(loops, loopCountsBefore, MAX_WAIT_MILLIS);
+
+        Log.i("DeltaChat", "-------------------- FetchWorker.doWork() done after "
+            + (System.currentTimeMillis() - startMillis) + " ms" + (executed ? "" : " (timeout)")
+            + " --------------------");
 
         return Result.success(); // when returning, the os may terminate the app again
     }
@@ -0,0 +1,38 @@
+package org.thoughtcrime.securesms.connect;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Counts iterations and time spent in the phases of one of the
+ * imap/mvbox/sentbox/smtp loops, shown in the log view.
+ */
+public class LoopStats {
+
+  private final String name;
+  private long iterations;
+  private long jobsMillis;
+  private long fetchMillis;
+  private long idleMillis;
+  private long wakeLockMillis;
+
+  LoopStats(String name) {
+    this.name = name;
+  }
+
+  synchronized void addIteration(long jobsMillis, long fetchMillis, long idleMillis, long wakeLockMillis) {
+    this.iterations++;
+    this.jobsMillis += jobsMillis;
+    this.fetchMillis += fetchMillis;
+    this.idleMillis += idleMillis;
+    this.wakeLockMillis += wakeLockMillis;
+  }
+
+  @Override
+  public synchronized @NonNull String toString() {
+    return name + ": iterations=" + iterations
+        + " jobs=" + jobsMillis + "ms"
+        + " fetch=" + fetchMillis + "ms"
+        + " idle=" + (idleMillis / 1000) + "s"
+        + " wakeLock=" + wakeLockMillis + "ms";
+  }
+}
@@ -7,8 +7,26 @@ import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
 import android.util.Log;
 
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
 public class NetworkStateReceiver extends BroadcastReceiver {
 
+    // flapping networks send bursts of broadcasts, wait until things settle down
+    private static final long DEBOUNCE_MILLIS = 1000;
+
+    // never call maybeNetwork() more often than this
+    private static final long MIN_INTERVAL_MILLIS = 5000;
+
+    // a single worker, so there are never several maybeNetwork() calls in parallel
+    private static final ScheduledExecutorService worker = Executors.newSingleThreadScheduledExecutor();
+
+    private static ScheduledFuture<?> pendingCall = null;
+    private static long lastCallMillis = 0;
+    private static int coalescedSignals = 0;
+
     @Override
     public void onReceive(Context context, Intent intent) {
 
@@ -19,19 +37,36 @@ public class NetworkStateReceiver extends BroadcastReceiver {
             if (ni != null && ni.getState() == NetworkInfo.State.CONNECTED) {
                 Log.i("DeltaChat", "++++++++++++++++++ Connected ++++++++++++++++++");
                 ApplicationDcContext dcContext = DcHelper.getContext(context);
-                new Thread(() -> {
-                    // call dc_maybe_network() from a worker thread.
-                    // theoretically, dc_maybe_network() can be called from the main thread and returns at once,
-                    // however, in reality, it does currently halt things for some seconds.
-                    // this is a workaround that make things usable for now.
-                    Log.i("DeltaChat", "calling maybeNetwork()");
-                    dcContext.maybeNetwork();
-                    Log.i("DeltaChat", "maybeNetwork() returned");
-                }).start();
+                dcContext.noteNetworkChange();
+                scheduleMaybeNetwork(dcContext);
             }
         }
         catch (Exception e) {
             e.printStackTrace();
         }
     }
+
+    private static synchronized void scheduleMaybeNetwork(ApplicationDcContext dcContext) {
+        // call dc_maybe_network() from a worker thread.
+        // theoretically, dc_maybe_network() can be called from the main thread and returns at once,
+        // however, in reality, it does currently halt things for some seconds.
+        // a call that is not yet started is replaced by the new one, so that a burst of signals
+        // results in one call after the last signal; a call that is already running is not affected.
+        if (pendingCall != null && pendingCall.cancel(false)) {
+            coalescedSignals++;
+        }
+
+        long delay = Math.max(DEBOUNCE_MILLIS, lastCallMillis + MIN_INTERVAL_MILLIS - System.currentTimeMillis());
+        pendingCall = worker.schedule(() -> {
+            int coalesced;
+            synchronized (NetworkStateReceiver.class) {
+                lastCallMillis = System.currentTimeMillis();
+                coalesced = coalescedSignals;
+                coalescedSignals = 0;
+            }
+            Log.i("DeltaChat", "calling maybeNetwork() (" + coalesced + " signals coalesced)");
+            dcContext.maybeNetwork();
+            Log.i("DeltaChat", "maybeNetwork() returned");
+        }, delay, TimeUnit.MILLISECONDS);
+    }
 }
@@ -38,6 +38,7 @@ import org.thoughtcrime.securesms.connect.DcHelper;
 import org.thoughtcrime.securesms.contacts.ContactSelectionListAdapter.HeaderViewHolder;
 import org.thoughtcrime.securesms.mms.GlideRequests;
 import org.thoughtcrime.securesms.util.LRUCache;
+import org.thoughtcrime.securesms.util.MemoryPressureManager;
 import org.thoughtcrime.securesms.util.StickyHeaderDecoration.StickyHeaderAdapter;
 import org.thoughtcrime.securesms.util.Util;
 
@@ -54,7 +55,8 @@ import java.util.Set;
  */
 public class ContactSelectionListAdapter extends RecyclerView.Adapter
                                          implements FastScrollAdapter,
-                                                    StickyHeaderAdapter<HeaderViewHolder>
+                                                    StickyHeaderAdapter<HeaderViewHolder>,
+                                                    MemoryPressureManager.TrimmableCache
 {
   private final static String TAG = ContactSelectionListAdapter.class.getSimpleName();
 
@@ -66,8 +68,7 @@ public class ContactSelectionListAdapter extends RecyclerView.Adapter
 
   private static final int MAX_CACHE_SIZE = 100;
 
-  private final Map<Integer,SoftReference<DcContact>> recordCache =
-          Collections.synchronizedMap(new LRUCache<Integer,SoftReference<DcContact>>(MAX_CACHE_SIZE));
+  private final Map<Integer,SoftReference<DcContact>> recordCache;
 
   private final @NonNull Context              context;
   private final @NonNull ApplicationDcContext dcContext;
@@ -262,6 +263,8 @@ public class ContactSelectionListAdapter extends RecyclerView.Adapter
     this.multiSelect   = multiSelect;
     this.clickListener = clickListener;
     this.longPressSelect = longPressSelect;
+    this.recordCache   = Collections.synchronizedMap(new LRUCache<Integer,SoftReference<DcContact>>(MemoryPressureManager.scaleCacheSize(context, MAX_CACHE_SIZE)));
+    MemoryPressureManager.register(this, "contactRecords", MemoryPressureManager.Priority.MEDIUM);
   }
 
   @Override
@@ -382,4 +385,15 @@ public class ContactSelectionListAdapter extends RecyclerView.Adapter
     recordCache.clear();
     notifyDataSetChanged();
   }
+
+  @Override
+  public void trimMemory(int level) {
+    // the records are loaded again when they are bound
+    recordCache.clear();
+  }
+
+  @Override
+  public @NonNull String getFootprint() {
+    return recordCache.size() + " records";
+  }
 }
@@ -3,14 +3,16 @@ package org.thoughtcrime.securesms.database.loaders;
 
 import android.content.Context;
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 import androidx.loader.content.AsyncTaskLoader;
+import android.util.Log;
 
-import com.annimon.stream.Stream;
 import com.b44t.messenger.DcContext;
 import com.b44t.messenger.DcMsg;
 
 import org.thoughtcrime.securesms.R;
 import org.thoughtcrime.securesms.connect.DcHelper;
+import org.thoughtcrime.securesms.util.LRUCache;
 
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
@@ -18,14 +20,12 @@ import java.util.Calendar;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 
 public class BucketedThreadMediaLoader extends AsyncTaskLoader<BucketedThreadMediaLoader.BucketedThreadMedia> {
 
-  @SuppressWarnings("unused")
   private static final String TAG = BucketedThreadMediaLoader.class.getSimpleName();
 
   private final int chatId;
@@ -64,27 +64,42 @@ public class BucketedThreadMediaLoader extends AsyncTaskLoader<BucketedThreadMed
     BucketedThreadMedia result   = new BucketedThreadMedia(getContext());
     DcContext context = DcHelper.getContext(getContext());
     if(chatId!=-1 /*0=all, -1=none*/) {
-      int[] messages = context.getChatMedia(chatId, msgType1, msgType2, msgType3);
-      for(int nextId : messages) {
-        result.add(context.getMsg(nextId));
-      }
+      long   startMs    = System.currentTimeMillis();
+      int[]  messages   = context.getChatMedia(chatId, msgType1, msgType2, msgType3);
+      long[] timestamps = context.getMsgTimestamps(messages);
+      result.index(context, messages, timestamps);
+      Log.i(TAG, "bucketed " + messages.length + " media in " + result.getSectionCount() + " sections in "
+          + (System.currentTimeMillis() - startMs) + " ms");
     }
 
     return result;
   }
 
+  /**
+   * The media of a chat bucketed by time. Only the ids of the messages are kept in one flat array,
+   * section after section; the messages are loaded when their cells are bound.
+   */
   public static class BucketedThreadMedia {
 
+    private static final int MAX_CACHED_MSGS = 100;
+
     private final TimeBucket   TODAY;
     private final TimeBucket   YESTERDAY;
     private final TimeBucket   THIS_WEEK;
     private final TimeBucket   LAST_WEEK;
     private final TimeBucket   THIS_MONTH;
     private final TimeBucket   LAST_MONTH;
-    private final MonthBuckets OLDER;
 
     private final TimeBucket[] TIME_SECTIONS;
 
+    private @Nullable DcContext dcContext;
+    private int[]               msgIds        = new int[0];
+    private int[]               sectionStarts = new int[]{0}; // sectionStarts[section+1] is the end of the section
+    private String[]            sectionNames  = new String[0]; // null for month sections
+    private Date[]              sectionMonths = new Date[0];   // null for time sections
+
+    private final Map<Integer, DcMsg> msgCache = new LRUCache<>(MAX_CACHED_MSGS);
+
     public BucketedThreadMedia(@NonNull Context context) {
       // from today midnight until the end of human time
       this.TODAY         = new TimeBucket(context.getString(R.string.today),
@@ -105,45 +120,107 @@ public class BucketedThreadMediaLoader extends AsyncTaskLoader<BucketedThreadMed
       this.LAST_MONTH    = new TimeBucket(context.getString(R.string.last_month),
           addToCalendarFrom(THIS_MONTH.startTime, Calendar.MONTH, -1), LAST_WEEK.startTime);
       this.TIME_SECTIONS = new TimeBucket[]{TODAY, YESTERDAY, THIS_WEEK, LAST_WEEK, THIS_MONTH, LAST_MONTH};
-      this.OLDER         = new MonthBuckets();
     }
 
-    public void add(DcMsg imageMessage) {
-      for (TimeBucket timeSection : TIME_SECTIONS) {
-        if (timeSection.inRange(imageMessage.getTimestamp())) {
-          timeSection.add(imageMessage);
-          return;
+    /**
+     * Buckets the messages by their timestamps and builds the section index,
+     * to be called once on the loader thread before the media is handed to the adapter.
+     */
+    void index(@NonNull DcContext dcContext, @NonNull int[] ids, @NonNull long[] timestamps) {
+      // section keys: the index of the time bucket or, for older messages,
+      // TIME_SECTIONS.length + the month counted from year 0
+      int[]                 keys     = new int[ids.length];
+      Map<Integer, Integer> counts   = new HashMap<>();
+      Calendar              calendar = Calendar.getInstance();
+
+      for (int i = 0; i < ids.length; i++) {
+        int key = getTimeSection(timestamps[i]);
+        if (key < 0) {
+          calendar.setTimeInMillis(timestamps[i]);
+          key = TIME_SECTIONS.length + calendar.get(Calendar.YEAR) * 12 + calendar.get(Calendar.MONTH);
+        }
+        keys[i] = key;
+        Integer count = counts.get(key);
+        counts.put(key, count == null ? 1 : count + 1);
+      }
+
+      // time sections first, in their order, then the months, latest first
+      List<Integer> sectionKeys = new ArrayList<>(counts.keySet());
+      Collections.sort(sectionKeys, (lhs, rhs) -> {
+        boolean lhsTime = lhs < TIME_SECTIONS.length;
+        boolean rhsTime = rhs < TIME_SECTIONS.length;
+        if (lhsTime != rhsTime) return lhsTime ? -1 : 1;
+        return lhsTime ? Integer.compare(lhs, rhs) : Integer.compare(rhs, lhs);
+      });
+
+      int                   sectionCount = sectionKeys.size();
+      int[]                 starts       = new int[sectionCount + 1];
+      String[]              names        = new String[sectionCount];
+      Date[]                months       = new Date[sectionCount];
+      Map<Integer, Integer> sectionByKey = new HashMap<>();
+
+      for (int section = 0; section < sectionCount; section++) {
+        int key = sectionKeys.get(section);
+        starts[section + 1] = starts[section] + counts.get(key);
+        sectionByKey.put(key, section);
+        if (key < TIME_SECTIONS.length) {
+          names[section] = TIME_SECTIONS[key].getName();
+        } else {
+          int month = key - TIME_SECTIONS.length;
+          months[section] = new Date(month / 12 - 1900, month % 12, 1);
+        }
+      }
+
+      // time sections list the latest message first, months the oldest first
+      int[] positions = new int[sectionCount];
+      int[] flatIds   = new int[ids.length];
+      for (int i = 0; i < ids.length; i++) {
+        int section = sectionByKey.get(keys[i]);
+        int offset  = positions[section]++;
+        if (keys[i] < TIME_SECTIONS.length) {
+          flatIds[starts[section + 1] - 1 - offset] = ids[i];
+        } else {
+          flatIds[starts[section] + offset] = ids[i];
+        }
+      }
+
+      this.dcContext     = dcContext;
+      this.msgIds        = flatIds;
+      this.sectionStarts = starts;
+      this.sectionNames  = names;
+      this.sectionMonths = months;
+    }
+
+    private int getTimeSection(long timestamp) {
+      for (int i = 0; i < TIME_SECTIONS.length; i++) {
+        if (TIME_SECTIONS[i].inRange(timestamp)) {
+          return i;
         }
       }
-      OLDER.add(imageMessage);
+      return -1;
     }
 
     public int getSectionCount() {
-      return (int)Stream.of(TIME_SECTIONS)
-                        .filter(timeBucket -> !timeBucket.isEmpty())
-                        .count() +
-             OLDER.getSectionCount();
+      return sectionNames.length;
     }
 
     public int getSectionItemCount(int section) {
-      List<TimeBucket> activeTimeBuckets = Stream.of(TIME_SECTIONS).filter(timeBucket -> !timeBucket.isEmpty()).toList();
-
-      if (section < activeTimeBuckets.size()) return activeTimeBuckets.get(section).getItemCount();
-      else                                    return OLDER.getSectionItemCount(section - activeTimeBuckets.size());
+      return sectionStarts[section + 1] - sectionStarts[section];
     }
 
     public DcMsg get(int section, int item) {
-      List<TimeBucket> activeTimeBuckets = Stream.of(TIME_SECTIONS).filter(timeBucket -> !timeBucket.isEmpty()).toList();
-
-      if (section < activeTimeBuckets.size()) return activeTimeBuckets.get(section).getItem(item);
-      else                                    return OLDER.getItem(section - activeTimeBuckets.size(), item);
+      int   msgId = msgIds[sectionStarts[section] + item];
+      DcMsg msg   = msgCache.get(msgId);
+      if (msg == null && dcContext != null) {
+        msg = dcContext.getMsg(msgId);
+        msgCache.put(msgId, msg);
+      }
+      return msg;
     }
 
     public String getName(int section, Locale locale) {
-      List<TimeBucket> activeTimeBuckets = Stream.of(TIME_SECTIONS).filter(timeBucket -> !timeBucket.isEmpty()).toList();
-
-      if (section < activeTimeBuckets.size()) return activeTimeBuckets.get(section).getName();
-      else                                    return OLDER.getName(section - activeTimeBuckets.size(), locale);
+      if (sectionNames[section] != null) return sectionNames[section];
+      else                               return new SimpleDateFormat("MMMM yyyy", locale).format(sectionMonths[section]);
     }
 
     // tests should override this function to deliver a preset calendar.
@@ -181,88 +258,23 @@ public class BucketedThreadMediaLoader extends AsyncTaskLoader<BucketedThreadMed
 
     private static class TimeBucket {
 
-      private final LinkedList<DcMsg> records = new LinkedList<>();
-
       private final long   startTime;
-      private final long endTime;
+      private final long   endTime;
       private final String name;
 
       TimeBucket(String name, long startTime, long endTime) {
         this.name      = name;
         this.startTime = startTime;
-        this.endTime = endTime;
-      }
-
-      void add(DcMsg record) {
-        this.records.addFirst(record);
+        this.endTime   = endTime;
       }
 
       boolean inRange(long timestamp) {
         return timestamp >= startTime && timestamp < endTime;
       }
 
-      boolean isEmpty() {
-        return records.isEmpty();
-      }
-
-      int getItemCount() {
-        return records.size();
-      }
-
-      DcMsg getItem(int position) {
-        return records.get(position);
-      }
-
       String getName() {
         return name;
       }
     }
-
-    private static class MonthBuckets {
-
-      private final Map<Date, List<DcMsg>> months = new HashMap<>();
-
-      void add(DcMsg record) {
-        Calendar calendar = Calendar.getInstance();
-        calendar.setTimeInMillis(record.getTimestamp());
-
-        int  year  = calendar.get(Calendar.YEAR) - 1900;
-        int  month = calendar.get(Calendar.MONTH);
-        Date date  = new Date(year, month, 1);
-
-        if (months.containsKey(date)) {
-          months.get(date).add(record);
-        } else {
-          List<DcMsg> list = new LinkedList<>();
-          list.add(record);
-          months.put(date, list);
-        }
-      }
-
-      int getSectionCount() {
-        return months.size();
-      }
-
-      int getSectionItemCount(int section) {
-        return months.get(getSection(section)).size();
-      }
-
-      DcMsg getItem(int section, int position) {
-        return months.get(getSection(section)).get(position);
-      }
-
-      Date getSection(int section) {
-        ArrayList<Date> keys = new ArrayList<>(months.keySet());
-        Collections.sort(keys, Collections.reverseOrder());
-
-        return keys.get(section);
-      }
-
-      String getName(int section, Locale locale) {
-        Date sectionDate = getSection(section);
-
-        return new SimpleDateFormat("MMMM yyyy", locale).format(sectionDate);
-      }
-    }
   }
 }
@@ -0,0 +1,73 @@
+package org.thoughtcrime.securesms.mms;
+
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.CompressFormat;
+import android.graphics.BitmapFactory;
+import android.graphics.Color;
+import androidx.annotation.NonNull;
+import android.util.Log;
+
+import org.thoughtcrime.securesms.util.MediaUtil;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+
+/**
+ * The formats outgoing images can be recoded to, see MediaConstraints.getImageEncoder().
+ */
+public enum ImageEncoder {
+
+  JPEG(CompressFormat.JPEG, MediaUtil.IMAGE_JPEG, ".jpg"),
+  WEBP(CompressFormat.WEBP, MediaUtil.IMAGE_WEBP, ".webp");
+
+  private static final String TAG = ImageEncoder.class.getSimpleName();
+
+  private final CompressFormat format;
+  private final String         mimeType;
+  private final String         extension;
+  private       Boolean        supported;
+
+  ImageEncoder(CompressFormat format, String mimeType, String extension) {
+    this.format    = format;
+    this.mimeType  = mimeType;
+    this.extension = extension;
+  }
+
+  public @NonNull String getMimeType() {
+    return mimeType;
+  }
+
+  public @NonNull String getExtension() {
+    return extension;
+  }
+
+  public boolean encode(@NonNull Bitmap bitmap, int quality, @NonNull OutputStream outputStream) {
+    return bitmap.compress(format, quality, outputStream);
+  }
+
+  /**
+   * Checks once whether this device can encode the format and decode the result again,
+   * some devices come with broken encoders.
+   */
+  public synchronized boolean isSupported() {
+    if (supported == null) {
+      try {
+        Bitmap probe = Bitmap.createBitmap(16, 16, Bitmap.Config.ARGB_8888);
+        probe.eraseColor(Color.RED);
+
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        byte[]                bytes        = encode(probe, 75, outputStream) ? outputStream.toByteArray() : new byte[0];
+        probe.recycle();
+
+        Bitmap decoded = BitmapFactory.decodeByteArray(bytes, 0, bytes.length);
+        supported = decoded != null && decoded.getWidth() == 16 && decoded.getHeight() == 16;
+        if (decoded != null) decoded.recycle();
+      } catch (Exception e) {
+        Log.w(TAG, e);
+        supported = false;
+      }
+      Log.i(TAG, this + " encoder supported: " + supported);
+    }
+    return supported;
+  }
+}
@@ -15,6 +15,10 @@ public abstract class MediaConstraints {
   public abstract int getImageMaxHeight(Context context);
   public abstract int getImageMaxSize(Context context);
 
+  public ImageEncoder getImageEncoder(Context context) {
+    return ImageEncoder.JPEG;
+  }
+
   public boolean canResize(@Nullable Attachment attachment) {
     return attachment != null && MediaUtil.isImage(attachment) && !MediaUtil.isGif(attachment);
   }
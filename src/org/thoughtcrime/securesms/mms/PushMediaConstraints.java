@@ -2,6 +2,7 @@ package org.thoughtcrime.securesms.mms;
 
 import android.content.Context;
 
+import org.thoughtcrime.securesms.util.Prefs;
 import org.thoughtcrime.securesms.util.Util;
 
 public class PushMediaConstraints extends MediaConstraints {
@@ -25,4 +26,15 @@ public class PushMediaConstraints extends MediaConstraints {
   public int getImageMaxSize(Context context) {
     return 6 * MB;
   }
+
+  // at the same quality setting, webp is more exact than jpeg and has up to half of the bytes on smooth images,
+  // about the same on noisy ones (RecodeFormatBenchmark); however, older mail clients may not show it,
+  // so it is used only if the user prefers smaller images
+  @Override
+  public ImageEncoder getImageEncoder(Context context) {
+    if (Prefs.isHardCompressionEnabled(context) && ImageEncoder.WEBP.isSupported()) {
+      return ImageEncoder.WEBP;
+    }
+    return ImageEncoder.JPEG;
+  }
 }
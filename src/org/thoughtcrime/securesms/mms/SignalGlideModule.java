@@ -9,12 +9,15 @@ import com.bumptech.glide.Glide;
 import com.bumptech.glide.GlideBuilder;
 import com.bumptech.glide.Registry;
 import com.bumptech.glide.annotation.GlideModule;
+import com.bumptech.glide.load.engine.bitmap_recycle.LruBitmapPool;
+import com.bumptech.glide.load.engine.cache.LruResourceCache;
 import com.bumptech.glide.load.model.UnitModelLoader;
 import com.bumptech.glide.module.AppGlideModule;
 
 import org.thoughtcrime.securesms.contacts.avatars.ContactPhoto;
 import org.thoughtcrime.securesms.glide.ContactPhotoLoader;
 import org.thoughtcrime.securesms.mms.DecryptableStreamUriLoader.DecryptableUri;
+import org.thoughtcrime.securesms.util.MemoryPressureManager;
 
 import java.io.File;
 import java.io.InputStream;
@@ -27,10 +30,34 @@ public class SignalGlideModule extends AppGlideModule {
     return false;
   }
 
+  // held here, the memory pressure manager references caches weakly only
+  private static MemoryPressureManager.TrimmableCache memoryCaches;
+
   @Override
   public void applyOptions(Context context, GlideBuilder builder) {
     builder.setLogLevel(Log.ERROR);
 //    builder.setDiskCache(new NoopDiskCacheFactory());
+
+    LruResourceCache memoryCache = new LruResourceCache(MemoryPressureManager.getHeapFraction(context, 1f / 8));
+    LruBitmapPool    bitmapPool  = new LruBitmapPool(MemoryPressureManager.getHeapFraction(context, 1f / 8));
+    builder.setMemoryCache(memoryCache);
+    builder.setBitmapPool(bitmapPool);
+
+    // glide trims the caches on its own callbacks as well, trimming them again to the same level is cheap
+    memoryCaches = new MemoryPressureManager.TrimmableCache() {
+      @Override
+      public void trimMemory(int level) {
+        memoryCache.trimMemory(level);
+        bitmapPool.trimMemory(level);
+      }
+
+      @Override
+      public @NonNull String getFootprint() {
+        return "memoryCache=" + memoryCache.getCurrentSize() / 1024 + "/" + memoryCache.getMaxSize() / 1024 + "KB"
+             + " bitmapPool=" + bitmapPool.getCurrentSize() / 1024 + "/" + bitmapPool.getMaxSize() / 1024 + "KB";
+      }
+    };
+    MemoryPressureManager.register(memoryCaches, "glide", MemoryPressureManager.Priority.HIGH);
   }
 
   @Override
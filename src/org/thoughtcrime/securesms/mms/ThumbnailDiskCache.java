@@ -0,0 +1,245 @@
+package org.thoughtcrime.securesms.mms;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.net.Uri;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
+import android.util.Log;
+
+import com.bumptech.glide.load.engine.DiskCacheStrategy;
+import com.bumptech.glide.request.FutureTarget;
+
+import org.thoughtcrime.securesms.mms.DecryptableStreamUriLoader.DecryptableUri;
+import org.thoughtcrime.securesms.util.Hex;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Keeps the downsampled thumbnails of chat media on disk, so that reopening a chat does not decode
+ * the full-size blobs again. A thumbnail is keyed by the path and the modification time of its blob
+ * and by the target size; the least recently used thumbnails are evicted when the cache gets too large.
+ */
+public class ThumbnailDiskCache {
+
+  private static final String TAG = ThumbnailDiskCache.class.getSimpleName();
+
+  private static final String DIRECTORY = "thumbnails";
+  private static final long   MAX_BYTES = 50 * 1024 * 1024;
+  private static final long   TRIM_TO   = MAX_BYTES * 3 / 4;
+  private static final int    QUALITY   = 85;
+
+  private static ThumbnailDiskCache instance;
+
+  public static synchronized @NonNull ThumbnailDiskCache getInstance(@NonNull Context context) {
+    if (instance == null) {
+      instance = new ThumbnailDiskCache(context.getApplicationContext());
+    }
+    return instance;
+  }
+
+  private final Context context;
+  private final File    directory;
+
+  private long totalBytes = -1; // calculated on first use
+  private int  hits;
+  private int  misses;
+  private long bytesSaved;      // blob bytes not decoded because of hits
+
+  private ThumbnailDiskCache(@NonNull Context context) {
+    this.context   = context;
+    this.directory = new File(context.getCacheDir(), DIRECTORY);
+  }
+
+  /**
+   * @return the blob behind the uri or null if the uri does not point to a local file.
+   */
+  public static @Nullable File getBlobFile(@Nullable Uri uri) {
+    if (uri == null || !"file".equals(uri.getScheme()) || uri.getPath() == null) {
+      return null;
+    }
+    return new File(uri.getPath());
+  }
+
+  /**
+   * @return the cached thumbnail of the blob, created from the uri if needed,
+   *         or null if it cannot be created.
+   */
+  @WorkerThread
+  public @Nullable File getOrCreate(@NonNull File blob, @NonNull Uri uri, int width, int height) {
+    File file = get(blob, width, height);
+    if (file != null) {
+      return file;
+    }
+
+    FutureTarget<Bitmap> target = GlideApp.with(context)
+                                          .asBitmap()
+                                          .load(new DecryptableUri(uri))
+                                          .diskCacheStrategy(DiskCacheStrategy.NONE)
+                                          .centerCrop()
+                                          .submit(width, height);
+    try {
+      return put(blob, width, height, target.get());
+    } catch (InterruptedException | ExecutionException e) {
+      Log.w(TAG, e);
+      return null;
+    } finally {
+      GlideApp.with(context).clear(target);
+    }
+  }
+
+  @WorkerThread
+  public synchronized @Nullable File get(@NonNull File blob, int width, int height) {
+    File file = getCacheFile(blob, width, height);
+    if (!file.exists()) {
+      misses++;
+      return null;
+    }
+
+    // the modification time orders the thumbnails for eviction
+    file.setLastModified(System.currentTimeMillis());
+    hits++;
+    bytesSaved += Math.max(0, blob.length() - file.length());
+    return file;
+  }
+
+  @WorkerThread
+  public synchronized @Nullable File put(@NonNull File blob, int width, int height, @NonNull Bitmap bitmap) {
+    initialize();
+
+    File file     = getCacheFile(blob, width, height);
+    File tempFile = new File(directory, file.getName() + ".tmp");
+
+    try (OutputStream outputStream = new FileOutputStream(tempFile)) {
+      Bitmap.CompressFormat format = bitmap.hasAlpha() ? Bitmap.CompressFormat.PNG : Bitmap.CompressFormat.JPEG;
+      if (!bitmap.compress(format, QUALITY, outputStream)) {
+        throw new IOException("cannot compress thumbnail");
+      }
+    } catch (IOException e) {
+      Log.w(TAG, e);
+      tempFile.delete();
+      return null;
+    }
+
+    long oldLength = file.length();
+    if (!tempFile.renameTo(file)) {
+      tempFile.delete();
+      return null;
+    }
+
+    totalBytes += file.length() - oldLength;
+    if (totalBytes > MAX_BYTES) {
+      trim();
+    }
+    return file;
+  }
+
+  /**
+   * Removes the thumbnails of the given blobs, to be called when the blobs are deleted.
+   */
+  @WorkerThread
+  public synchronized void remove(@NonNull Collection<String> blobPaths) {
+    if (blobPaths.isEmpty()) {
+      return;
+    }
+
+    Set<String> prefixes = new HashSet<>();
+    for (String blobPath : blobPaths) {
+      prefixes.add(getPrefix(new File(blobPath)));
+    }
+
+    File[] files = directory.listFiles();
+    if (files == null) {
+      return;
+    }
+
+    int removed = 0;
+    for (File file : files) {
+      int separator = file.getName().indexOf('_');
+      if (separator > 0 && prefixes.contains(file.getName().substring(0, separator))) {
+        long length = file.length();
+        if (file.delete()) {
+          if (totalBytes >= 0) totalBytes -= length;
+          removed++;
+        }
+      }
+    }
+    Log.i(TAG, "removed " + removed + " thumbnails of " + blobPaths.size() + " deleted blobs");
+  }
+
+  public synchronized @NonNull String getInfo() {
+    int requests = hits + misses;
+    return "thumbnailCache: hits=" + hits + " misses=" + misses
+        + " hitRate=" + (requests > 0 ? hits * 100 / requests : 0) + "%"
+        + " bytesSaved=" + (bytesSaved / 1024) + "KB"
+        + " size=" + (Math.max(totalBytes, 0) / 1024) + "KB\n";
+  }
+
+  private void initialize() {
+    if (totalBytes >= 0) {
+      return;
+    }
+
+    if (!directory.exists() && !directory.mkdirs()) {
+      Log.w(TAG, "cannot create " + directory);
+    }
+
+    totalBytes = 0;
+    File[] files = directory.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        if (file.getName().endsWith(".tmp")) {
+          file.delete();
+        } else {
+          totalBytes += file.length();
+        }
+      }
+    }
+  }
+
+  private void trim() {
+    File[] files = directory.listFiles();
+    if (files == null) {
+      return;
+    }
+
+    Arrays.sort(files, (lhs, rhs) -> Long.compare(lhs.lastModified(), rhs.lastModified()));
+
+    int evicted = 0;
+    for (File file : files) {
+      if (totalBytes <= TRIM_TO) {
+        break;
+      }
+      long length = file.length();
+      if (file.delete()) {
+        totalBytes -= length;
+        evicted++;
+      }
+    }
+    Log.i(TAG, "evicted " + evicted + " thumbnails, " + (totalBytes / 1024) + "KB left");
+  }
+
+  private @NonNull File getCacheFile(@NonNull File blob, int width, int height) {
+    return new File(directory, getPrefix(blob) + "_" + blob.lastModified() + "_" + width + "x" + height + ".thumb");
+  }
+
+  private static @NonNull String getPrefix(@NonNull File blob) {
+    try {
+      byte[] digest = MessageDigest.getInstance("SHA-1").digest(blob.getAbsolutePath().getBytes());
+      return Hex.toStringCondensed(digest).substring(0, 20);
+    } catch (NoSuchAlgorithmException e) {
+      throw new AssertionError(e);
+    }
+  }
+}
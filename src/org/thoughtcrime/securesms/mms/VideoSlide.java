@@ -34,9 +34,14 @@ public class VideoSlide extends Slide {
 
   private static Attachment constructVideoAttachment(Context context, Uri uri, long dataSize)
   {
-    Uri thumbnailUri = Uri.fromFile(new File(DcHelper.getContext(context).getBlobdirFile("temp-preview.jpg")));
+    File thumbnailFile = new File(DcHelper.getContext(context).getBlobdirFile("temp-preview.jpg"));
+    Uri thumbnailUri = Uri.fromFile(thumbnailFile);
     MediaUtil.ThumbnailSize retWh = new MediaUtil.ThumbnailSize(0, 0);
-    MediaUtil.createVideoThumbnailIfNeeded(context, uri, thumbnailUri, retWh);
+    if (!MediaUtil.createVideoThumbnailIfNeeded(context, uri, thumbnailUri, retWh)) {
+      // the file created by getBlobdirFile() is not used
+      thumbnailFile.delete();
+      thumbnailUri = null;
+    }
     return constructAttachmentFromUri(context, uri, MediaUtil.VIDEO_UNSPECIFIED, dataSize, retWh.width, retWh.height, thumbnailUri, null, false);
   }
 
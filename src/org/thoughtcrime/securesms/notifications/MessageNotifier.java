@@ -1,5 +1,6 @@
 package org.thoughtcrime.securesms.notifications;
 
+import android.app.Notification;
 import android.app.NotificationManager;
 import android.content.Context;
 import android.media.AudioManager;
@@ -9,10 +10,14 @@ import android.media.SoundPool;
 import android.net.Uri;
 import android.os.Vibrator;
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 import androidx.core.app.NotificationManagerCompat;
 import android.text.TextUtils;
 import android.util.Log;
+import android.util.SparseArray;
+import android.util.SparseBooleanArray;
 
+import com.b44t.messenger.DcChat;
 import com.b44t.messenger.DcMsg;
 
 import org.thoughtcrime.securesms.R;
@@ -24,9 +29,15 @@ import org.thoughtcrime.securesms.util.Prefs;
 import org.thoughtcrime.securesms.util.ServiceUtil;
 import org.thoughtcrime.securesms.util.SpanUtil;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.ListIterator;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
 import static org.thoughtcrime.securesms.notifications.MessageNotifierCompat.NO_VISIBLE_CHAT_ID;
@@ -40,6 +51,7 @@ abstract class MessageNotifier {
     private static final long   MIN_AUDIBLE_PERIOD_MILLIS = TimeUnit.SECONDS.toMillis(20);
     private static final long   STARTUP_SILENCE_DELTA     = TimeUnit.MINUTES.toMillis(1);
     private static final long   INITIAL_STARTUP           = System.currentTimeMillis();
+    private static final long   COALESCE_MILLIS           = 250;
 
             static volatile int                visibleChatId                = NO_VISIBLE_CHAT_ID;
             static volatile long               lastAudibleNotification      = -1;
@@ -53,6 +65,16 @@ abstract class MessageNotifier {
     private                 boolean            soundInLoaded;
     private                 boolean            soundOutLoaded;
 
+    // messages arriving in bursts are collected and the notifications are updated once per COALESCE_MILLIS;
+    // all guarded by lock
+    private         final   ScheduledExecutorService flushExecutor     = Executors.newSingleThreadScheduledExecutor();
+    private         final   Set<Integer>             pendingChats      = new LinkedHashSet<>();
+    private         final   List<Integer>            pendingMsgIds     = new ArrayList<>();
+    private                 boolean                  pendingSignal     = false;
+    private                 boolean                  flushScheduled    = false;
+    private                 boolean                  postedAsMultiple  = false;
+    private @Nullable       List<Runnable>           deferredPosts     = null; // set while a flush builds its notifications
+
     MessageNotifier(Context context) {
         appContext = context.getApplicationContext();
         soundPool = new SoundPool(3, AudioManager.STREAM_SYSTEM, 0);
@@ -87,6 +109,7 @@ abstract class MessageNotifier {
     }
 
     public void updateNotification(int chatId, int messageId) {
+        NotificationLatency.mark(messageId, NotificationLatency.STARTED);
         boolean isVisible = visibleChatId == chatId;
 
         if (!Prefs.isNotificationsEnabled(appContext) ||
@@ -111,17 +134,65 @@ abstract class MessageNotifier {
      * the notification state needs to be updated.
      */
     public void onNotificationPrivacyChanged() {
+        rebuildNotifications();
+    }
+
+    /**
+     * Rebuilds the notification state from all fresh messages and posts each notification once,
+     * used when the content of all notifications changes, eg. on privacy or locale changes, and on app start.
+     */
+    public void rebuildNotifications() {
         if (!Prefs.isNotificationsEnabled(appContext)) {
             return;
         }
 
-        clearNotifications();
-        ApplicationDcContext dcContext = DcHelper.getContext(appContext);
-        int[] freshMessages = dcContext.getFreshMsgs();
-        for (int message : freshMessages) {
-            DcMsg record = dcContext.getMsg(message);
-            updateNotification(record.getChatId(), record.getId());
+        long                    startMillis    = System.currentTimeMillis();
+        ApplicationDcContext    dcContext      = DcHelper.getContext(appContext);
+        SparseArray<Recipient>  chatRecipients = new SparseArray<>();
+        SparseBooleanArray      skippedChats   = new SparseBooleanArray();
+        int                     itemCount      = 0;
+
+        // the fresh messages are read and the state is replaced under the same lock,
+        // so that messages added by sendNotifications() meanwhile are not dropped.
+        // pending messages are kept, they are among the fresh messages and their flush still posts and traces them.
+        synchronized (lock) {
+            int[] freshMsgs = dcContext.getFreshMsgs();
+
+            cancelActiveNotifications();
+            notificationState.reset();
+            postedAsMultiple = false;
+
+            // fresh messages are returned newest first, however, the newest item has to be added last
+            for (int i = freshMsgs.length - 1; i >= 0; i--) {
+                DcMsg dcMsg  = dcContext.getMsg(freshMsgs[i]);
+                int   chatId = dcMsg.getChatId();
+                if (chatId == visibleChatId || skippedChats.get(chatId)) {
+                    continue;
+                }
+
+                Recipient chatRecipient = chatRecipients.get(chatId);
+                if (chatRecipient == null) {
+                    DcChat dcChat = dcContext.getChat(chatId);
+                    if (dcChat.isDeviceTalk() || Prefs.isChatMuted(appContext, chatId)) {
+                        skippedChats.put(chatId, true);
+                        continue;
+                    }
+                    chatRecipient = new Recipient(appContext, dcChat, null);
+                    chatRecipients.put(chatId, chatRecipient);
+                }
+
+                NotificationItem item = createNotificationItem(dcContext, dcMsg, chatRecipient);
+                if (item != null) {
+                    notificationState.addNotification(item);
+                    itemCount++;
+                }
+            }
+
+            postNotifications(Collections.emptySet(), false);
         }
+
+        Log.i(TAG, "rebuilt notifications for " + itemCount + " messages in " + chatRecipients.size() + " chats in "
+                + (System.currentTimeMillis() - startMillis) + " ms");
     }
 
     public void removeNotifications(int[] chatIds) {
@@ -156,14 +227,8 @@ abstract class MessageNotifier {
         notifications.cancel(SUMMARY_NOTIFICATION_ID);
 
         synchronized (lock) {
-            if (notificationState.hasMultipleChats()) {
-                for (Integer id : notificationState.getChats()) {
-                    sendSingleChatNotification(appContext, new NotificationState(notificationState.getNotificationsForChat(id)), false, true);
-                }
-                sendMultipleChatNotification(appContext, notificationState, false);
-            } else {
-                sendSingleChatNotification(appContext, notificationState, false, false);
-            }
+            postedAsMultiple = false; // forces all chats to be posted
+            postNotifications(Collections.emptySet(), false);
         }
     }
 
@@ -174,26 +239,80 @@ abstract class MessageNotifier {
 
     void sendNotifications(int chatId, int messageId, boolean signal) {
         ApplicationDcContext dcContext = DcHelper.getContext(appContext);
-        if (signal = isSignalAllowed(signal)) {
-            lastAudibleNotification = System.currentTimeMillis();
-        }
 
         if (dcContext.getChat(chatId).isDeviceTalk()) {
             // currently, we just never notify on device chat.
             // esp. on first start, this is annoying.
             return;
         }
+        NotificationLatency.mark(messageId, NotificationLatency.CHECKED);
+
+        if (!addMessageToNotificationState(dcContext, chatId, messageId)) {
+            return;
+        }
 
         synchronized (lock) {
-            addMessageToNotificationState(dcContext, chatId, messageId);
-            if (notificationState.hasMultipleChats()) {
-                for (int id : notificationState.getChats()) {
-                    sendSingleChatNotification(appContext, new NotificationState(notificationState.getNotificationsForChat(id)), false, true);
+            pendingChats.add(chatId);
+            pendingMsgIds.add(messageId);
+            pendingSignal = signal; // only the newest message decides about sound and vibration
+            if (flushScheduled) {
+                return;
+            }
+            flushScheduled = true;
+        }
+        flushExecutor.schedule(this::flushNotifications, COALESCE_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    private void flushNotifications() {
+        synchronized (lock) {
+            flushScheduled = false;
+
+            boolean signal = isSignalAllowed(pendingSignal);
+            if (signal) {
+                lastAudibleNotification = System.currentTimeMillis();
+            }
+
+            List<Integer> msgIds = new ArrayList<>(pendingMsgIds);
+            pendingMsgIds.clear();
+            NotificationLatency.mark(msgIds, NotificationLatency.FLUSH_STARTED);
+
+            Set<Integer> changedChats = new LinkedHashSet<>(pendingChats);
+            pendingChats.clear();
+
+            // all notifications are built before the first is posted, so that both are traced separately
+            List<Runnable> posts = new ArrayList<>();
+            deferredPosts = posts;
+            try {
+                postNotifications(changedChats, signal);
+            } finally {
+                deferredPosts = null;
+            }
+            NotificationLatency.mark(msgIds, NotificationLatency.BUILT);
+
+            for (Runnable post : posts) {
+                post.run();
+            }
+            NotificationLatency.finish(appContext, msgIds);
+        }
+    }
+
+    /**
+     * Posts the notifications of the given chats and the summary; must be called with lock held.
+     * All chats are posted when switching from a single to multiple chats,
+     * as the single-chat notification then has to be replaced by a bundled one.
+     */
+    void postNotifications(@NonNull Set<Integer> changedChats, boolean signal) {
+        if (notificationState.hasMultipleChats()) {
+            for (int id : notificationState.getChats()) {
+                if (!postedAsMultiple || changedChats.contains(id)) {
+                    sendSingleChatNotification(appContext, notificationState.getStateForChat(id), false, true);
                 }
-                sendMultipleChatNotification(appContext, notificationState, signal);
-            } else {
-                sendSingleChatNotification(appContext, notificationState, signal, false);
             }
+            sendMultipleChatNotification(appContext, notificationState, signal);
+            postedAsMultiple = true;
+        } else {
+            sendSingleChatNotification(appContext, notificationState, signal, false);
+            postedAsMultiple = false;
         }
     }
 
@@ -204,13 +323,6 @@ abstract class MessageNotifier {
                 (now - lastAudibleNotification) > MIN_AUDIBLE_PERIOD_MILLIS;
     }
 
-    private void clearNotifications() {
-        synchronized (lock) {
-            notificationState.reset();
-        }
-        cancelActiveNotifications();
-    }
-
     void sendSingleChatNotification(@NonNull Context context,
                                     @NonNull  NotificationState notificationState,
                                     boolean signal,
@@ -339,10 +451,19 @@ abstract class MessageNotifier {
     }
 
     private void notify(Context context, int notificationId, AbstractNotificationBuilder notificationBuilder, boolean signal) {
-        if (signal) {
-            playNotificationSound(notificationBuilder.getRingtone(), notificationBuilder.getVibrate());
+        Notification notification = notificationBuilder.build();
+        Runnable     post         = () -> {
+            if (signal) {
+                playNotificationSound(notificationBuilder.getRingtone(), notificationBuilder.getVibrate());
+            }
+            NotificationManagerCompat.from(context).notify(notificationId, notification);
+        };
+
+        if (deferredPosts != null) {
+            deferredPosts.add(post);
+        } else {
+            post.run();
         }
-        NotificationManagerCompat.from(context).notify(notificationId, notificationBuilder.build());
     }
 
     private void sendInChatNotification(int chatId) {
@@ -362,22 +483,45 @@ abstract class MessageNotifier {
         }
     }
 
-    void addMessageToNotificationState(ApplicationDcContext dcContext, int chatId, int msgId) {
+    /**
+     * @return true if the message was added, false if it does not need a notification
+     */
+    boolean addMessageToNotificationState(ApplicationDcContext dcContext, int chatId, int msgId) {
         if (Prefs.isChatMuted(appContext, chatId)) {
-            return;
+            return false;
         }
 
-        DcMsg record = dcContext.getMsg(msgId);
+        DcMsg            dcMsg = dcContext.getMsg(msgId);
+        NotificationItem item  = createNotificationItem(dcContext, dcMsg, new Recipient(appContext, dcContext.getChat(dcMsg.getChatId()), null));
+        if (item == null) {
+            return false;
+        }
+        NotificationLatency.mark(msgId, NotificationLatency.ITEM_BUILT);
+
+        // load avatar and picture now, so that building the notification does not need to wait for them
+        SlideDeck slideDeck = item.getSlideDeck();
+        NotificationBitmapCache.prewarm(appContext, Prefs.getNotificationPrivacy(appContext), item.getRecipient(), item.getIndividualRecipient(),
+                slideDeck != null ? slideDeck.getThumbnailSlide() : null);
+        NotificationLatency.mark(msgId, NotificationLatency.BITMAPS_LOADED);
+
+        synchronized (lock) {
+            // a rebuild may have added the message already
+            if (!notificationState.containsNotification(item.getChatId(), msgId)) {
+                notificationState.addNotification(item);
+            }
+        }
+        return true;
+    }
+
+    private @Nullable NotificationItem createNotificationItem(ApplicationDcContext dcContext, DcMsg record, Recipient chatRecipient) {
         if (record.isInfo()) {
-            return;
+            return null;
         }
 
         int          id                    = record.getId();
         CharSequence body                  = record.getDisplayBody();
-        DcMsg        dcMsg                 = dcContext.getMsg(msgId);
-        Recipient    chatRecipient         = new Recipient(appContext, dcContext.getChat(dcMsg.getChatId()), null);
-        Recipient    individualRecipient   = new Recipient(appContext, null, dcContext.getContact(dcMsg.getFromId()));
-        SlideDeck slideDeck             = new SlideDeck(dcContext.context, record);
+        Recipient    individualRecipient   = new Recipient(appContext, null, dcContext.getContact(record.getFromId()));
+        SlideDeck    slideDeck             = new SlideDeck(dcContext.context, record);
         long         timestamp             = record.getTimestamp();
 
 
@@ -398,9 +542,6 @@ abstract class MessageNotifier {
             body = SpanUtil.italic(message, italicLength);
         }
 
-        synchronized (lock) {
-            notificationState.addNotification(new NotificationItem(id, chatRecipient, individualRecipient, chatId, body, timestamp, slideDeck));
-        }
+        return new NotificationItem(id, chatRecipient, individualRecipient, record.getChatId(), body, timestamp, slideDeck);
     }
 }
-
@@ -42,6 +42,10 @@ public class MessageNotifierCompat {
         Util.runOnAnyBackgroundThread(() -> instance.onNotificationPrivacyChanged());
     }
 
+    public static void rebuildNotifications() {
+        Util.runOnAnyBackgroundThread(() -> instance.rebuildNotifications());
+    }
+
     static void removeNotifications(int[] chatIds) {
         Util.runOnAnyBackgroundThread(() -> instance.removeNotifications(chatIds));
     }
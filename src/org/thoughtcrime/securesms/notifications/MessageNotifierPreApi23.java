@@ -1,12 +1,12 @@
 package org.thoughtcrime.securesms.notifications;
 
 import android.content.Context;
+import androidx.annotation.NonNull;
 import androidx.core.app.NotificationManagerCompat;
 
-import org.thoughtcrime.securesms.connect.ApplicationDcContext;
-import org.thoughtcrime.securesms.connect.DcHelper;
-
+import java.util.Collections;
 import java.util.List;
+import java.util.Set;
 
 import static org.thoughtcrime.securesms.notifications.MessageNotifierCompat.SUMMARY_NOTIFICATION_ID;
 
@@ -40,25 +40,12 @@ class MessageNotifierPreApi23 extends MessageNotifier {
     }
 
     @Override
-    void sendNotifications(int chatId, int messageId, boolean signal) {
-        ApplicationDcContext dcContext = DcHelper.getContext(appContext);
-        if (signal = isSignalAllowed(signal)) {
-            lastAudibleNotification = System.currentTimeMillis();
-        }
-
-        if (dcContext.getChat(chatId).isDeviceTalk()) {
-            // currently, we just never notify on device chat.
-            // esp. on first start, this is annoying.
-            return;
-        }
-
-        addMessageToNotificationState(dcContext, chatId, messageId);
-        synchronized (lock) {
-            if (notificationState.hasMultipleChats()) {
-                sendMultipleChatNotification(appContext, notificationState, signal);
-            } else {
-                sendSingleChatNotification(appContext, notificationState, signal, false);
-            }
+    void postNotifications(@NonNull Set<Integer> changedChats, boolean signal) {
+        // no bundled notifications before api 23, only the summary is posted
+        if (notificationState.hasMultipleChats()) {
+            sendMultipleChatNotification(appContext, notificationState, signal);
+        } else {
+            sendSingleChatNotification(appContext, notificationState, signal, false);
         }
     }
 
@@ -70,11 +57,7 @@ class MessageNotifierPreApi23 extends MessageNotifier {
     private void recreateSummaryNotification() {
         cancelNotifications();
         synchronized (lock) {
-            if (notificationState.hasMultipleChats()) {
-                sendMultipleChatNotification(appContext, notificationState, false);
-            } else {
-                sendSingleChatNotification(appContext, notificationState, false, false);
-            }
+            postNotifications(Collections.emptySet(), false);
         }
     }
 }
@@ -4,6 +4,7 @@ import android.app.Notification;
 import android.app.PendingIntent;
 import android.content.Context;
 import android.content.Intent;
+import android.graphics.Bitmap;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
@@ -61,6 +62,11 @@ public class MultipleRecipientNotificationBuilder extends AbstractNotificationBu
     if (privacy.isDisplayContact()) {
       setContentText(context.getString(R.string.notify_most_recent_from,
                                        recipient.toShortString()));
+
+      Bitmap avatar = NotificationBitmapCache.getAvatar(context, recipient);
+      if (avatar != null) {
+        setLargeIcon(avatar);
+      }
     }
   }
 
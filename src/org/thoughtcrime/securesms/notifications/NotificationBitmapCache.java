@@ -0,0 +1,184 @@
+package org.thoughtcrime.securesms.notifications;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.drawable.Drawable;
+import android.net.Uri;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import android.util.Log;
+
+import com.bumptech.glide.load.engine.DiskCacheStrategy;
+
+import org.thoughtcrime.securesms.contacts.avatars.ContactPhoto;
+import org.thoughtcrime.securesms.contacts.avatars.GeneratedContactPhoto;
+import org.thoughtcrime.securesms.contacts.avatars.LocalFileContactPhoto;
+import org.thoughtcrime.securesms.mms.DecryptableStreamUriLoader;
+import org.thoughtcrime.securesms.mms.GlideApp;
+import org.thoughtcrime.securesms.mms.Slide;
+import org.thoughtcrime.securesms.preferences.widgets.NotificationPrivacyPreference;
+import org.thoughtcrime.securesms.recipients.Recipient;
+import org.thoughtcrime.securesms.util.BitmapUtil;
+import org.thoughtcrime.securesms.util.LRUCache;
+import org.thoughtcrime.securesms.util.MemoryPressureManager;
+import org.thoughtcrime.securesms.util.ThemeUtil;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Caches the avatars and big pictures shown in notifications,
+ * so that rebuilding a notification does not load and render them again.
+ * Avatars are keyed by their file and its modification time, big pictures by the message id.
+ */
+class NotificationBitmapCache {
+
+  private static final String TAG = NotificationBitmapCache.class.getSimpleName();
+
+  private static final int MAX_AVATARS      = 32;
+  private static final int MAX_BIG_PICTURES = 4;
+
+  static final int BIG_PICTURE_SIZE = 500;
+
+  private static final Map<String, Bitmap> avatars     = Collections.synchronizedMap(new LRUCache<>(MAX_AVATARS));
+  private static final Map<String, Bitmap> bigPictures = Collections.synchronizedMap(new LRUCache<>(MAX_BIG_PICTURES));
+
+  // held here, the memory pressure manager references caches weakly only
+  private static final MemoryPressureManager.TrimmableCache trimmable = new MemoryPressureManager.TrimmableCache() {
+    @Override
+    public void trimMemory(int level) {
+      // bitmaps of posted notifications are kept by the system, they are not recycled here
+      avatars.clear();
+      bigPictures.clear();
+    }
+
+    @Override
+    public @NonNull String getFootprint() {
+      return (getByteCount(avatars) + getByteCount(bigPictures)) / 1024 + "KB in " + (avatars.size() + bigPictures.size()) + " bitmaps";
+    }
+  };
+
+  static {
+    MemoryPressureManager.register(trimmable, "notificationBitmaps", MemoryPressureManager.Priority.MEDIUM);
+  }
+
+  private static long getByteCount(@NonNull Map<String, Bitmap> bitmaps) {
+    long byteCount = 0;
+    synchronized (bitmaps) {
+      for (Bitmap bitmap : bitmaps.values()) {
+        byteCount += bitmap.getByteCount();
+      }
+    }
+    return byteCount;
+  }
+
+  /**
+   * Loads the bitmaps a notification for the given chat would need, to be called from a background thread
+   * before the notification is built.
+   */
+  static void prewarm(@NonNull Context context,
+                      @NonNull NotificationPrivacyPreference privacy,
+                      @NonNull Recipient chatRecipient,
+                      @NonNull Recipient individualRecipient,
+                      @Nullable Slide thumbnailSlide)
+  {
+    if (privacy.isDisplayContact()) {
+      getAvatar(context, chatRecipient);        // single-chat notifications
+      getAvatar(context, individualRecipient);  // summary notification
+    } else {
+      getUnknownAvatar(context);
+    }
+
+    if (privacy.isDisplayMessage() && thumbnailSlide != null && thumbnailSlide.getThumbnailUri() != null) {
+      getBigPicture(context, thumbnailSlide);
+    }
+  }
+
+  static @Nullable Bitmap getAvatar(@NonNull Context context, @NonNull Recipient recipient) {
+    ContactPhoto contactPhoto = recipient.getContactPhoto(context);
+    String       key;
+
+    if (contactPhoto instanceof LocalFileContactPhoto) {
+      File file = new File(((LocalFileContactPhoto) contactPhoto).getPath(context));
+      key = "photo:" + file.getAbsolutePath() + ":" + file.lastModified();
+    } else {
+      key = "fallback:" + recipient.getName() + ":" + recipient.getFallbackAvatarColor(context);
+    }
+
+    Bitmap bitmap = avatars.get(key);
+    if (bitmap == null) {
+      bitmap = loadAvatar(context, recipient, contactPhoto);
+      if (bitmap != null) {
+        avatars.put(key, bitmap);
+      }
+    }
+    return bitmap;
+  }
+
+  static @Nullable Bitmap getUnknownAvatar(@NonNull Context context) {
+    String key    = "unknown:" + ThemeUtil.getDummyContactColor(context);
+    Bitmap bitmap = avatars.get(key);
+    if (bitmap == null) {
+      bitmap = renderDrawable(context, new GeneratedContactPhoto("Unknown").asDrawable(context, ThemeUtil.getDummyContactColor(context)));
+      if (bitmap != null) {
+        avatars.put(key, bitmap);
+      }
+    }
+    return bitmap;
+  }
+
+  static @NonNull Bitmap getBigPicture(@NonNull Context context, @NonNull Slide thumbnailSlide) {
+    Uri    uri    = thumbnailSlide.getThumbnailUri();
+    String key    = thumbnailSlide.getDcMsgId() != 0 ? "msg:" + thumbnailSlide.getDcMsgId() : "uri:" + uri;
+    Bitmap bitmap = bigPictures.get(key);
+
+    if (bitmap == null) {
+      try {
+        bitmap = GlideApp.with(context.getApplicationContext())
+                         .asBitmap()
+                         .load(new DecryptableStreamUriLoader.DecryptableUri(uri))
+                         .diskCacheStrategy(DiskCacheStrategy.NONE)
+                         .submit(BIG_PICTURE_SIZE, BIG_PICTURE_SIZE)
+                         .get();
+        bigPictures.put(key, bitmap);
+      } catch (Exception e) {
+        Log.w(TAG, e);
+        return Bitmap.createBitmap(BIG_PICTURE_SIZE, BIG_PICTURE_SIZE, Bitmap.Config.RGB_565);
+      }
+    }
+    return bitmap;
+  }
+
+  private static @Nullable Bitmap loadAvatar(@NonNull Context context, @NonNull Recipient recipient, @Nullable ContactPhoto contactPhoto) {
+    if (contactPhoto != null) {
+      try {
+        return GlideApp.with(context.getApplicationContext())
+                       .asBitmap()
+                       .load(contactPhoto)
+                       .diskCacheStrategy(DiskCacheStrategy.NONE)
+                       .circleCrop()
+                       .submit(getIconWidth(context), getIconHeight(context))
+                       .get();
+      } catch (Exception e) {
+        Log.w(TAG, e);
+      }
+    }
+    return renderDrawable(context, recipient.getFallbackContactPhoto().asDrawable(context, recipient.getFallbackAvatarColor(context)));
+  }
+
+  private static @Nullable Bitmap renderDrawable(@NonNull Context context, @Nullable Drawable drawable) {
+    if (drawable == null) {
+      return null;
+    }
+    return BitmapUtil.createFromDrawable(drawable, getIconWidth(context), getIconHeight(context));
+  }
+
+  private static int getIconWidth(@NonNull Context context) {
+    return context.getResources().getDimensionPixelSize(android.R.dimen.notification_large_icon_width);
+  }
+
+  private static int getIconHeight(@NonNull Context context) {
+    return context.getResources().getDimensionPixelSize(android.R.dimen.notification_large_icon_height);
+  }
+}
@@ -0,0 +1,167 @@
+package org.thoughtcrime.securesms.notifications;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.SystemClock;
+import androidx.annotation.NonNull;
+import android.text.TextUtils;
+import android.util.Log;
+
+import org.thoughtcrime.securesms.util.LRUCache;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Traces the time from the core emitting DC_EVENT_INCOMING_MSG until the notification is posted.
+ * The last MAX_SAMPLES durations of each span are persisted and summarized in the log view.
+ */
+public class NotificationLatency {
+
+  private static final String TAG = NotificationLatency.class.getSimpleName();
+
+  private static final String PREFS_NAME  = "notification_latency";
+  private static final int    MAX_TRACES  = 100; // traces of messages that are never notified are dropped eventually
+  private static final int    MAX_SAMPLES = 128;
+  private static final int    SAVE_EVERY  = 16;
+
+  // stamps of a trace, in the order they are reached
+  public  static final int EMITTED        = 0; // event emitted by the core
+  public  static final int DISPATCHED     = 1; // event delivered by the event center
+          static final int STARTED        = 2; // notifier running on its background thread
+          static final int CHECKED        = 3; // preferences and chat checked
+          static final int ITEM_BUILT     = 4; // message loaded and recipients built
+          static final int BITMAPS_LOADED = 5; // avatar and picture loaded
+          static final int FLUSH_STARTED  = 6; // coalesced update started
+          static final int BUILT          = 7; // notifications of the update built
+          static final int POSTED         = 8; // NotificationManager.notify() returned for all of them
+
+  // span i ends at stamp i and starts at stamp i-1, span 0 is the total
+  private static final String[] SPAN_NAMES = { "total", "eventCenter", "workerQueue", "prefs", "recipients", "bitmaps", "coalesce", "build", "notify" };
+
+  private static final Map<Integer, long[]> traces = Collections.synchronizedMap(new LRUCache<>(MAX_TRACES));
+
+  private static ArrayDeque<Integer>[] samples = null; // guarded by NotificationLatency.class, loaded on first use
+  private static int                   unsaved = 0;
+
+  public static void mark(int msgId, int stamp) {
+    long now = SystemClock.elapsedRealtime();
+    synchronized (traces) {
+      long[] trace = traces.get(msgId);
+      if (trace == null) {
+        if (stamp != EMITTED) {
+          return; // not traced, eg. on rebuild
+        }
+        trace = new long[POSTED + 1];
+        traces.put(msgId, trace);
+      }
+      trace[stamp] = now;
+    }
+  }
+
+  static void mark(@NonNull Collection<Integer> msgIds, int stamp) {
+    for (int msgId : msgIds) {
+      mark(msgId, stamp);
+    }
+  }
+
+  static void finish(@NonNull Context context, @NonNull Collection<Integer> msgIds) {
+    mark(msgIds, POSTED);
+    for (int msgId : msgIds) {
+      long[] trace = traces.remove(msgId);
+      if (trace != null) {
+        addTrace(context, msgId, trace);
+      }
+    }
+  }
+
+  private static synchronized void addTrace(@NonNull Context context, int msgId, @NonNull long[] trace) {
+    loadSamples(context);
+
+    // stamps not reached on the way count as zero-length spans
+    for (int i = 1; i < trace.length; i++) {
+      if (trace[i] == 0) trace[i] = trace[i - 1];
+    }
+
+    StringBuilder spans = new StringBuilder();
+    for (int span = 0; span < SPAN_NAMES.length; span++) {
+      int duration = (int) (span == 0 ? trace[POSTED] - trace[EMITTED] : trace[span] - trace[span - 1]);
+      samples[span].addLast(duration);
+      if (samples[span].size() > MAX_SAMPLES) {
+        samples[span].removeFirst();
+      }
+      spans.append(span == 0 ? "" : " ").append(SPAN_NAMES[span]).append("=").append(duration);
+    }
+    Log.i(TAG, "msg " + msgId + " notified, ms: " + spans);
+
+    if (++unsaved >= SAVE_EVERY) {
+      saveSamples(context);
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private static void loadSamples(@NonNull Context context) {
+    if (samples != null) {
+      return;
+    }
+
+    SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    samples = new ArrayDeque[SPAN_NAMES.length];
+    for (int span = 0; span < SPAN_NAMES.length; span++) {
+      samples[span] = new ArrayDeque<>();
+      String stored = prefs.getString(SPAN_NAMES[span], "");
+      if (!stored.isEmpty()) {
+        try {
+          for (String value : stored.split(",")) {
+            samples[span].addLast(Integer.parseInt(value));
+          }
+        } catch (NumberFormatException e) {
+          Log.w(TAG, e);
+          samples[span].clear();
+        }
+      }
+    }
+  }
+
+  private static void saveSamples(@NonNull Context context) {
+    SharedPreferences.Editor editor = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE).edit();
+    for (int span = 0; span < SPAN_NAMES.length; span++) {
+      editor.putString(SPAN_NAMES[span], TextUtils.join(",", samples[span]));
+    }
+    editor.apply();
+    unsaved = 0;
+  }
+
+  public static synchronized @NonNull String getInfo(@NonNull Context context) {
+    loadSamples(context);
+
+    StringBuilder builder = new StringBuilder();
+    builder.append("notificationLatency: messages=").append(samples[0].size()).append("\n");
+    for (int span = 0; span < SPAN_NAMES.length; span++) {
+      if (samples[span].isEmpty()) {
+        continue;
+      }
+      int[] sorted = new int[samples[span].size()];
+      int   i      = 0;
+      for (int value : samples[span]) {
+        sorted[i++] = value;
+      }
+      Arrays.sort(sorted);
+
+      builder.append("  ").append(SPAN_NAMES[span]).append(":")
+             .append(" p50=").append(percentile(sorted, 50)).append("ms")
+             .append(" p90=").append(percentile(sorted, 90)).append("ms")
+             .append(" p99=").append(percentile(sorted, 99)).append("ms")
+             .append(" max=").append(sorted[sorted.length - 1]).append("ms\n");
+    }
+    return builder.toString();
+  }
+
+  private static int percentile(@NonNull int[] sorted, int percent) {
+    int index = (int) Math.ceil(percent / 100.0 * sorted.length) - 1;
+    return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+  }
+}
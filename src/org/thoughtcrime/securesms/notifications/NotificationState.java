@@ -12,48 +12,88 @@ import org.thoughtcrime.securesms.recipients.Recipient;
 import org.thoughtcrime.securesms.util.Prefs;
 import org.thoughtcrime.securesms.util.Prefs.VibrateState;
 
-import java.util.Iterator;
-import java.util.LinkedHashSet;
-import java.util.LinkedList;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Set;
 
 import static org.thoughtcrime.securesms.notifications.MessageNotifierCompat.SUMMARY_NOTIFICATION_ID;
 
+/**
+ * The pending notification items, kept per chat with the newest item first.
+ * Chats are indexed in the order of their latest item, the most recent chat last.
+ * Only the newest MAX_ITEMS_PER_CHAT items of a chat are retained, however, all are counted.
+ */
 public class NotificationState {
 
-  private final LinkedList<NotificationItem> notifications = new LinkedList<>();
-  private final LinkedHashSet<Integer>       chats         = new LinkedHashSet<>();
+  private static final int MAX_ITEMS_PER_CHAT = 50;
 
-  private int notificationCount = 0;
+  private final LinkedHashMap<Integer, ChatItems> chats = new LinkedHashMap<>();
+
+  private int                    notificationCount = 0;
+  private long                   nextSequence      = 0;
+  private List<NotificationItem> notifications     = null; // all retained items, newest first; built on demand
 
   NotificationState() {}
 
-  NotificationState(@NonNull List<NotificationItem> items) {
-    for (NotificationItem item : items) {
-      addNotification(item);
-    }
+  private NotificationState(int chatId, @NonNull ChatItems chatItems) {
+    chats.put(chatId, chatItems);
+    notificationCount = chatItems.count;
   }
 
   public void reset() {
     notificationCount = 0;
-    notifications.clear();
     chats.clear();
+    notifications = null;
   }
 
   void addNotification(NotificationItem item) {
-    notifications.addFirst(item);
+    // remove and put again to move the chat to the end of the index
+    ChatItems chatItems = chats.remove(item.getChatId());
+    if (chatItems == null) {
+      chatItems = new ChatItems();
+    }
+    chats.put(item.getChatId(), chatItems);
 
-    if (chats.contains(item.getChatId())) {
-      chats.remove(item.getChatId());
+    chatItems.items.addFirst(item);
+    chatItems.sequences.addFirst(nextSequence++);
+    if (chatItems.items.size() > MAX_ITEMS_PER_CHAT) {
+      chatItems.items.removeLast();
+      chatItems.sequences.removeLast();
     }
+    chatItems.count++;
 
-    chats.add(item.getChatId());
     notificationCount++;
+    notifications = null;
+  }
+
+  boolean containsNotification(int chatId, int msgId) {
+    ChatItems chatItems = chats.get(chatId);
+    if (chatItems != null) {
+      for (NotificationItem item : chatItems.items) {
+        if (item.getId() == msgId) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  private @Nullable NotificationItem getNewestItem() {
+    ChatItems newestChat = null;
+    for (ChatItems chatItems : chats.values()) {
+      newestChat = chatItems; // the most recent chat is the last one
+    }
+    return newestChat != null ? newestChat.items.peekFirst() : null;
   }
 
   @Nullable Uri getRingtone(Context context) {
-    if (!notifications.isEmpty()) {
-      Recipient recipient = notifications.iterator().next().getRecipient();
+    NotificationItem newestItem = getNewestItem();
+    if (newestItem != null) {
+      Recipient recipient = newestItem.getRecipient();
       if (recipient.getAddress().isDcChat()) {
         return Prefs.getChatRingtone(context, recipient.getAddress().getDcChatId());
       }
@@ -63,8 +103,9 @@ public class NotificationState {
   }
 
   VibrateState getVibrate(Context context) {
-    if (!notifications.isEmpty()) {
-      Recipient recipient = notifications.iterator().next().getRecipient();
+    NotificationItem newestItem = getNewestItem();
+    if (newestItem != null) {
+      Recipient recipient = newestItem.getRecipient();
 
       if (recipient.getAddress().isDcChat()) {
         return Prefs.getChatVibrate(context, recipient.getAddress().getDcChatId());
@@ -78,8 +119,8 @@ public class NotificationState {
     return chats.size() > 1;
   }
 
-  public LinkedHashSet<Integer> getChats() {
-    return chats;
+  public Set<Integer> getChats() {
+    return chats.keySet();
   }
 
   int getChatCount() {
@@ -90,32 +131,52 @@ public class NotificationState {
     return notificationCount;
   }
 
+  /**
+   * @return all retained items, newest first
+   */
   public List<NotificationItem> getNotifications() {
+    if (notifications == null) {
+      // merge the per-chat lists by their sequence numbers
+      ArrayList<NotificationItem> merged = new ArrayList<>();
+      ArrayList<Long>             mergedSequences = new ArrayList<>();
+      for (ChatItems chatItems : chats.values()) {
+        merged.addAll(chatItems.items);
+        mergedSequences.addAll(chatItems.sequences);
+      }
+      Integer[] order = new Integer[merged.size()];
+      for (int i = 0; i < order.length; i++) {
+        order[i] = i;
+      }
+      Arrays.sort(order, (a, b) -> Long.compare(mergedSequences.get(b), mergedSequences.get(a)));
+
+      ArrayList<NotificationItem> sorted = new ArrayList<>(order.length);
+      for (Integer i : order) {
+        sorted.add(merged.get(i));
+      }
+      notifications = Collections.unmodifiableList(sorted);
+    }
     return notifications;
   }
 
-  List<NotificationItem> getNotificationsForChat(int chatId) {
-    LinkedList<NotificationItem> list = new LinkedList<>();
-
-    for (NotificationItem item : notifications) {
-      if (item.getChatId() == chatId) list.addFirst(item);
+  /**
+   * @return a state containing only the given chat, with the chat's full message count
+   */
+  NotificationState getStateForChat(int chatId) {
+    ChatItems chatItems = chats.get(chatId);
+    if (chatItems == null) {
+      return new NotificationState();
     }
-
-    return list;
+    return new NotificationState(chatId, chatItems.copy());
   }
 
-   List<NotificationItem> removeNotificationsForChat(int chatId) {
-    LinkedList<NotificationItem> removedItems = new LinkedList<>();
-    chats.remove(chatId);
-    for (Iterator<NotificationItem> it = notifications.iterator(); it.hasNext();) {
-      NotificationItem item = it.next();
-      if (item.getChatId() == chatId) {
-        removedItems.add(item);
-        it.remove();
-      }
+  List<NotificationItem> removeNotificationsForChat(int chatId) {
+    ChatItems chatItems = chats.remove(chatId);
+    if (chatItems == null) {
+      return Collections.emptyList();
     }
-    notificationCount -= removedItems.size();
-    return removedItems;
+    notificationCount -= chatItems.count;
+    notifications = null;
+    return new ArrayList<>(chatItems.items);
   }
 
   PendingIntent getMarkAsReadIntent(Context context, int chatId,  int notificationId) {
@@ -123,7 +184,7 @@ public class NotificationState {
     int[] chatArray;
     if (notificationId == SUMMARY_NOTIFICATION_ID) {
       chatArray = new int[chats.size()];
-      for (int chat : chats) {
+      for (int chat : chats.keySet()) {
         Log.w("NotificationState", "Added chat: " + chat);
         chatArray[index++] = chat;
       }
@@ -152,5 +213,17 @@ public class NotificationState {
     return PendingIntent.getBroadcast(context, 0, intent, PendingIntent.FLAG_UPDATE_CURRENT);
   }
 
-
+  private static class ChatItems {
+    final ArrayDeque<NotificationItem> items     = new ArrayDeque<>(); // newest first
+    final ArrayDeque<Long>             sequences = new ArrayDeque<>(); // insertion order of the items
+    int                                count     = 0;                  // including items no longer retained
+
+    ChatItems copy() {
+      ChatItems copy = new ChatItems();
+      copy.items.addAll(items);
+      copy.sequences.addAll(sequences);
+      copy.count = count;
+      return copy;
+    }
+  }
 }
@@ -4,8 +4,6 @@ import android.app.Notification;
 import android.app.PendingIntent;
 import android.content.Context;
 import android.graphics.Bitmap;
-import android.graphics.drawable.Drawable;
-import android.net.Uri;
 import android.os.Build;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
@@ -13,28 +11,17 @@ import androidx.core.app.NotificationCompat;
 import androidx.core.app.NotificationCompat.Action;
 import androidx.core.app.RemoteInput;
 import android.text.SpannableStringBuilder;
-import android.util.Log;
-
-import com.bumptech.glide.load.engine.DiskCacheStrategy;
 
 import org.thoughtcrime.securesms.R;
-import org.thoughtcrime.securesms.contacts.avatars.ContactPhoto;
-import org.thoughtcrime.securesms.contacts.avatars.FallbackContactPhoto;
-import org.thoughtcrime.securesms.contacts.avatars.GeneratedContactPhoto;
-import org.thoughtcrime.securesms.mms.DecryptableStreamUriLoader;
-import org.thoughtcrime.securesms.mms.GlideApp;
 import org.thoughtcrime.securesms.mms.Slide;
 import org.thoughtcrime.securesms.mms.SlideDeck;
 import org.thoughtcrime.securesms.preferences.widgets.NotificationPrivacyPreference;
 import org.thoughtcrime.securesms.recipients.Recipient;
-import org.thoughtcrime.securesms.util.BitmapUtil;
 import org.thoughtcrime.securesms.util.Prefs;
-import org.thoughtcrime.securesms.util.ThemeUtil;
 import org.thoughtcrime.securesms.util.Util;
 
 import java.util.LinkedList;
 import java.util.List;
-import java.util.concurrent.ExecutionException;
 
 public class SingleRecipientNotificationBuilder extends AbstractNotificationBuilder {
 
@@ -64,29 +51,10 @@ public class SingleRecipientNotificationBuilder extends AbstractNotificationBuil
         addPerson(recipient.getContactUri().toString());
       }
 
-      ContactPhoto         contactPhoto         = recipient.getContactPhoto(context);
-      FallbackContactPhoto fallbackContactPhoto = recipient.getFallbackContactPhoto();
-
-      if (contactPhoto != null) {
-        try {
-          setLargeIcon(GlideApp.with(context.getApplicationContext())
-                               .load(contactPhoto)
-                               .diskCacheStrategy(DiskCacheStrategy.NONE)
-                               .circleCrop()
-                               .submit(context.getResources().getDimensionPixelSize(android.R.dimen.notification_large_icon_width),
-                                       context.getResources().getDimensionPixelSize(android.R.dimen.notification_large_icon_height))
-                               .get());
-        } catch (Exception e) {
-          Log.w(TAG, e);
-          setLargeIcon(fallbackContactPhoto.asDrawable(context, recipient.getFallbackAvatarColor(context)));
-        }
-      } else {
-        setLargeIcon(fallbackContactPhoto.asDrawable(context, recipient.getFallbackAvatarColor(context)));
-      }
-
+      setLargeIcon(NotificationBitmapCache.getAvatar(context, recipient));
     } else {
       setContentTitle(context.getString(R.string.app_name));
-      setLargeIcon(new GeneratedContactPhoto("Unknown").asDrawable(context, ThemeUtil.getDummyContactColor(context)));
+      setLargeIcon(NotificationBitmapCache.getUnknownAvatar(context));
     }
   }
 
@@ -183,15 +151,9 @@ public class SingleRecipientNotificationBuilder extends AbstractNotificationBuil
     return super.build();
   }
 
-  private void setLargeIcon(@Nullable Drawable drawable) {
-    if (drawable != null) {
-      int    largeIconTargetSize  = context.getResources().getDimensionPixelSize(R.dimen.contact_photo_target_size);
-      Bitmap recipientPhotoBitmap = BitmapUtil.createFromDrawable(drawable, largeIconTargetSize, largeIconTargetSize);
-
-      if (recipientPhotoBitmap != null) {
-        setLargeIcon(recipientPhotoBitmap);
-      }
-    }
+  @Override
+  public NotificationCompat.Builder setLargeIcon(@Nullable Bitmap icon) {
+    return icon != null ? super.setLargeIcon(icon) : this;
   }
 
   private boolean hasBigPictureSlide(@Nullable SlideDeck slideDeck) {
@@ -206,22 +168,10 @@ public class SingleRecipientNotificationBuilder extends AbstractNotificationBuil
            thumbnailSlide.getThumbnailUri() != null;
   }
 
+  @SuppressWarnings("ConstantConditions")
   private Bitmap getBigPicture(@NonNull SlideDeck slideDeck)
   {
-    try {
-      @SuppressWarnings("ConstantConditions")
-      Uri uri = slideDeck.getThumbnailSlide().getThumbnailUri();
-
-      return GlideApp.with(context.getApplicationContext())
-                     .asBitmap()
-                     .load(new DecryptableStreamUriLoader.DecryptableUri(uri))
-                     .diskCacheStrategy(DiskCacheStrategy.NONE)
-                     .submit(500, 500)
-                     .get();
-    } catch (InterruptedException | ExecutionException e) {
-      Log.w(TAG, e);
-      return Bitmap.createBitmap(500, 500, Bitmap.Config.RGB_565);
-    }
+    return NotificationBitmapCache.getBigPicture(context, slideDeck.getThumbnailSlide());
   }
 
   @Override
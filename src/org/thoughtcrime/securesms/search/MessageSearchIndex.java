@@ -0,0 +1,1183 @@
+package org.thoughtcrime.securesms.search;
+
+import android.content.Context;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.b44t.messenger.DcChat;
+import com.b44t.messenger.DcChatlist;
+import com.b44t.messenger.DcContact;
+import com.b44t.messenger.DcContext;
+import com.b44t.messenger.DcMsg;
+
+import org.thoughtcrime.securesms.connect.ApplicationDcContext;
+import org.thoughtcrime.securesms.connect.DcHelper;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.BufferedInputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+
+/**
+ * App-side inverted index to speed up the search of messages.
+ *
+ * Message texts are split into words, folded to lower case and stripped from diacritics;
+ * the index maps each word and each sender to the sorted ids of the messages.
+ * The index only narrows down the messages to look at: the candidates are checked against the query
+ * and the visibility rules of DcContext.searchMsgs() before they are returned,
+ * so the results are those of searchMsgs(), which is used if the index cannot narrow down enough.
+ * The chat, sender and sort timestamp of each message are stored as well,
+ * so that most candidates are checked without loading them from the core.
+ *
+ * The compacted index is a memory-mapped file in the files dir;
+ * changes since the last compaction are held in memory and appended to a journal,
+ * so they survive a process restart. All changes are done on a single background thread.
+ */
+public class MessageSearchIndex {
+
+  private static final String TAG = MessageSearchIndex.class.getSimpleName();
+
+  private static final String  INDEX_FILE            = "search-index.bin";
+  private static final String  JOURNAL_FILE          = "search-index.journal";
+  private static final int     MAGIC                 = 0x44435349; // "DCSI"
+  private static final int     VERSION               = 3;
+  private static final int     FLAG_BACKFILL_DONE    = 0x01;
+  private static final long    COMPACT_JOURNAL_BYTES = 512 * 1024;
+  private static final int     MSG_ID_LAST_SPECIAL   = 9;
+  private static final int     MAX_TOKEN_LENGTH      = 1024; // longer words are indexed by their beginning
+  private static final int     MIN_QUERY_LENGTH      = 3;    // shorter queries match too many words
+  private static final int     MAX_LOADS             = 1000; // loading more messages one by one is slower than searchMsgs()
+  private static final int     FINGERPRINT_MSGS      = 3;
+  private static final String  SENDER_PREFIX         = "\u0000"; // sender tokens, sorted before all words
+  private static final String  WORDS_START           = "\u0001";
+  private static final int     MSG_OUTGOING          = 0x01;
+  private static final int     MSG_PLAIN_TEXT        = 0x02; // ASCII only and no word cut, see isPlainText()
+  private static final Charset UTF8                  = Charset.forName("UTF-8");
+
+  private static final Pattern DIACRITICS = Pattern.compile("\\p{M}+");
+  private static final Pattern SEPARATORS = Pattern.compile("[^\\p{L}\\p{N}]+");
+
+  private static MessageSearchIndex instance;
+
+  public static synchronized @NonNull MessageSearchIndex getInstance(@NonNull Context context) {
+    if (instance == null) {
+      instance = new MessageSearchIndex(context.getApplicationContext());
+    }
+    return instance;
+  }
+
+  private final ApplicationDcContext dcContext;
+  private final File                 indexFile;
+  private final File                 journalFile;
+  private final ExecutorService      executor         = Executors.newSingleThreadExecutor();
+  private final AtomicInteger        changeCounter    = new AtomicInteger();
+  private volatile boolean           rebuildRequested = false;
+  private volatile boolean           importRunning    = false;
+
+  // compacted part, backed by the memory-mapped index file
+  private ByteBuffer mapped       = null;
+  private String[]   tokens       = new String[0]; // sorted
+  private int[]      offsets      = new int[0];    // position of the postings of tokens[i] in mapped
+  private MsgInfos   infos        = new MsgInfos(0);
+  private boolean    backfillDone = false;
+
+  // changes since the last compaction, also recorded in the journal
+  private final TreeMap<String, IntList> deltaTokens = new TreeMap<>();
+  private final TreeMap<Integer, MsgInfo> deltaInfos = new TreeMap<>();
+  private final Set<Integer>             removedIds  = new HashSet<>();
+  private BitSet                         indexedIds  = new BitSet();
+  private DataOutputStream               journal     = null;
+
+  // the newest indexed incoming messages and their timestamps, to recognize the database on loading
+  private TreeMap<Integer, Long> fingerprint = new TreeMap<>();
+
+  private MessageSearchIndex(@NonNull Context context) {
+    this.dcContext   = DcHelper.getContext(context);
+    this.indexFile   = new File(context.getFilesDir(), INDEX_FILE);
+    this.journalFile = new File(context.getFilesDir(), JOURNAL_FILE);
+
+    executor.execute(() -> {
+      Thread.currentThread().setPriority(Thread.MIN_PRIORITY);
+      load();
+      if (!isReady()) {
+        backfill();
+      }
+    });
+  }
+
+  /**
+   * @return true if all existing messages are indexed and lookup() can answer queries
+   */
+  public synchronized boolean isReady() {
+    return backfillDone;
+  }
+
+  /**
+   * @return a number that changes whenever messages are added, changed or deleted,
+   *         so that results of earlier searches can be dropped.
+   */
+  public int getChangeCounter() {
+    return changeCounter.get();
+  }
+
+  /**
+   * Called for new or changed messages; messages already indexed are skipped.
+   */
+  public void onMsgChanged(int msgId) {
+    changeCounter.incrementAndGet();
+    if (msgId > MSG_ID_LAST_SPECIAL) {
+      executor.execute(() -> indexMsg(msgId));
+    }
+  }
+
+  public void onMsgsDeleted(@NonNull int[] msgIds) {
+    changeCounter.incrementAndGet();
+    executor.execute(() -> {
+      synchronized (this) {
+        for (int msgId : msgIds) {
+          removedIds.add(msgId);
+          fingerprint.remove(msgId);
+          writeJournal(-msgId, null, null);
+        }
+      }
+    });
+  }
+
+  /**
+   * Drops the messages of a deleted chat; they are found in the index, so the core is not asked for them.
+   */
+  public void onChatDeleted(int chatId) {
+    changeCounter.incrementAndGet();
+    executor.execute(() -> {
+      synchronized (this) {
+        IntList msgIds = new IntList();
+        for (int i = 0; i < infos.size; i++) {
+          if (infos.chatIds[i] == chatId) {
+            msgIds.add(infos.msgIds[i]);
+          }
+        }
+        for (Map.Entry<Integer, MsgInfo> entry : deltaInfos.entrySet()) {
+          if (entry.getValue().chatId == chatId) {
+            msgIds.add(entry.getKey());
+          }
+        }
+        for (int msgId : msgIds.toSortedUniqueArray()) {
+          if (removedIds.add(msgId)) {
+            fingerprint.remove(msgId);
+            writeJournal(-msgId, null, null);
+          }
+        }
+      }
+    });
+  }
+
+  /**
+   * Called before a backup is imported; the imported database replaces the indexed messages.
+   */
+  public void onImportStarted() {
+    importRunning = true;
+  }
+
+  public void onImexProgress(int progress) {
+    // on errors, the database may be replaced partly, so it is rebuilt in any case
+    if (importRunning && (progress == 0 || progress == 1000)) {
+      importRunning = false;
+      rebuild();
+    }
+  }
+
+  /**
+   * Drops the index and builds it again from all messages.
+   */
+  public void rebuild() {
+    changeCounter.incrementAndGet();
+    rebuildRequested = true; // stops a running backfill
+    executor.execute(() -> {
+      rebuildRequested = false;
+      synchronized (this) {
+        reset();
+      }
+      Log.i(TAG, "rebuilding");
+      backfill();
+    });
+  }
+
+  /**
+   * Merges the in-memory changes into the index file, eg. when the app goes to background.
+   */
+  public void compact() {
+    executor.execute(() -> {
+      if (isReady() && (!deltaInfos.isEmpty() || !removedIds.isEmpty())) {
+        compactNow();
+      }
+    });
+  }
+
+  /**
+   * Looks up the candidates in the index and checks them as DcContext.searchMsgs() would:
+   * the text has to contain the query, ASCII characters compared case-insensitive,
+   * or the name of the sender has to start with the query; messages in blocked chats
+   * or contact requests, drafts and messages of blocked contacts are skipped.
+   *
+   * Unlike the core, the placeholder names stored for the special contacts, eg. for DC_CONTACT_ID_SELF,
+   * are not matched.
+   *
+   * @return ids of the matching messages, newest first,
+   *         or null if the index is not ready or the query has to be passed to searchMsgs().
+   */
+  public @Nullable int[] lookup(@NonNull String query) {
+    String needle = query.trim();
+    if (needle.isEmpty()) {
+      return new int[0];
+    }
+    if (needle.length() < MIN_QUERY_LENGTH || needle.indexOf('%') != -1 || needle.indexOf('_') != -1) {
+      return null;
+    }
+    List<String> segments = split(fold(needle));
+    if (segments.isEmpty()) {
+      return null;
+    }
+
+    long  start = System.currentTimeMillis();
+    int[] candidates;
+    int[] senders;
+    synchronized (this) {
+      if (!backfillDone) {
+        return null;
+      }
+      candidates = withoutRemoved(textCandidates(segments));
+      senders    = senders();
+    }
+
+    // the core matches the beginning of the name, only ordinary contacts have their real name in the database
+    Set<Integer> matchingSenders = new HashSet<>();
+    for (int contactId : senders) {
+      if (contactId > DcContact.DC_CONTACT_ID_LAST_SPECIAL
+       && startsWithIgnoreAsciiCase(dcContext.getContact(contactId).getName(), needle)) {
+        matchingSenders.add(contactId);
+      }
+    }
+    if (!matchingSenders.isEmpty()) {
+      synchronized (this) {
+        IntList ids = new IntList();
+        ids.addAll(candidates);
+        for (int contactId : matchingSenders) {
+          ids.addAll(exactPostings(SENDER_PREFIX + contactId));
+        }
+        candidates = withoutRemoved(ids.toSortedUniqueArray());
+      }
+    }
+
+    Set<Integer> visibleChats   = getVisibleChats();
+    Set<Integer> blockedSenders = new HashSet<>();
+    for (int contactId : dcContext.getBlockedContacts()) {
+      blockedSenders.add(contactId);
+    }
+
+    // most candidates are checked with what the index stores about them; a message is only loaded
+    // if its text has to be compared or if it is a contact request, these get a chat when accepted.
+    // the sort timestamp of an outgoing message is the one of indexing, the core may set it again on sending.
+    boolean      plainNeedle = segments.size() == 1 && isAsciiAlphanumeric(needle);
+    List<long[]> hits        = new ArrayList<>(); // sort timestamp and id
+    IntList      loads       = new IntList();
+    synchronized (this) {
+      for (int msgId : candidates) {
+        MsgInfo info = getMsgInfo(msgId);
+        if (info == null || info.chatId == DcChat.DC_CHAT_ID_DEADDROP) {
+          loads.add(msgId);
+        } else if (visibleChats.contains(info.chatId) && !blockedSenders.contains(info.fromId)) {
+          if (matchingSenders.contains(info.fromId) || (plainNeedle && (info.flags & MSG_PLAIN_TEXT) != 0)) {
+            hits.add(new long[]{info.timestamp, msgId});
+          } else {
+            loads.add(msgId);
+          }
+        }
+      }
+    }
+
+    if (loads.size() > MAX_LOADS) {
+      Log.i(TAG, "lookup: " + loads.size() + " of " + candidates.length + " candidates to load, passed to searchMsgs()");
+      return null;
+    }
+
+    IntList deleted = new IntList();
+    for (int msgId : loads.toSortedUniqueArray()) {
+      DcMsg msg = dcContext.getMsg(msgId);
+      if (msg.getId() == 0) {
+        deleted.add(msgId);
+      } else if (visibleChats.contains(msg.getChatId())
+              && msg.getState() != DcMsg.DC_STATE_OUT_DRAFT
+              && !blockedSenders.contains(msg.getFromId())
+              && (matchingSenders.contains(msg.getFromId()) || containsIgnoreAsciiCase(msg.getText(), needle))) {
+        hits.add(new long[]{msg.getSortTimestamp(), msgId});
+      }
+    }
+    if (deleted.size() > 0) {
+      // deleted eg. on another device
+      onMsgsDeleted(deleted.toSortedUniqueArray());
+    }
+
+    // newest first, as DcContext.searchMsgs()
+    Collections.sort(hits, (lhs, rhs) -> lhs[0] != rhs[0] ? Long.compare(rhs[0], lhs[0]) : Long.compare(rhs[1], lhs[1]));
+    int[] ret = new int[hits.size()];
+    for (int i = 0; i < ret.length; i++) {
+      ret[i] = (int) hits.get(i)[1];
+    }
+    Log.i(TAG, "lookup: " + candidates.length + " candidates, " + loads.size() + " loaded, " + ret.length + " hits in " + (System.currentTimeMillis() - start) + " ms");
+    return ret;
+  }
+
+  private @NonNull Set<Integer> getVisibleChats() {
+    // the chatlist leaves out blocked chats and contact requests, as searchMsgs() does
+    Set<Integer> ret = new HashSet<>();
+    for (int listflags : new int[]{0, DcContext.DC_GCL_ARCHIVED_ONLY}) {
+      DcChatlist chatlist = dcContext.getChatlist(listflags, null, 0);
+      for (int i = 0; i < chatlist.getCnt(); i++) {
+        int chatId = chatlist.getChatId(i);
+        if (chatId > DcChat.DC_CHAT_ID_LAST_SPECIAL) {
+          ret.add(chatId);
+        }
+      }
+    }
+    return ret;
+  }
+
+  public synchronized @NonNull String getInfo() {
+    return "searchIndex: tokens=" + tokens.length + " deltaTokens=" + deltaTokens.size()
+        + " messages=" + indexedIds.cardinality()
+        + " file=" + (indexFile.length() / 1024) + "KB journal=" + (journalFile.length() / 1024) + "KB"
+        + (backfillDone ? "" : " (backfill running)") + "\n";
+  }
+
+  /**
+   * A plain text has only ASCII characters and no word cut at MAX_TOKEN_LENGTH,
+   * so one of its folded words contains an alphanumeric ASCII query exactly if the text contains the query
+   * as compared by containsIgnoreAsciiCase(), and the text need not be checked.
+   */
+  private static boolean isPlainText(@Nullable String text) {
+    if (text == null) {
+      return true;
+    }
+    int wordLength = 0;
+    for (int i = 0; i < text.length(); i++) {
+      char c = text.charAt(i);
+      if (c >= 0x80) {
+        return false;
+      }
+      wordLength = Character.isLetterOrDigit(c) ? wordLength + 1 : 0;
+      if (wordLength >= MAX_TOKEN_LENGTH) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static boolean isAsciiAlphanumeric(@NonNull String text) {
+    for (int i = 0; i < text.length(); i++) {
+      char c = text.charAt(i);
+      if ((c < '0' || c > '9') && (c < 'a' || c > 'z') && (c < 'A' || c > 'Z')) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  static @NonNull Set<String> tokenize(@Nullable String text) {
+    Set<String> ret = new LinkedHashSet<>();
+    if (text == null || text.isEmpty()) {
+      return ret;
+    }
+    for (String token : split(fold(text))) {
+      ret.add(token.length() > MAX_TOKEN_LENGTH ? token.substring(0, MAX_TOKEN_LENGTH) : token);
+    }
+    return ret;
+  }
+
+  /**
+   * Strips diacritics and folds each character to lower case on its own,
+   * so that the folded query is contained in the folded text whenever the query is contained in the text.
+   */
+  private static @NonNull String fold(@NonNull String text) {
+    String stripped = DIACRITICS.matcher(Normalizer.normalize(text, Normalizer.Form.NFD)).replaceAll("");
+    StringBuilder builder = new StringBuilder(stripped.length());
+    for (int i = 0; i < stripped.length(); ) {
+      int codePoint = stripped.codePointAt(i);
+      builder.appendCodePoint(Character.toLowerCase(codePoint));
+      i += Character.charCount(codePoint);
+    }
+    return builder.toString();
+  }
+
+  private static @NonNull List<String> split(@NonNull String folded) {
+    List<String> ret = new ArrayList<>();
+    for (String word : SEPARATORS.split(folded)) {
+      if (!word.isEmpty()) {
+        ret.add(word);
+      }
+    }
+    return ret;
+  }
+
+  /**
+   * Same matching as SQLite's LIKE: ASCII characters are compared case-insensitive, all others exactly.
+   */
+  static boolean containsIgnoreAsciiCase(@Nullable String text, @NonNull String needle) {
+    if (text == null) {
+      return false;
+    }
+    int max = text.length() - needle.length();
+    for (int i = 0; i <= max; i++) {
+      if (regionMatchesIgnoreAsciiCase(text, i, needle)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  static boolean startsWithIgnoreAsciiCase(@Nullable String text, @NonNull String needle) {
+    return text != null && text.length() >= needle.length() && regionMatchesIgnoreAsciiCase(text, 0, needle);
+  }
+
+  private static boolean regionMatchesIgnoreAsciiCase(@NonNull String text, int offset, @NonNull String needle) {
+    for (int j = 0; j < needle.length(); j++) {
+      char a = text.charAt(offset + j);
+      char b = needle.charAt(j);
+      if (a != b && (a >= 0x80 || b >= 0x80 || Character.toLowerCase(a) != Character.toLowerCase(b))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /***********************************************************************************************
+   * Writing, called on the executor only
+   **********************************************************************************************/
+
+  private void backfill() {
+    long start = System.currentTimeMillis();
+    int cnt = 0;
+
+    // contact requests are indexed as well, they are searchable as soon as they are accepted
+    List<Integer> chatIds = new ArrayList<>();
+    chatIds.add(DcChat.DC_CHAT_ID_DEADDROP);
+    for (int listflags : new int[]{0, DcContext.DC_GCL_ARCHIVED_ONLY}) {
+      DcChatlist chatlist = dcContext.getChatlist(listflags, null, 0);
+      for (int i = 0; i < chatlist.getCnt(); i++) {
+        int chatId = chatlist.getChatId(i);
+        if (chatId > DcChat.DC_CHAT_ID_LAST_SPECIAL) {
+          chatIds.add(chatId);
+        }
+      }
+    }
+
+    for (int chatId : chatIds) {
+      for (int msgId : dcContext.getChatMsgs(chatId, 0, 0)) {
+        if (rebuildRequested) {
+          Log.i(TAG, "backfill stopped for rebuilding");
+          return;
+        }
+        if (msgId > MSG_ID_LAST_SPECIAL && indexMsg(msgId)) {
+          cnt++;
+        }
+      }
+    }
+
+    synchronized (this) {
+      backfillDone = true;
+    }
+    compactNow();
+    Log.i(TAG, "backfill indexed " + cnt + " messages in " + (System.currentTimeMillis() - start) + " ms");
+  }
+
+  private boolean indexMsg(int msgId) {
+    synchronized (this) {
+      if (indexedIds.get(msgId)) {
+        return false;
+      }
+    }
+
+    // same rules for new messages and the backfill: drafts change and are not searched,
+    // messages in the special chats, eg. of blocked contacts, are never shown
+    DcMsg msg    = dcContext.getMsg(msgId);
+    int   chatId = msg.getChatId();
+    if (msg.getId() == 0 || msg.getState() == DcMsg.DC_STATE_OUT_DRAFT
+     || (chatId <= DcChat.DC_CHAT_ID_LAST_SPECIAL && chatId != DcChat.DC_CHAT_ID_DEADDROP)) {
+      return false;
+    }
+
+    String      text      = msg.getText();
+    Set<String> msgTokens = tokenize(text);
+    msgTokens.add(SENDER_PREFIX + msg.getFromId());
+    MsgInfo info = new MsgInfo(chatId, msg.getFromId(), msg.getSortTimestamp(),
+        (msg.isOutgoing() ? MSG_OUTGOING : 0) | (isPlainText(text) ? MSG_PLAIN_TEXT : 0));
+
+    boolean compactionNeeded;
+    synchronized (this) {
+      addToDelta(msgId, info, msgTokens);
+      addToFingerprint(msgId, info);
+      writeJournal(msgId, info, msgTokens);
+      // during the backfill, the index is written once at the end and not again and again
+      compactionNeeded = backfillDone && journalFile.length() > COMPACT_JOURNAL_BYTES;
+    }
+    if (compactionNeeded) {
+      compactNow();
+    }
+    return true;
+  }
+
+  private void addToDelta(int msgId, @NonNull MsgInfo info, @NonNull Set<String> msgTokens) {
+    indexedIds.set(msgId);
+    deltaInfos.put(msgId, info);
+    for (String token : msgTokens) {
+      IntList ids = deltaTokens.get(token);
+      if (ids == null) {
+        deltaTokens.put(token, ids = new IntList());
+      }
+      ids.add(msgId);
+    }
+  }
+
+  private void addToFingerprint(int msgId, @NonNull MsgInfo info) {
+    // only incoming messages, the timestamps of outgoing ones may change on sending
+    if ((info.flags & MSG_OUTGOING) == 0) {
+      fingerprint.put(msgId, info.timestamp);
+      if (fingerprint.size() > FINGERPRINT_MSGS) {
+        fingerprint.remove(fingerprint.firstKey());
+      }
+    }
+  }
+
+  private @NonNull String getAddr() {
+    String addr = dcContext.getConfig("configured_addr");
+    return addr == null ? "" : addr;
+  }
+
+  /**
+   * @return false if the index was built from another database, eg. before a backup was imported
+   */
+  private boolean matchesDatabase(@NonNull String addr) {
+    if (!addr.equals(getAddr())) {
+      return false;
+    }
+    if (fingerprint.isEmpty()) {
+      return true;
+    }
+    int found = 0;
+    for (Map.Entry<Integer, Long> entry : fingerprint.entrySet()) {
+      DcMsg msg = dcContext.getMsg(entry.getKey());
+      if (msg.getId() != 0) {
+        if (msg.getSortTimestamp() != entry.getValue()) {
+          return false;
+        }
+        found++;
+      }
+    }
+    return found > 0;
+  }
+
+  // journal format: header with magic, version and address, then for each message:
+  // id, chat id, sender id, sort timestamp, flags, number of tokens and the tokens; for each removal: the negative id
+  private void writeJournal(int msgIdOrRemoval, @Nullable MsgInfo info, @Nullable Set<String> msgTokens) {
+    try {
+      if (journal == null) {
+        boolean header = journalFile.length() == 0;
+        journal = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(journalFile, true)));
+        if (header) {
+          journal.writeInt(MAGIC);
+          journal.writeInt(VERSION);
+          journal.writeUTF(getAddr());
+        }
+      }
+      journal.writeInt(msgIdOrRemoval);
+      if (info != null && msgTokens != null) {
+        journal.writeInt(info.chatId);
+        journal.writeInt(info.fromId);
+        journal.writeLong(info.timestamp);
+        journal.writeByte(info.flags);
+        journal.writeInt(msgTokens.size());
+        for (String token : msgTokens) {
+          journal.writeUTF(token);
+        }
+      }
+      journal.flush();
+    } catch (IOException e) {
+      Log.w(TAG, "cannot write journal", e);
+    }
+  }
+
+  private void closeJournal() {
+    if (journal != null) {
+      try {
+        journal.close();
+      } catch (IOException e) {
+        Log.w(TAG, "cannot close journal", e);
+      }
+      journal = null;
+    }
+  }
+
+  // must be called with the lock held
+  private void reset() {
+    closeJournal();
+    indexFile.delete();
+    journalFile.delete();
+    mapped = null;
+    tokens = new String[0];
+    offsets = new int[0];
+    infos = new MsgInfos(0);
+    backfillDone = false;
+    deltaTokens.clear();
+    deltaInfos.clear();
+    removedIds.clear();
+    indexedIds = new BitSet();
+    fingerprint = new TreeMap<>();
+  }
+
+  private synchronized void load() {
+    long start = System.currentTimeMillis();
+    try {
+      String addr = null;
+      if (indexFile.exists()) {
+        try (RandomAccessFile file = new RandomAccessFile(indexFile, "r")) {
+          Mapping mapping = map(file.getChannel());
+          apply(mapping);
+          addr = mapping.addr;
+        }
+      }
+
+      if (journalFile.exists()) {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(journalFile)))) {
+          if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+            throw new IOException("bad journal header");
+          }
+          String journalAddr = in.readUTF();
+          if (addr != null && !addr.equals(journalAddr)) {
+            throw new IOException("journal of another account");
+          }
+          addr = journalAddr;
+          readJournal(in);
+        } catch (EOFException e) {
+          // empty journal
+        }
+      }
+
+      if (addr != null && !matchesDatabase(addr)) {
+        throw new IOException("index of another database");
+      }
+    } catch (Exception e) {
+      Log.w(TAG, "cannot load index, rebuilding", e);
+      reset();
+    }
+    Log.i(TAG, "loaded in " + (System.currentTimeMillis() - start) + " ms, " + getInfo());
+  }
+
+  private void readJournal(DataInputStream in) throws IOException {
+    try {
+      while (true) {
+        int msgId = in.readInt();
+        if (msgId < 0) {
+          removedIds.add(-msgId);
+          fingerprint.remove(-msgId);
+        } else {
+          MsgInfo info = new MsgInfo(in.readInt(), in.readInt(), in.readLong(), in.readByte());
+          int cnt = in.readInt();
+          Set<String> msgTokens = new LinkedHashSet<>();
+          for (int i = 0; i < cnt; i++) {
+            msgTokens.add(in.readUTF());
+          }
+          addToDelta(msgId, info, msgTokens);
+          addToFingerprint(msgId, info);
+        }
+      }
+    } catch (EOFException e) {
+      // end of journal; a truncated last record is just skipped
+    }
+  }
+
+  /**
+   * What lookup() needs to know about a message to check it without loading it.
+   */
+  private static class MsgInfo {
+    final int  chatId;
+    final int  fromId;
+    final long timestamp; // sort timestamp
+    final int  flags;
+
+    MsgInfo(int chatId, int fromId, long timestamp, int flags) {
+      this.chatId    = chatId;
+      this.fromId    = fromId;
+      this.timestamp = timestamp;
+      this.flags     = flags;
+    }
+  }
+
+  /**
+   * The MsgInfo of the compacted messages as arrays sorted by message id, as there may be many.
+   */
+  private static class MsgInfos {
+    final int[]  msgIds;
+    final int[]  chatIds;
+    final int[]  fromIds;
+    final long[] timestamps;
+    final byte[] flags;
+    int          size;
+
+    MsgInfos(int capacity) {
+      msgIds     = new int[capacity];
+      chatIds    = new int[capacity];
+      fromIds    = new int[capacity];
+      timestamps = new long[capacity];
+      flags      = new byte[capacity];
+    }
+
+    void add(int msgId, int chatId, int fromId, long timestamp, int msgFlags) {
+      msgIds[size]     = msgId;
+      chatIds[size]    = chatId;
+      fromIds[size]    = fromId;
+      timestamps[size] = timestamp;
+      flags[size]      = (byte) msgFlags;
+      size++;
+    }
+
+    @Nullable MsgInfo get(int msgId) {
+      int i = Arrays.binarySearch(msgIds, 0, size, msgId);
+      return i < 0 ? null : new MsgInfo(chatIds[i], fromIds[i], timestamps[i], flags[i]);
+    }
+  }
+
+  /**
+   * A parsed index file, created without the lock held and swapped in with apply().
+   */
+  private static class Mapping {
+    ByteBuffer             buffer;
+    String                 addr;
+    boolean                backfillDone;
+    TreeMap<Integer, Long> fingerprint = new TreeMap<>();
+    BitSet                 indexedIds  = new BitSet();
+    MsgInfos               infos;
+    String[]               tokens;
+    int[]                  offsets;
+  }
+
+  // must be called with the lock held
+  private void apply(@NonNull Mapping mapping) {
+    mapped       = mapping.buffer;
+    tokens       = mapping.tokens;
+    offsets      = mapping.offsets;
+    indexedIds   = mapping.indexedIds;
+    infos        = mapping.infos;
+    fingerprint  = mapping.fingerprint;
+    backfillDone = mapping.backfillDone;
+  }
+
+  // file format: header, address, fingerprint, indexed messages in id order with the id as varint delta,
+  // chat id and sender id as varints, sort timestamp and flags, then for each token in sorted order:
+  // token length and utf-8 bytes, number of ids, byte length of the ids, ids as varint deltas
+  private static @NonNull Mapping map(@NonNull FileChannel channel) throws IOException {
+    Mapping mapping = new Mapping();
+    MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+      throw new IOException("bad header");
+    }
+    mapping.backfillDone = (buffer.getInt() & FLAG_BACKFILL_DONE) != 0;
+    int tokenCnt = buffer.getInt();
+    mapping.addr = readString(buffer);
+
+    int fingerprintCnt = buffer.getInt();
+    for (int i = 0; i < fingerprintCnt; i++) {
+      int msgId = buffer.getInt();
+      mapping.fingerprint.put(msgId, buffer.getLong());
+    }
+
+    int indexedCnt = buffer.getInt();
+    int indexedId = 0;
+    mapping.infos = new MsgInfos(indexedCnt);
+    for (int i = 0; i < indexedCnt; i++) {
+      indexedId += readVarint(buffer);
+      mapping.indexedIds.set(indexedId);
+      mapping.infos.add(indexedId, readVarint(buffer), readVarint(buffer), buffer.getLong(), buffer.get());
+    }
+
+    mapping.tokens = new String[tokenCnt];
+    mapping.offsets = new int[tokenCnt];
+    for (int i = 0; i < tokenCnt; i++) {
+      mapping.tokens[i] = readString(buffer);
+      mapping.offsets[i] = buffer.position();
+      buffer.getInt(); // number of ids
+      int byteLen = buffer.getInt();
+      buffer.position(buffer.position() + byteLen);
+    }
+
+    mapping.buffer = buffer;
+    return mapping;
+  }
+
+  private static @NonNull String readString(@NonNull ByteBuffer buffer) {
+    byte[] utf8 = new byte[buffer.getShort() & 0xFFFF];
+    buffer.get(utf8);
+    return new String(utf8, UTF8);
+  }
+
+  private static void writeString(@NonNull DataOutputStream out, @NonNull String value) throws IOException {
+    byte[] utf8 = value.getBytes(UTF8);
+    out.writeShort(utf8.length);
+    out.write(utf8);
+  }
+
+  private void compactNow() {
+    long start = System.currentTimeMillis();
+    File tempFile = new File(indexFile.getPath() + ".tmp");
+    Mapping mapping;
+
+    // only this thread changes the index, so the new file is written without the lock,
+    // lookup() goes on with the current state until the new one is swapped in.
+    try {
+      ArrayList<String> mergedTokens = new ArrayList<>(tokens.length + deltaTokens.size());
+      ArrayList<int[]> mergedIds = new ArrayList<>(tokens.length + deltaTokens.size());
+      int t = 0;
+      for (Map.Entry<String, IntList> delta : deltaTokens.entrySet()) {
+        while (t < tokens.length && tokens[t].compareTo(delta.getKey()) < 0) {
+          addMerged(mergedTokens, mergedIds, tokens[t], readPostings(t));
+          t++;
+        }
+        int[] ids = delta.getValue().toSortedUniqueArray();
+        if (t < tokens.length && tokens[t].equals(delta.getKey())) {
+          ids = union(readPostings(t), ids);
+          t++;
+        }
+        addMerged(mergedTokens, mergedIds, delta.getKey(), ids);
+      }
+      for (; t < tokens.length; t++) {
+        addMerged(mergedTokens, mergedIds, tokens[t], readPostings(t));
+      }
+
+      try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(backfillDone ? FLAG_BACKFILL_DONE : 0);
+        out.writeInt(mergedTokens.size());
+        writeString(out, getAddr());
+        out.writeInt(fingerprint.size());
+        for (Map.Entry<Integer, Long> entry : fingerprint.entrySet()) {
+          out.writeInt(entry.getKey());
+          out.writeLong(entry.getValue());
+        }
+        writeInfos(out);
+        ByteArrayOutputStream varints = new ByteArrayOutputStream();
+        for (int i = 0; i < mergedTokens.size(); i++) {
+          int[] ids = mergedIds.get(i);
+          varints.reset();
+          int prev = 0;
+          for (int id : ids) {
+            writeVarint(varints, id - prev);
+            prev = id;
+          }
+          writeString(out, mergedTokens.get(i));
+          out.writeInt(ids.length);
+          out.writeInt(varints.size());
+          varints.writeTo(out);
+        }
+      }
+
+      // the mapping stays valid when the file is renamed
+      try (RandomAccessFile file = new RandomAccessFile(tempFile, "r")) {
+        mapping = map(file.getChannel());
+      }
+    } catch (IOException e) {
+      Log.e(TAG, "compaction failed", e);
+      tempFile.delete();
+      return;
+    }
+
+    synchronized (this) {
+      closeJournal();
+      if (!tempFile.renameTo(indexFile)) {
+        Log.e(TAG, "cannot rename " + tempFile);
+        tempFile.delete();
+        return;
+      }
+      journalFile.delete();
+      deltaTokens.clear();
+      deltaInfos.clear();
+      removedIds.clear();
+      apply(mapping);
+    }
+    Log.i(TAG, "compacted in " + (System.currentTimeMillis() - start) + " ms, " + getInfo());
+  }
+
+  private void writeInfos(@NonNull DataOutputStream out) throws IOException {
+    // the compacted and the new messages merged in id order, without the removed ones
+    ByteArrayOutputStream  bytes   = new ByteArrayOutputStream();
+    DataOutputStream       records = new DataOutputStream(bytes);
+    Iterator<Map.Entry<Integer, MsgInfo>> delta = deltaInfos.entrySet().iterator();
+    Map.Entry<Integer, MsgInfo>           next  = delta.hasNext() ? delta.next() : null;
+    int i = 0, cnt = 0, prevId = 0;
+    while (i < infos.size || next != null) {
+      int     msgId;
+      MsgInfo info;
+      if (next == null || (i < infos.size && infos.msgIds[i] < next.getKey())) {
+        msgId = infos.msgIds[i];
+        info  = infos.get(msgId);
+        i++;
+      } else {
+        msgId = next.getKey();
+        info  = next.getValue();
+        next  = delta.hasNext() ? delta.next() : null;
+      }
+      if (!removedIds.contains(msgId)) {
+        writeVarint(bytes, msgId - prevId);
+        writeVarint(bytes, info.chatId);
+        writeVarint(bytes, info.fromId);
+        records.writeLong(info.timestamp);
+        records.writeByte(info.flags);
+        prevId = msgId;
+        cnt++;
+      }
+    }
+    out.writeInt(cnt);
+    bytes.writeTo(out);
+  }
+
+  private void addMerged(ArrayList<String> mergedTokens, ArrayList<int[]> mergedIds, String token, int[] ids) {
+    if (!removedIds.isEmpty()) {
+      IntList kept = new IntList();
+      for (int id : ids) {
+        if (!removedIds.contains(id)) {
+          kept.add(id);
+        }
+      }
+      ids = kept.toSortedUniqueArray();
+    }
+    if (ids.length > 0) {
+      mergedTokens.add(token);
+      mergedIds.add(ids);
+    }
+  }
+
+  private static void writeVarint(ByteArrayOutputStream out, int value) {
+    while ((value & ~0x7F) != 0) {
+      out.write((value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+    out.write(value);
+  }
+
+  /***********************************************************************************************
+   * Reading, must be called with the lock held
+   **********************************************************************************************/
+
+  private @Nullable MsgInfo getMsgInfo(int msgId) {
+    MsgInfo info = deltaInfos.get(msgId);
+    return info != null ? info : infos.get(msgId);
+  }
+
+  private int[] readPostings(int tokenIndex) {
+    ByteBuffer buffer = mapped.duplicate();
+    buffer.position(offsets[tokenIndex]);
+    int[] ids = new int[buffer.getInt()];
+    buffer.getInt(); // byte length
+    int prev = 0;
+    for (int i = 0; i < ids.length; i++) {
+      prev += readVarint(buffer);
+      ids[i] = prev;
+    }
+    return ids;
+  }
+
+  private static int readVarint(ByteBuffer buffer) {
+    int value = 0;
+    int shift = 0;
+    byte b;
+    do {
+      b = buffer.get();
+      value |= (b & 0x7F) << shift;
+      shift += 7;
+    } while ((b & 0x80) != 0);
+    return value;
+  }
+
+  /**
+   * @return the messages containing all words of the query; the inner words are whole words in the text,
+   *         the first and the last may be parts of words.
+   */
+  private int[] textCandidates(List<String> segments) {
+    int[] ret = null;
+    for (int i = 0; i < segments.size(); i++) {
+      String  segment = segments.get(i);
+      boolean inner   = i > 0 && i < segments.size() - 1 && segment.length() < MAX_TOKEN_LENGTH;
+      int[]   ids     = inner ? exactPostings(segment) : substringPostings(segment);
+      ret = ret == null ? ids : intersect(ret, ids);
+      if (ret.length == 0) {
+        break;
+      }
+    }
+    return ret;
+  }
+
+  private int[] exactPostings(String token) {
+    IntList ret = new IntList();
+
+    int i = Arrays.binarySearch(tokens, token);
+    if (i >= 0) {
+      ret.addAll(readPostings(i));
+    }
+
+    IntList ids = deltaTokens.get(token);
+    if (ids != null) {
+      ret.addAll(ids);
+    }
+
+    return ret.toSortedUniqueArray();
+  }
+
+  private int[] substringPostings(String segment) {
+    IntList ret = new IntList();
+
+    // words cut at MAX_TOKEN_LENGTH may contain the segment after the cut
+    for (int i = firstWordIndex(); i < tokens.length; i++) {
+      if (tokens[i].contains(segment) || tokens[i].length() >= MAX_TOKEN_LENGTH) {
+        ret.addAll(readPostings(i));
+      }
+    }
+
+    for (Map.Entry<String, IntList> entry : deltaTokens.tailMap(WORDS_START).entrySet()) {
+      if (entry.getKey().contains(segment) || entry.getKey().length() >= MAX_TOKEN_LENGTH) {
+        ret.addAll(entry.getValue());
+      }
+    }
+
+    return ret.toSortedUniqueArray();
+  }
+
+  private int[] withoutRemoved(int[] ids) {
+    if (removedIds.isEmpty()) {
+      return ids;
+    }
+    IntList ret = new IntList();
+    for (int id : ids) {
+      if (!removedIds.contains(id)) {
+        ret.add(id);
+      }
+    }
+    return ret.toSortedUniqueArray();
+  }
+
+  private int firstWordIndex() {
+    int i = Arrays.binarySearch(tokens, WORDS_START);
+    return i < 0 ? -i - 1 : i;
+  }
+
+  private int[] senders() {
+    Set<Integer> ret = new HashSet<>();
+    for (int i = 0; i < tokens.length && tokens[i].startsWith(SENDER_PREFIX); i++) {
+      ret.add(Integer.parseInt(tokens[i].substring(SENDER_PREFIX.length())));
+    }
+    for (String token : deltaTokens.headMap(WORDS_START).keySet()) {
+      ret.add(Integer.parseInt(token.substring(SENDER_PREFIX.length())));
+    }
+
+    int[] array = new int[ret.size()];
+    int i = 0;
+    for (int contactId : ret) {
+      array[i++] = contactId;
+    }
+    return array;
+  }
+
+  private static int[] intersect(int[] a, int[] b) {
+    int[] ret = new int[Math.min(a.length, b.length)];
+    int i = 0, j = 0, cnt = 0;
+    while (i < a.length && j < b.length) {
+      if (a[i] < b[j]) {
+        i++;
+      } else if (a[i] > b[j]) {
+        j++;
+      } else {
+        ret[cnt++] = a[i];
+        i++;
+        j++;
+      }
+    }
+    return Arrays.copyOf(ret, cnt);
+  }
+
+  private static int[] union(int[] a, int[] b) {
+    IntList ret = new IntList();
+    ret.addAll(a);
+    ret.addAll(b);
+    return ret.toSortedUniqueArray();
+  }
+
+  private static class IntList {
+    private int[] values = new int[4];
+    private int   size   = 0;
+
+    int size() {
+      return size;
+    }
+
+    void add(int value) {
+      if (size == values.length) {
+        values = Arrays.copyOf(values, size * 2);
+      }
+      values[size++] = value;
+    }
+
+    void addAll(int[] other) {
+      addAll(other, other.length);
+    }
+
+    void addAll(IntList other) {
+      addAll(other.values, other.size);
+    }
+
+    private void addAll(int[] other, int otherSize) {
+      if (size + otherSize > values.length) {
+        values = Arrays.copyOf(values, Math.max(size + otherSize, size * 2));
+      }
+      System.arraycopy(other, 0, values, size, otherSize);
+      size += otherSize;
+    }
+
+    int[] toSortedUniqueArray() {
+      int[] sorted = Arrays.copyOf(values, size);
+      Arrays.sort(sorted);
+      int cnt = 0;
+      for (int i = 0; i < sorted.length; i++) {
+        if (cnt == 0 || sorted[cnt - 1] != sorted[i]) {
+          sorted[cnt++] = sorted[i];
+        }
+      }
+      return cnt == sorted.length ? sorted : Arrays.copyOf(sorted, cnt);
+    }
+  }
+}
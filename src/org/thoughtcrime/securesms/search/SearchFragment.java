@@ -29,7 +29,6 @@ import org.thoughtcrime.securesms.search.model.SearchResult;
 import org.thoughtcrime.securesms.util.StickyHeaderDecoration;
 
 import java.util.Locale;
-import java.util.concurrent.Executors;
 
 import static org.thoughtcrime.securesms.util.RelayUtil.isRelayingMessageContent;
 
@@ -66,8 +65,7 @@ public class SearchFragment extends Fragment implements SearchListAdapter.EventL
 
     this.locale = (Locale) getArguments().getSerializable(EXTRA_LOCALE);
 
-    SearchRepository searchRepository = new SearchRepository(getContext(),
-                                                             Executors.newSingleThreadExecutor());
+    SearchRepository searchRepository = new SearchRepository(getContext());
     viewModel = ViewModelProviders.of(this, new SearchViewModel.Factory(searchRepository)).get(SearchViewModel.class);
 
     if (pendingQuery != null) {
@@ -106,7 +104,7 @@ public class SearchFragment extends Fragment implements SearchListAdapter.EventL
       listDecoration.invalidateLayouts();
 
       if (result.isEmpty()) {
-        if (TextUtils.isEmpty(viewModel.getLastQuery().trim())) {
+        if (TextUtils.isEmpty(viewModel.getLastQuery().trim()) || !result.isComplete()) {
           noResultsView.setVisibility(View.GONE);
         } else {
           noResultsView.setVisibility(View.VISIBLE);
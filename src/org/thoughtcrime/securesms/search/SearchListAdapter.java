@@ -4,6 +4,8 @@ import android.content.Context;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import androidx.recyclerview.widget.RecyclerView;
+import android.text.Spanned;
+import android.util.SparseBooleanArray;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
@@ -19,11 +21,15 @@ import org.thoughtcrime.securesms.connect.ApplicationDcContext;
 import org.thoughtcrime.securesms.connect.DcHelper;
 import org.thoughtcrime.securesms.database.model.ThreadRecord;
 import org.thoughtcrime.securesms.mms.GlideRequests;
+import org.thoughtcrime.securesms.recipients.Recipient;
 import org.thoughtcrime.securesms.search.model.SearchResult;
 import org.thoughtcrime.securesms.util.StickyHeaderDecoration;
+import org.thoughtcrime.securesms.util.Util;
 
 import java.util.Collections;
 import java.util.Locale;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
 
 class SearchListAdapter extends    RecyclerView.Adapter<SearchListAdapter.SearchResultViewHolder>
                         implements StickyHeaderDecoration.StickyHeaderAdapter<SearchListAdapter.HeaderViewHolder>
@@ -36,9 +42,17 @@ class SearchListAdapter extends    RecyclerView.Adapter<SearchListAdapter.Search
   private final EventListener eventListener;
   private final Locale        locale;
 
+  // rows are prepared in pages on a background thread, so that binding and scrolling stay fast
+  private static final int      PAGE_SIZE    = 50;
+  private static final Executor pageExecutor = Executors.newSingleThreadExecutor();
+
   @NonNull
   private SearchResult searchResult = SearchResult.EMPTY;
 
+  private Object[]                  rows           = new Object[0]; // ChatRow, ContactRow or MessageRow; null if not yet prepared
+  private volatile Object[]         currentRows    = rows;          // identifies the current results on the page thread
+  private final SparseBooleanArray  requestedPages = new SparseBooleanArray();
+
   Context              context;
   ApplicationDcContext dcContext;
 
@@ -63,25 +77,79 @@ class SearchListAdapter extends    RecyclerView.Adapter<SearchListAdapter.Search
 
   @Override
   public void onBindViewHolder(@NonNull SearchResultViewHolder holder, int position) {
-    DcChatlist.Item conversationResult = getConversationResult(position);
+    Object row = rows[position];
+    if (row == null) {
+      // page not yet prepared, build this row directly to not show an empty row
+      row = buildRow(searchResult, position);
+      rows[position] = row;
+    }
 
-    if (conversationResult != null) {
-      holder.bind(context, conversationResult, glideRequests, eventListener, locale, searchResult.getQuery());
-      return;
+    int page = position / PAGE_SIZE;
+    requestPage(page);
+    if (position % PAGE_SIZE >= PAGE_SIZE / 2) {
+      requestPage(page + 1);
     }
 
-    DcContact contactResult = getContactResult(position);
+    if (row instanceof ChatRow) {
+      holder.bind((ChatRow) row, glideRequests, eventListener, locale);
+    } else if (row instanceof ContactRow) {
+      holder.bind((ContactRow) row, glideRequests, eventListener);
+    } else if (row instanceof MessageRow) {
+      holder.bind((MessageRow) row, glideRequests, eventListener, locale);
+    }
+  }
 
-    if (contactResult != null) {
-      holder.bind(contactResult, glideRequests, eventListener, locale, searchResult.getQuery());
+  /**
+   * Prepares the rows of a page on a background thread; the page is dropped if the results change meanwhile.
+   */
+  private void requestPage(int page) {
+    int start = page * PAGE_SIZE;
+    if (start >= rows.length || requestedPages.get(page)) {
       return;
     }
+    requestedPages.put(page, true);
+
+    final SearchResult result = searchResult;
+    final Object[]     target = rows;
+    final int          end    = Math.min(start + PAGE_SIZE, rows.length);
+    pageExecutor.execute(() -> {
+      Object[] built = new Object[end - start];
+      for (int i = start; i < end; i++) {
+        if (currentRows != target) {
+          return;
+        }
+        built[i - start] = buildRow(result, i);
+      }
+      Util.runOnMain(() -> {
+        for (int i = start; i < end; i++) {
+          if (target[i] == null) {
+            target[i] = built[i - start];
+          }
+        }
+      });
+    });
+  }
 
-    DcMsg messageResult = getMessageResult(position);
-
-    if (messageResult != null) {
-      holder.bind(messageResult, glideRequests, eventListener, locale, searchResult.getQuery());
+  private @Nullable Object buildRow(@NonNull SearchResult result, int position) {
+    int firstContactIndex = result.getChats().getCnt();
+    int firstMessageIndex = firstContactIndex + result.getContacts().length;
+    String query = result.getQuery();
+
+    if (position < firstContactIndex) {
+      DcChatlist.Item item = result.getChats().getItem(position);
+      ThreadRecord thread = dcContext.getThreadRecord(item.summary, dcContext.getChat(item.chatId));
+      return new ChatRow(item, thread, ConversationListItem.getHighlightedSpan(locale, thread.getRecipient().getName(), query));
+    } else if (position < firstMessageIndex) {
+      DcContact contact = dcContext.getContact(result.getContacts()[position - firstContactIndex]);
+      return new ContactRow(contact, dcContext.getRecipient(contact),
+                            ConversationListItem.getHighlightedSpan(locale, contact.getDisplayName(), query),
+                            ConversationListItem.getHighlightedSpan(locale, contact.getAddr(), query));
+    } else if (position < result.size()) {
+      DcMsg msg = dcContext.getMsg(result.getMessages()[position - firstMessageIndex]);
+      return new MessageRow(msg, dcContext.getRecipient(dcContext.getContact(msg.getFromId())),
+                            ConversationListItem.getHighlightedSpan(locale, msg.getSummarytext(512), query));
     }
+    return null;
   }
 
   @Override
@@ -96,9 +164,9 @@ class SearchListAdapter extends    RecyclerView.Adapter<SearchListAdapter.Search
 
   @Override
   public long getHeaderId(int position) {
-    if (getConversationResult(position) != null) {
+    if (position < getFirstContactIndex()) {
       return TYPE_CHATS;
-    } else if (getContactResult(position) != null) {
+    } else if (position < getFirstMessageIndex()) {
       return TYPE_CONTACTS;
     } else {
       return TYPE_MESSAGES;
@@ -134,34 +202,14 @@ class SearchListAdapter extends    RecyclerView.Adapter<SearchListAdapter.Search
   }
 
   void updateResults(@NonNull SearchResult result) {
-    this.searchResult = result;
+    this.searchResult   = result;
+    this.rows           = new Object[result.size()];
+    this.currentRows = rows;
+    this.requestedPages.clear();
+    requestPage(0);
     notifyDataSetChanged();
   }
 
-  @Nullable
-  private DcChatlist.Item getConversationResult(int position) {
-    if (position < searchResult.getChats().getCnt()) {
-      return searchResult.getChats().getItem(position);
-    }
-    return null;
-  }
-
-  @Nullable
-  private DcContact getContactResult(int position) {
-    if (position >= getFirstContactIndex() && position < getFirstMessageIndex()) {
-      return dcContext.getContact(searchResult.getContacts()[position - getFirstContactIndex()]);
-    }
-    return null;
-  }
-
-  @Nullable
-  private DcMsg getMessageResult(int position) {
-    if (position >= getFirstMessageIndex() && position < searchResult.size()) {
-      return dcContext.getMsg(searchResult.getMessages()[position - getFirstMessageIndex()]);
-    }
-    return null;
-  }
-
   private int getFirstContactIndex() {
     return searchResult.getChats().getCnt();
   }
@@ -185,37 +233,30 @@ class SearchListAdapter extends    RecyclerView.Adapter<SearchListAdapter.Search
       root = (ConversationListItem) itemView;
     }
 
-    void bind(Context   context,
-              @NonNull  DcChatlist.Item chatlistItem,
-              @NonNull  GlideRequests glideRequests,
-              @NonNull  EventListener eventListener,
-              @NonNull  Locale        locale,
-              @Nullable String        query)
+    void bind(@NonNull ChatRow       row,
+              @NonNull GlideRequests glideRequests,
+              @NonNull EventListener eventListener,
+              @NonNull Locale        locale)
     {
-      ApplicationDcContext dcContext = DcHelper.getContext(context);
-      ThreadRecord threadRecord = dcContext.getThreadRecord(chatlistItem.summary, dcContext.getChat(chatlistItem.chatId));
-      root.bind(threadRecord, chatlistItem.msgId, chatlistItem.summary, glideRequests, locale, Collections.emptySet(), false, query);
-      root.setOnClickListener(view -> eventListener.onConversationClicked(chatlistItem));
+      root.bind(row.thread, row.item.msgId, row.item.summary, glideRequests, locale, Collections.emptySet(), false, row.highlightedName);
+      root.setOnClickListener(view -> eventListener.onConversationClicked(row.item));
     }
 
-    void bind(@NonNull  DcContact     contactResult,
-              @NonNull  GlideRequests glideRequests,
-              @NonNull  EventListener eventListener,
-              @NonNull  Locale        locale,
-              @Nullable String        query)
+    void bind(@NonNull ContactRow    row,
+              @NonNull GlideRequests glideRequests,
+              @NonNull EventListener eventListener)
     {
-      root.bind(contactResult, glideRequests, locale, query);
-      root.setOnClickListener(view -> eventListener.onContactClicked(contactResult));
+      root.bind(row.contact, row.recipient, row.highlightedName, row.highlightedAddr, glideRequests);
+      root.setOnClickListener(view -> eventListener.onContactClicked(row.contact));
     }
 
-    void bind(@NonNull  DcMsg         messageResult,
-              @NonNull  GlideRequests glideRequests,
-              @NonNull  EventListener eventListener,
-              @NonNull  Locale        locale,
-              @Nullable String        query)
+    void bind(@NonNull MessageRow    row,
+              @NonNull GlideRequests glideRequests,
+              @NonNull EventListener eventListener,
+              @NonNull Locale        locale)
     {
-      root.bind(messageResult, glideRequests, locale, query);
-      root.setOnClickListener(view -> eventListener.onMessageClicked(messageResult));
+      root.bind(row.msg, row.sender, row.highlightedSubject, glideRequests, locale);
+      root.setOnClickListener(view -> eventListener.onMessageClicked(row.msg));
     }
 
     void recycle() {
@@ -224,6 +265,44 @@ class SearchListAdapter extends    RecyclerView.Adapter<SearchListAdapter.Search
     }
   }
 
+  private static class ChatRow {
+    final DcChatlist.Item item;
+    final ThreadRecord    thread;
+    final Spanned         highlightedName;
+
+    ChatRow(DcChatlist.Item item, ThreadRecord thread, Spanned highlightedName) {
+      this.item            = item;
+      this.thread          = thread;
+      this.highlightedName = highlightedName;
+    }
+  }
+
+  private static class ContactRow {
+    final DcContact contact;
+    final Recipient recipient;
+    final Spanned   highlightedName;
+    final Spanned   highlightedAddr;
+
+    ContactRow(DcContact contact, Recipient recipient, Spanned highlightedName, Spanned highlightedAddr) {
+      this.contact         = contact;
+      this.recipient       = recipient;
+      this.highlightedName = highlightedName;
+      this.highlightedAddr = highlightedAddr;
+    }
+  }
+
+  private static class MessageRow {
+    final DcMsg     msg;
+    final Recipient sender;
+    final Spanned   highlightedSubject;
+
+    MessageRow(DcMsg msg, Recipient sender, Spanned highlightedSubject) {
+      this.msg                = msg;
+      this.sender             = sender;
+      this.highlightedSubject = highlightedSubject;
+    }
+  }
+
   public static class HeaderViewHolder extends RecyclerView.ViewHolder {
 
     private TextView titleView;
@@ -1,54 +1,194 @@
 package org.thoughtcrime.securesms.search;
 
 import android.content.Context;
-import android.database.DatabaseUtils;
 import androidx.annotation.NonNull;
 import android.text.TextUtils;
+import android.util.Log;
 
 import com.b44t.messenger.DcChatlist;
+import com.b44t.messenger.DcContact;
 import com.b44t.messenger.DcContext;
+import com.b44t.messenger.DcMsg;
 
 
 import org.thoughtcrime.securesms.connect.ApplicationDcContext;
 import org.thoughtcrime.securesms.connect.DcHelper;
 import org.thoughtcrime.securesms.search.model.SearchResult;
 
-import java.util.HashSet;
-import java.util.Set;
+import java.util.Arrays;
 import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Manages data retrieval for search.
  */
 class SearchRepository {
 
+  private static final String TAG = SearchRepository.class.getSimpleName();
+
+  private static final int MAX_REFINED_HITS = 1000; // loading more messages one by one is slower than searchMsgs()
+
+  // shared by all instances, a repository is created each time the search is opened.
+  // contacts and chats are searched in parallel, messages one scan at a time.
+  private static final Executor executor        = Executors.newFixedThreadPool(2);
+  private static final Executor messageExecutor = Executors.newSingleThreadExecutor();
+
   private final ApplicationDcContext dcContext;
-  private final Executor             executor;
+  private final MessageSearchIndex   searchIndex;
+  private final AtomicInteger        queryGeneration = new AtomicInteger();
   private boolean                    queryMessages = true;
 
-  SearchRepository(@NonNull Context          context,
-                   @NonNull Executor         executor)
-  {
-    this.dcContext        = DcHelper.getContext(context.getApplicationContext());
-    this.executor         = executor;
+  // hits of the last message query; a query extending it only needs to filter these.
+  // accessed from messageExecutor only.
+  private String   cachedMessageQuery;
+  private int      cachedMessageChanges; // dropped when messages are added, changed or deleted
+  private int[]    cachedMessageIds;
+  private String[] cachedMessageTexts; // loaded on first refinement
+  private String[] cachedMessageNames; // sender names, also matched by the core
+
+  SearchRepository(@NonNull Context context) {
+    this.dcContext   = DcHelper.getContext(context.getApplicationContext());
+    this.searchIndex = MessageSearchIndex.getInstance(context);
   }
 
+  /**
+   * Runs the contact, chat and message queries in parallel.
+   * The callback is called each time one of them is done, with the results available so far;
+   * contacts and chats are typically ready long before the message scan.
+   *
+   * Message scans run one at a time; scans of queries superseded while waiting are skipped.
+   * A scan that is already running cannot be aborted in the core, however, its result is dropped.
+   */
   void query(@NonNull String query, @NonNull Callback callback) {
+    int generation = queryGeneration.incrementAndGet();
+
     if (TextUtils.isEmpty(query)) {
       callback.onResult(SearchResult.EMPTY);
       return;
     }
 
+    PendingResult pending = new PendingResult(query, queryMessages ? 3 : 2);
+
     executor.execute(() -> {
-      int[]      contacts      = dcContext.getContacts(DcContext.DC_GCL_ADD_SELF, query);
-      DcChatlist conversations = dcContext.getChatlist(0, query, 0);
-      int[]      messages      = new int[0];
-      if (queryMessages) {
-        messages = dcContext.searchMsgs(0, query);
+      if (isCancelled(generation)) {
+        return;
       }
+      long start = System.currentTimeMillis();
+      int[] contacts = dcContext.getContacts(DcContext.DC_GCL_ADD_SELF, query);
+      Log.i(TAG, "search contacts: " + (System.currentTimeMillis() - start) + " ms");
+      publish(generation, pending.setContacts(contacts), callback);
+    });
 
-      callback.onResult(new SearchResult(query, contacts, conversations, messages));
+    executor.execute(() -> {
+      if (isCancelled(generation)) {
+        return;
+      }
+      long start = System.currentTimeMillis();
+      DcChatlist conversations = dcContext.getChatlist(0, query, 0);
+      Log.i(TAG, "search chats: " + (System.currentTimeMillis() - start) + " ms");
+      publish(generation, pending.setConversations(conversations), callback);
     });
+
+    if (queryMessages) {
+      messageExecutor.execute(() -> {
+        if (isCancelled(generation)) {
+          Log.i(TAG, "search messages: skipped superseded query");
+          return;
+        }
+        int[] messages = queryMessages(query);
+        publish(generation, pending.setMessages(messages), callback);
+      });
+    }
+  }
+
+  /**
+   * If the search index is ready, it is used instead of scanning the messages.
+   *
+   * Otherwise, as the core matches message texts using `LIKE %query%` and sender names using `LIKE query%`,
+   * the hits for "meeting" are a subset of the hits for "meet".
+   * So, if the query extends the previous one, the previous hits are filtered in memory
+   * instead of scanning all messages again; on other edits, eg. backspace, a full scan is done.
+   * The texts of the previous hits are loaded one by one, so this is only done for up to MAX_REFINED_HITS hits.
+   */
+  private int[] queryMessages(@NonNull String query) {
+    long start = System.currentTimeMillis();
+
+    int[] indexed = searchIndex.lookup(query);
+    if (indexed != null) {
+      Log.i(TAG, "search messages: " + indexed.length + " hits from index in " + (System.currentTimeMillis() - start) + " ms");
+      return indexed;
+    }
+
+    String normalized = query.trim();
+    int    changes    = searchIndex.getChangeCounter();
+
+    if (cachedMessageQuery != null
+     && cachedMessageChanges == changes
+     && (cachedMessageTexts != null || cachedMessageIds.length <= MAX_REFINED_HITS)
+     && normalized.startsWith(cachedMessageQuery)
+     && normalized.indexOf('%') == -1 && normalized.indexOf('_') == -1) {
+      if (cachedMessageTexts == null) {
+        cachedMessageTexts = new String[cachedMessageIds.length];
+        cachedMessageNames = new String[cachedMessageIds.length];
+        for (int i = 0; i < cachedMessageIds.length; i++) {
+          DcMsg msg = dcContext.getMsg(cachedMessageIds[i]);
+          cachedMessageTexts[i] = msg.getText();
+          // as in the index, only ordinary contacts have their real name in the database
+          cachedMessageNames[i] = msg.getFromId() > DcContact.DC_CONTACT_ID_LAST_SPECIAL ?
+                                  dcContext.getContact(msg.getFromId()).getName() : null;
+        }
+      }
+
+      int[]    ids   = new int[cachedMessageIds.length];
+      String[] texts = new String[cachedMessageIds.length];
+      String[] names = new String[cachedMessageIds.length];
+      int      cnt   = 0;
+      for (int i = 0; i < cachedMessageIds.length; i++) {
+        if (MessageSearchIndex.containsIgnoreAsciiCase(cachedMessageTexts[i], normalized)
+         || MessageSearchIndex.startsWithIgnoreAsciiCase(cachedMessageNames[i], normalized)) {
+          ids[cnt]   = cachedMessageIds[i];
+          texts[cnt] = cachedMessageTexts[i];
+          names[cnt] = cachedMessageNames[i];
+          cnt++;
+        }
+      }
+      Log.i(TAG, "search messages: refined " + cachedMessageIds.length + " to " + cnt + " hits in " + (System.currentTimeMillis() - start) + " ms");
+
+      cachedMessageQuery = normalized;
+      cachedMessageIds   = Arrays.copyOf(ids, cnt);
+      cachedMessageTexts = Arrays.copyOf(texts, cnt);
+      cachedMessageNames = Arrays.copyOf(names, cnt);
+      return cachedMessageIds;
+    }
+
+    int[] messages = dcContext.searchMsgs(0, query);
+    Log.i(TAG, "search messages: " + messages.length + " hits in " + (System.currentTimeMillis() - start) + " ms");
+
+    cachedMessageQuery   = normalized.isEmpty() ? null : normalized;
+    cachedMessageChanges = changes;
+    cachedMessageIds     = messages;
+    cachedMessageTexts = null;
+    cachedMessageNames = null;
+    return messages;
+  }
+
+  /**
+   * Cancels all running and pending queries; their results will not be delivered.
+   */
+  void cancel() {
+    queryGeneration.incrementAndGet();
+  }
+
+  private boolean isCancelled(int generation) {
+    return generation != queryGeneration.get();
+  }
+
+  private void publish(int generation, @NonNull SearchResult result, @NonNull Callback callback) {
+    // results of a query that was superseded in the meantime are dropped
+    if (!isCancelled(generation)) {
+      callback.onResult(result);
+    }
   }
 
   public void setQueryMessages(boolean includeMessageQueries) {
@@ -58,4 +198,40 @@ class SearchRepository {
   public interface Callback {
     void onResult(@NonNull SearchResult result);
   }
+
+  /**
+   * Collects the results of the parallel queries, each setter returns a snapshot to publish.
+   */
+  private static class PendingResult {
+    private final String query;
+    private int          outstanding;
+    private int[]        contacts      = new int[0];
+    private DcChatlist   conversations = new DcChatlist(0);
+    private int[]        messages      = new int[0];
+
+    PendingResult(@NonNull String query, int outstanding) {
+      this.query       = query;
+      this.outstanding = outstanding;
+    }
+
+    synchronized SearchResult setContacts(@NonNull int[] contacts) {
+      this.contacts = contacts;
+      return snapshot();
+    }
+
+    synchronized SearchResult setConversations(@NonNull DcChatlist conversations) {
+      this.conversations = conversations;
+      return snapshot();
+    }
+
+    synchronized SearchResult setMessages(@NonNull int[] messages) {
+      this.messages = messages;
+      return snapshot();
+    }
+
+    private SearchResult snapshot() {
+      outstanding--;
+      return new SearchResult(query, contacts, conversations, messages, outstanding == 0);
+    }
+  }
 }
@@ -5,6 +5,7 @@ import androidx.lifecycle.MutableLiveData;
 import androidx.lifecycle.ViewModel;
 import androidx.lifecycle.ViewModelProvider;
 import androidx.annotation.NonNull;
+import android.util.Log;
 
 import androidx.fragment.app.Fragment;
 
@@ -21,6 +22,8 @@ import org.thoughtcrime.securesms.util.Debouncer;
  */
 class SearchViewModel extends ViewModel {
 
+  private static final String TAG = SearchViewModel.class.getSimpleName();
+
   private final ObservingLiveData searchResult;
   private final SearchRepository  searchRepository;
   private final Debouncer         debouncer;
@@ -52,7 +55,14 @@ class SearchViewModel extends ViewModel {
 
   void updateQuery(String query) {
     lastQuery = query;
-    debouncer.publish(() -> searchRepository.query(query, searchResult::postValue));
+    searchRepository.cancel(); // the previous query is outdated as soon as the user types
+    final long keystrokeMillis = System.currentTimeMillis();
+    debouncer.publish(() -> searchRepository.query(query, result -> {
+      if (result.isComplete()) {
+        Log.i(TAG, "keystroke to search result: " + (System.currentTimeMillis() - keystrokeMillis) + " ms");
+      }
+      searchResult.postValue(result);
+    }));
   }
 
   @NonNull
@@ -63,6 +73,7 @@ class SearchViewModel extends ViewModel {
   @Override
   protected void onCleared() {
     debouncer.clear();
+    searchRepository.cancel();
   }
 
   private static class ObservingLiveData extends MutableLiveData<SearchResult> {
@@ -16,16 +16,30 @@ public class SearchResult {
   private final int[]      contacts;
   private final DcChatlist conversations;
   private final int[]      messages;
+  private final boolean    complete;
 
   public SearchResult(@NonNull String     query,
                       @NonNull int[]      contacts,
                       @NonNull DcChatlist conversations,
                       @NonNull int[]      messages)
+  {
+    this(query, contacts, conversations, messages, true);
+  }
+
+  /**
+   * @param complete false if this is a partial result and some subcategories are still being searched
+   */
+  public SearchResult(@NonNull String     query,
+                      @NonNull int[]      contacts,
+                      @NonNull DcChatlist conversations,
+                      @NonNull int[]      messages,
+                      boolean             complete)
   {
     this.query         = query;
     this.contacts      = contacts;
     this.conversations = conversations;
     this.messages      = messages;
+    this.complete      = complete;
   }
 
   public int[] getContacts() {
@@ -48,6 +62,10 @@ public class SearchResult {
     return contacts.length + conversations.getCnt() + messages.length;
   }
 
+  public boolean isComplete() {
+    return complete;
+  }
+
   public boolean isEmpty() {
     return size() == 0;
   }
@@ -16,6 +16,7 @@ import android.graphics.Rect;
 import android.graphics.YuvImage;
 import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
+import android.os.Build;
 
 import androidx.annotation.DrawableRes;
 import androidx.annotation.NonNull;
@@ -33,6 +34,7 @@ import com.bumptech.glide.load.resource.bitmap.DownsampleStrategy;
 
 import org.thoughtcrime.securesms.connect.DcHelper;
 import org.thoughtcrime.securesms.mms.GlideApp;
+import org.thoughtcrime.securesms.mms.ImageEncoder;
 import org.thoughtcrime.securesms.mms.MediaConstraints;
 
 import java.io.BufferedInputStream;
@@ -42,6 +44,7 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Locale;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.atomic.AtomicBoolean;
 
@@ -54,10 +57,12 @@ public class BitmapUtil {
 
   private static final String TAG = BitmapUtil.class.getSimpleName();
 
-  private static final int MAX_COMPRESSION_QUALITY          = 90;
-  private static final int MIN_COMPRESSION_QUALITY          = 45;
-  private static final int MAX_COMPRESSION_ATTEMPTS         = 5;
-  private static final int MIN_COMPRESSION_QUALITY_DECREASE = 5;
+  static final int MAX_COMPRESSION_QUALITY  = 90;
+  static final int MIN_COMPRESSION_QUALITY  = 45;
+  static final int MAX_COMPRESSION_ATTEMPTS = 5;
+
+  private static final int    COMPRESSION_QUALITY_TOLERANCE = 5;
+  private static final double COMPRESSION_SIZE_MARGIN       = 0.97;
 
   @WorkerThread
   public static <T> ScaleResult createScaledBytes(Context context, T model, MediaConstraints constraints)
@@ -66,18 +71,25 @@ public class BitmapUtil {
     return createScaledBytes(context, model,
                              constraints.getImageMaxWidth(context),
                              constraints.getImageMaxHeight(context),
-                             constraints.getImageMaxSize(context));
+                             constraints.getImageMaxSize(context),
+                             constraints.getImageEncoder(context));
   }
 
   @WorkerThread
   public static <T> ScaleResult createScaledBytes(Context context, T model, int maxImageWidth, int maxImageHeight, int maxImageSize)
       throws BitmapDecodingException
   {
-    try {
-      int    quality  = MAX_COMPRESSION_QUALITY;
-      int    attempts = 0;
-      byte[] bytes;
+    return createScaledBytes(context, model, maxImageWidth, maxImageHeight, maxImageSize, ImageEncoder.JPEG);
+  }
 
+  /**
+   * Scales the image to the given dimensions and encodes it with the highest quality that fits into maxImageSize.
+   */
+  @WorkerThread
+  public static <T> ScaleResult createScaledBytes(Context context, T model, int maxImageWidth, int maxImageHeight, int maxImageSize, ImageEncoder encoder)
+      throws BitmapDecodingException
+  {
+    try {
       Bitmap scaledBitmap = GlideApp.with(context.getApplicationContext())
                                     .asBitmap()
                                     .load(model)
@@ -93,41 +105,161 @@ public class BitmapUtil {
 
       Log.i(TAG, "Initial scaled bitmap has size of " + scaledBitmap.getByteCount() + " bytes.");
 
+      Bitmap[] probe = new Bitmap[1];
       try {
-        do {
-          ByteArrayOutputStream baos = new ByteArrayOutputStream();
-          scaledBitmap.compress(CompressFormat.JPEG, quality, baos);
-          bytes = baos.toByteArray();
+        long startMillis = System.currentTimeMillis();
 
-          Log.w(TAG, "iteration with quality " + quality + " size " + (bytes.length / 1024) + "kb");
-          if (quality == MIN_COMPRESSION_QUALITY) break;
+        // grows to the size of the largest attempt once, then is reset and reused for all attempts
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(Math.min(maxImageSize, 64 * 1024));
+        byte[][]              bytes  = new byte[1][];
 
-          int nextQuality = (int)Math.floor(quality * Math.sqrt((double)maxImageSize / bytes.length));
-          if (quality - nextQuality < MIN_COMPRESSION_QUALITY_DECREASE) {
-            nextQuality = quality - MIN_COMPRESSION_QUALITY_DECREASE;
+        QualitySearch search = searchQuality(quality -> {
+          int size = compress(encoder, scaledBitmap, quality, buffer);
+          Log.w(TAG, "iteration with quality " + quality + " size " + (size / 1024) + "kb");
+          if (size <= maxImageSize) {
+            bytes[0] = buffer.toByteArray(); // a later fit is always of a higher quality
           }
-          quality = Math.max(nextQuality, MIN_COMPRESSION_QUALITY);
-        }
-        while (bytes.length > maxImageSize && attempts++ < MAX_COMPRESSION_ATTEMPTS);
+          return size;
+        }, quality -> {
+          if (probe[0] == null) {
+            probe[0] = Bitmap.createScaledBitmap(scaledBitmap, Math.max(1, scaledBitmap.getWidth() / 2), Math.max(1, scaledBitmap.getHeight() / 2), true);
+          }
+          return compress(encoder, probe[0], quality, buffer);
+        }, maxImageSize);
 
-        if (bytes.length > maxImageSize) {
-          throw new BitmapDecodingException("Unable to scale image below: " + bytes.length);
+        if (search.quality == -1) {
+          throw new BitmapDecodingException("Unable to scale image below: " + maxImageSize);
         }
 
-        if (bytes.length <= 0) {
-          throw new BitmapDecodingException("Decoding failed. Bitmap has a length of " + bytes.length + " bytes.");
+        if (bytes[0].length <= 0) {
+          throw new BitmapDecodingException("Decoding failed. Bitmap has a length of " + bytes[0].length + " bytes.");
         }
 
-        Log.w(TAG, "createScaledBytes(" + model.toString() + ") -> quality " + Math.min(quality, MAX_COMPRESSION_QUALITY) + ", " + attempts + " attempt(s)");
-        return new ScaleResult(bytes, scaledBitmap.getWidth(), scaledBitmap.getHeight());
+        Log.w(TAG, "createScaledBytes(" + model.toString() + ") -> " + encoder + " quality " + search.quality + ", " + search.attempts + " attempt(s) in "
+            + (System.currentTimeMillis() - startMillis) + " ms");
+        return new ScaleResult(bytes[0], scaledBitmap.getWidth(), scaledBitmap.getHeight());
       } finally {
-        if (scaledBitmap != null) scaledBitmap.recycle();
+        if (probe[0] != null && probe[0] != scaledBitmap) probe[0].recycle();
+        scaledBitmap.recycle();
       }
     } catch (InterruptedException | ExecutionException e) {
       throw new BitmapDecodingException(e);
     }
   }
 
+  private static int compress(@NonNull ImageEncoder encoder, @NonNull Bitmap bitmap, int quality, @NonNull ByteArrayOutputStream buffer) {
+    buffer.reset();
+    encoder.encode(bitmap, quality, buffer);
+    return buffer.size();
+  }
+
+  /**
+   * Encodes an image with the given quality, see searchQuality().
+   */
+  interface Compression {
+    /**
+     * @return the size of the encoded image.
+     */
+    int compress(int quality);
+  }
+
+  /**
+   * The result of searchQuality().
+   */
+  static class QualitySearch {
+    final int quality;  // -1 if the image does not fit with MIN_COMPRESSION_QUALITY
+    final int attempts; // compressions of the full image
+
+    QualitySearch(int quality, int attempts) {
+      this.quality  = quality;
+      this.attempts = attempts;
+    }
+  }
+
+  /**
+   * Searches the highest quality the image fits into maxSize with, using at most MAX_COMPRESSION_ATTEMPTS
+   * compressions of the full image: most images fit at the best quality; otherwise, the first guess is
+   * estimated on a downsampled probe, calibrated by the size at the best quality, and the next ones are
+   * interpolated between the sizes seen on the full image, until a fit is found that is less than
+   * COMPRESSION_QUALITY_TOLERANCE below the qualities known to be too large. As long as nothing fits,
+   * the guesses aim a little below maxSize, as a near miss costs another attempt.
+   */
+  static @NonNull QualitySearch searchQuality(@NonNull Compression full, @NonNull Compression probe, int maxSize) {
+    int size     = full.compress(MAX_COMPRESSION_QUALITY);
+    int attempts = 1;
+
+    if (size <= maxSize) {
+      return new QualitySearch(MAX_COMPRESSION_QUALITY, attempts);
+    }
+
+    int fitQuality      = -1, fitSize      = 0;
+    int tooLargeQuality = MAX_COMPRESSION_QUALITY, tooLargeSize = size;
+    int prevQuality     = -1, prevSize     = 0; // the previous quality that was too large
+    int low             = MIN_COMPRESSION_QUALITY;
+    int high            = MAX_COMPRESSION_QUALITY - 1;
+    int candidate       = estimateQuality(probe, size, (int) (maxSize * COMPRESSION_SIZE_MARGIN));
+
+    while (low <= high && attempts < MAX_COMPRESSION_ATTEMPTS) {
+      if (fitQuality == -1 && attempts == MAX_COMPRESSION_ATTEMPTS - 1) {
+        candidate = low; // nothing fits so far, the last attempt is the lowest quality
+      }
+
+      size = full.compress(candidate);
+      attempts++;
+
+      if (size <= maxSize) {
+        fitQuality = candidate;
+        fitSize    = size;
+        low        = candidate + 1;
+        if (high - fitQuality < COMPRESSION_QUALITY_TOLERANCE) break;
+      } else {
+        prevQuality     = tooLargeQuality;
+        prevSize        = tooLargeSize;
+        tooLargeQuality = candidate;
+        tooLargeSize    = size;
+        high            = candidate - 1;
+      }
+
+      if (fitQuality != -1) {
+        candidate = interpolate(fitQuality, fitSize, tooLargeQuality, tooLargeSize, maxSize);
+      } else if (tooLargeQuality < prevQuality && tooLargeSize < prevSize) {
+        candidate = interpolate(tooLargeQuality, tooLargeSize, prevQuality, prevSize, (int) (maxSize * COMPRESSION_SIZE_MARGIN));
+      } else {
+        candidate = (low + high) / 2;
+      }
+      candidate = Math.max(low, Math.min(high, candidate));
+    }
+
+    // as low only rises on a fit, MIN_COMPRESSION_QUALITY was tried if nothing fits
+    return new QualitySearch(fitQuality, attempts);
+  }
+
+  /**
+   * Returns the quality at which the line through the sizes of quality1 and quality2 reaches maxSize.
+   */
+  private static int interpolate(int quality1, int size1, int quality2, int size2, int maxSize) {
+    return quality1 + (int) Math.floor((double) (quality2 - quality1) * (maxSize - size1) / (size2 - size1));
+  }
+
+  /**
+   * Returns the highest quality the image is expected to fit into maxSize with,
+   * based on a probe of a quarter of the pixels, whose sizes are scaled by the ratio seen at the best quality.
+   */
+  private static int estimateQuality(@NonNull Compression probe, int sizeAtMaxQuality, int maxSize) {
+    double ratio = (double) sizeAtMaxQuality / probe.compress(MAX_COMPRESSION_QUALITY);
+    int    low   = MIN_COMPRESSION_QUALITY;
+    int    high  = MAX_COMPRESSION_QUALITY - 1;
+    while (low < high) {
+      int candidate = (low + high + 1) / 2;
+      if (probe.compress(candidate) * ratio <= maxSize) {
+        low  = candidate;
+      } else {
+        high = candidate - 1;
+      }
+    }
+    return low;
+  }
+
   @WorkerThread
   public static <T> Bitmap createScaledBitmap(Context context, T model, int maxWidth, int maxHeight)
       throws BitmapDecodingException
@@ -386,6 +518,33 @@ public class BitmapUtil {
   // recode jpeg
   //////////////////////////////////////////////////////////////////////////////////////////////////
 
+  // the bitmap the last image was decoded to, used as inBitmap for the next one; guarded by BitmapUtil.class
+  private static Bitmap reusableBitmap;
+
+  // held here, the memory pressure manager references caches weakly only
+  private static final MemoryPressureManager.TrimmableCache reusableBitmapCache = new MemoryPressureManager.TrimmableCache() {
+    @Override
+    public void trimMemory(int level) {
+      synchronized (BitmapUtil.class) {
+        if (reusableBitmap != null) {
+          reusableBitmap.recycle();
+          reusableBitmap = null;
+        }
+      }
+    }
+
+    @Override
+    public @NonNull String getFootprint() {
+      synchronized (BitmapUtil.class) {
+        return (reusableBitmap != null ? getAllocationByteCount(reusableBitmap) / 1024 : 0) + "KB";
+      }
+    }
+  };
+
+  static {
+    MemoryPressureManager.register(reusableBitmapCache, "reusableBitmap", MemoryPressureManager.Priority.LOW);
+  }
+
   public static void recodeImageMsg(Context context, DcMsg msg)
   {
     int desiredWH = 1280;
@@ -415,8 +574,13 @@ public class BitmapUtil {
         return;
       }
 
-      float scaleFactor = Math.min((float)desiredWH/(float)bmOptions.outWidth, (float)desiredWH/(float)bmOptions.outHeight);
-      matrix.postScale(scaleFactor, scaleFactor);
+      // decode at the largest power-of-two subsample that is still at least desiredWH,
+      // so that the full-resolution image is never held in memory
+      int longSide   = Math.max(bmOptions.outWidth, bmOptions.outHeight);
+      int sampleSize = 1;
+      while (longSide / (sampleSize * 2) >= desiredWH) {
+        sampleSize *= 2;
+      }
 
       // find out rotating
       {
@@ -441,27 +605,114 @@ public class BitmapUtil {
       }
 
       // recode file
-      Bitmap inBitmap = BitmapFactory.decodeFile(inPath, null);
-      Bitmap outBitmap = Bitmap.createBitmap(inBitmap, 0, 0, inBitmap.getWidth(), inBitmap.getHeight(), matrix, false);
-      inBitmap.recycle();
+      Bitmap inBitmap = decodeSampled(inPath, sampleSize);
+      if (inBitmap == null) {
+        Log.w(TAG, String.format("cannot decode %s", inPath));
+        return;
+      }
 
-      String outPath = DcHelper.getContext(context).getBlobdirFile(inPath);
-      FileOutputStream outStream = new FileOutputStream(outPath);
-      if(!outBitmap.compress(Bitmap.CompressFormat.JPEG, desiredJpegQuality, outStream)) {
+      // scale the rest of the way and rotate in the same pass
+      float scaleFactor = Math.min((float)desiredWH/(float)inBitmap.getWidth(), (float)desiredWH/(float)inBitmap.getHeight());
+      matrix.preScale(scaleFactor, scaleFactor);
+      // as inBitmap is mutable, this is always a new bitmap
+      Bitmap outBitmap = Bitmap.createBitmap(inBitmap, 0, 0, inBitmap.getWidth(), inBitmap.getHeight(), matrix, true);
+
+      long peakBytes = getAllocationByteCount(inBitmap) + getAllocationByteCount(outBitmap);
+      long fullBytes = (long) bmOptions.outWidth * bmOptions.outHeight * 4;
+      int  outWidth  = outBitmap.getWidth();
+      int  outHeight = outBitmap.getHeight();
+
+      releaseDecoded(inBitmap);
+
+      ImageEncoder encoder     = MediaConstraints.getPushMediaConstraints().getImageEncoder(context);
+      String       outPath     = getRecodedPath(context, inPath, encoder);
+      long         encodeStart = System.currentTimeMillis();
+      boolean      encoded     = false;
+      try (FileOutputStream outStream = new FileOutputStream(outPath)) {
+        encoded = encoder.encode(outBitmap, desiredJpegQuality, outStream);
+      } finally {
+        outBitmap.recycle();
+        if (!encoded) {
+          // the file created by getBlobdirFile() is not used, the message keeps the original
+          new File(outPath).delete();
+        }
+      }
+      if (!encoded) {
+        Log.w(TAG, String.format("cannot encode %s", inPath));
         return;
       }
+      long encodeMillis = System.currentTimeMillis() - encodeStart;
 
-      msg.setDimension(outBitmap.getWidth(), outBitmap.getHeight());
-      msg.setFile(outPath, null);
-      outBitmap.recycle();
+      msg.setDimension(outWidth, outHeight);
+      msg.setFile(outPath, encoder.getMimeType());
 
-      Log.i(TAG, String.format("recoding for %s done", inPath));
+      Log.i(TAG, String.format(Locale.ROOT, "recoding for %s done, %dx%d decoded with inSampleSize=%d, peak bitmap memory %d KB (%d KB at full size), "
+          + "%s encoded to %d KB in %d ms (%d KB before)",
+          inPath, bmOptions.outWidth, bmOptions.outHeight, sampleSize, peakBytes / 1024, fullBytes / 1024,
+          encoder, new File(outPath).length() / 1024, encodeMillis, new File(inPath).length() / 1024));
     }
     catch(Exception e) {
       e.printStackTrace();
     }
   }
 
+  private static String getRecodedPath(Context context, String inPath, ImageEncoder encoder) {
+    if (encoder == ImageEncoder.JPEG) {
+      return DcHelper.getContext(context).getBlobdirFile(inPath);
+    }
+    String filename = new File(inPath).getName();
+    int    dot      = filename.indexOf('.');
+    return DcHelper.getContext(context).getBlobdirFile(dot > 0 ? filename.substring(0, dot) : filename, encoder.getExtension());
+  }
+
+  private static @Nullable Bitmap decodeSampled(String path, int sampleSize) {
+    BitmapFactory.Options options = new BitmapFactory.Options();
+    options.inSampleSize = sampleSize;
+    options.inMutable    = true;
+
+    // before kitkat, inBitmap requires the same size and no subsampling
+    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+      synchronized (BitmapUtil.class) {
+        options.inBitmap = reusableBitmap;
+        reusableBitmap = null;
+      }
+    }
+
+    if (options.inBitmap != null) {
+      try {
+        Bitmap bitmap = BitmapFactory.decodeFile(path, options);
+        if (bitmap != null) {
+          return bitmap;
+        }
+      } catch (IllegalArgumentException e) {
+        // the reusable bitmap is too small for this image
+      }
+      options.inBitmap.recycle();
+      options.inBitmap = null;
+    }
+    return BitmapFactory.decodeFile(path, options);
+  }
+
+  private static void releaseDecoded(@NonNull Bitmap bitmap) {
+    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT && bitmap.isMutable()) {
+      synchronized (BitmapUtil.class) {
+        if (reusableBitmap == null || getAllocationByteCount(reusableBitmap) < getAllocationByteCount(bitmap)) {
+          if (reusableBitmap != null) reusableBitmap.recycle();
+          reusableBitmap = bitmap;
+          return;
+        }
+      }
+    }
+    bitmap.recycle();
+  }
+
+  private static long getAllocationByteCount(@NonNull Bitmap bitmap) {
+    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+      return bitmap.getAllocationByteCount();
+    }
+    return bitmap.getByteCount();
+  }
+
 
   /**
    * Generate a Bitmap from an Android SDK View.
@@ -256,7 +256,7 @@ public class MediaUtil {
     try {
       File thumbnailFile = new File(thumbnailUri.getPath());
       File dataFile = new File(dataUri.getPath());
-      if (!thumbnailFile.exists() || dataFile.lastModified()>thumbnailFile.lastModified()) {
+      if (!thumbnailFile.exists() || thumbnailFile.length()==0 || dataFile.lastModified()>thumbnailFile.lastModified()) {
         Bitmap bitmap = null;
 
         MediaMetadataRetriever retriever = new MediaMetadataRetriever();
@@ -0,0 +1,150 @@
+package org.thoughtcrime.securesms.util;
+
+import android.app.ActivityManager;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import androidx.annotation.NonNull;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Sizes the in-memory caches from the memory class of the device and trims them when the system
+ * runs low on memory, the caches that are cheapest to rebuild first.
+ *
+ * Caches register themselves and are held weakly, so adapters and views can register without
+ * unregistering when they go away.
+ */
+public class MemoryPressureManager implements ComponentCallbacks2 {
+
+  private static final String TAG = MemoryPressureManager.class.getSimpleName();
+
+  private static final int BASE_MEMORY_CLASS = 64; // MB, the default cache sizes are made for this
+
+  public enum Priority {
+    LOW,     // large and cheap to rebuild, trimmed first
+    MEDIUM,
+    HIGH     // visible content, trimmed last
+  }
+
+  public interface TrimmableCache {
+    void trimMemory(int level);
+    @NonNull String getFootprint();
+  }
+
+  private static class Registration {
+    final @NonNull String   name;
+    final @NonNull Priority priority;
+
+    Registration(@NonNull String name, @NonNull Priority priority) {
+      this.name     = name;
+      this.priority = priority;
+    }
+  }
+
+  private static final Map<TrimmableCache, Registration> caches = new WeakHashMap<>(); // guarded by itself
+
+  private static int memoryClass = 0;
+
+  public static void init(@NonNull Context context) {
+    context.getApplicationContext().registerComponentCallbacks(new MemoryPressureManager());
+    Log.i(TAG, "memory class " + getMemoryClass(context) + " MB");
+  }
+
+  public static synchronized int getMemoryClass(@NonNull Context context) {
+    if (memoryClass == 0) {
+      ActivityManager activityManager = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+      memoryClass = activityManager.getMemoryClass();
+      if (Util.isLowMemory(context)) {
+        memoryClass = Math.min(memoryClass, BASE_MEMORY_CLASS / 2);
+      }
+    }
+    return memoryClass;
+  }
+
+  /**
+   * @return the given number of entries scaled by the memory class, between half and four times of it.
+   */
+  public static int scaleCacheSize(@NonNull Context context, int baseSize) {
+    float scale = Math.max(0.5f, Math.min(4f, (float) getMemoryClass(context) / BASE_MEMORY_CLASS));
+    return Math.max(1, (int) (baseSize * scale));
+  }
+
+  /**
+   * @return the given fraction of the heap in bytes.
+   */
+  public static long getHeapFraction(@NonNull Context context, float fraction) {
+    return (long) (getMemoryClass(context) * 1024L * 1024L * fraction);
+  }
+
+  public static void register(@NonNull TrimmableCache cache, @NonNull String name, @NonNull Priority priority) {
+    synchronized (caches) {
+      caches.put(cache, new Registration(name, priority));
+    }
+  }
+
+  public static @NonNull String getInfo() {
+    StringBuilder builder = new StringBuilder();
+    builder.append("memory: class=").append(memoryClass).append("MB")
+           .append(" heap=").append(Runtime.getRuntime().totalMemory() / 1024 / 1024).append("MB")
+           .append(" free=").append(Runtime.getRuntime().freeMemory() / 1024 / 1024).append("MB\n");
+
+    for (Map.Entry<TrimmableCache, Registration> entry : getSortedCaches()) {
+      builder.append("  ").append(entry.getValue().name).append(" (").append(entry.getValue().priority).append("): ")
+             .append(entry.getKey().getFootprint()).append("\n");
+    }
+    return builder.toString();
+  }
+
+  private static @NonNull List<Map.Entry<TrimmableCache, Registration>> getSortedCaches() {
+    List<Map.Entry<TrimmableCache, Registration>> sorted;
+    synchronized (caches) {
+      sorted = new ArrayList<>(caches.entrySet());
+    }
+    Collections.sort(sorted, (lhs, rhs) -> lhs.getValue().priority.compareTo(rhs.getValue().priority));
+    return sorted;
+  }
+
+  private static @NonNull Priority getMaxPriority(int level) {
+    if (level >= TRIM_MEMORY_BACKGROUND || level == TRIM_MEMORY_RUNNING_CRITICAL) {
+      return Priority.HIGH;
+    } else if (level >= TRIM_MEMORY_RUNNING_LOW) {
+      return Priority.MEDIUM;
+    } else {
+      return Priority.LOW;
+    }
+  }
+
+  @Override
+  public void onTrimMemory(int level) {
+    Priority maxPriority = getMaxPriority(level);
+    int      trimmed     = 0;
+
+    for (Map.Entry<TrimmableCache, Registration> entry : getSortedCaches()) {
+      if (entry.getValue().priority.compareTo(maxPriority) > 0) {
+        break;
+      }
+      try {
+        entry.getKey().trimMemory(level);
+        trimmed++;
+      } catch (Exception e) {
+        Log.w(TAG, e);
+      }
+    }
+    Log.i(TAG, "trim level " + level + ": trimmed " + trimmed + " caches up to priority " + maxPriority);
+  }
+
+  @Override
+  public void onLowMemory() {
+    onTrimMemory(TRIM_MEMORY_COMPLETE);
+  }
+
+  @Override
+  public void onConfigurationChanged(@NonNull Configuration newConfig) {
+  }
+}
@@ -4,6 +4,7 @@ import android.content.res.Configuration;
 import android.graphics.Canvas;
 import android.graphics.Rect;
 
+import androidx.annotation.NonNull;
 import androidx.core.view.ViewCompat;
 import androidx.recyclerview.widget.LinearLayoutManager;
 import androidx.recyclerview.widget.RecyclerView;
@@ -19,7 +20,7 @@ import java.util.Map;
  * A sticky header decoration for android's RecyclerView.
  * Currently only supports LinearLayoutManager in VERTICAL orientation.
  */
-public class StickyHeaderDecoration extends RecyclerView.ItemDecoration {
+public class StickyHeaderDecoration extends RecyclerView.ItemDecoration implements MemoryPressureManager.TrimmableCache {
 
   private static final String TAG = StickyHeaderDecoration.class.getName();
 
@@ -39,6 +40,8 @@ public class StickyHeaderDecoration extends RecyclerView.ItemDecoration {
     this.headerCache  = new HashMap<>();
     this.renderInline = renderInline;
     this.sticky       = sticky;
+
+    MemoryPressureManager.register(this, "stickyHeaders", MemoryPressureManager.Priority.LOW);
   }
 
   /**
@@ -188,6 +191,17 @@ public class StickyHeaderDecoration extends RecyclerView.ItemDecoration {
     headerCache.clear();
   }
 
+  @Override
+  public void trimMemory(int level) {
+    // called on the main thread, the headers are created again when they are drawn
+    invalidateLayouts();
+  }
+
+  @Override
+  public @NonNull String getFootprint() {
+    return headerCache.size() + " headers";
+  }
+
   /**
    * The adapter to assist the {@link StickyHeaderDecoration} in creating and binding the header views.
    *
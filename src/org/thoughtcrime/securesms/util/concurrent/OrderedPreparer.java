@@ -0,0 +1,79 @@
+package org.thoughtcrime.securesms.util.concurrent;
+
+import androidx.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Prepares items in parallel and hands them on strictly in their order,
+ * eg. shared attachments are copied in parallel but sent in the shared order.
+ */
+public class OrderedPreparer {
+
+  public interface Preparation<T, R> {
+    R prepare(T item) throws Exception;
+  }
+
+  public interface Handler<T, R> {
+    void handle(int index, T item, R prepared);
+  }
+
+  public interface Discard<R> {
+    void discard(R prepared);
+  }
+
+  /**
+   * Prepares the items on the given number of threads and hands them to the handler in order:
+   * the futures act as reorder buffer, a prepared item waits there until its predecessors are handled.
+   * If a preparation fails or the handler throws, the remaining preparations are cancelled;
+   * the results of those that were prepared but not handled are passed to discard.
+   */
+  public static <T, R> void run(@NonNull List<T> items, int threads, @NonNull Preparation<T, R> preparation,
+                                @NonNull Handler<T, R> handler, @NonNull Discard<R> discard)
+      throws InterruptedException, ExecutionException
+  {
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    List<Future<R>> prepared = new ArrayList<>(items.size());
+    for (T item : items) {
+      prepared.add(executor.submit(() -> preparation.prepare(item)));
+    }
+    executor.shutdown();
+
+    int handled = 0;
+    try {
+      for (; handled < prepared.size(); handled++) {
+        handler.handle(handled, items.get(handled), prepared.get(handled).get());
+      }
+    } catch (InterruptedException | ExecutionException | RuntimeException e) {
+      executor.shutdownNow();
+      discardUnhandled(executor, prepared, handled, discard);
+      throw e;
+    }
+  }
+
+  private static <R> void discardUnhandled(ExecutorService executor, List<Future<R>> prepared, int firstUnhandled, Discard<R> discard) {
+    // running preparations may not react on the interrupt, their results are discarded when they are done
+    try {
+      executor.awaitTermination(1, TimeUnit.MINUTES);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+
+    for (int i = firstUnhandled; i < prepared.size(); i++) {
+      Future<R> future = prepared.get(i);
+      if (future.isDone() && !future.isCancelled()) {
+        try {
+          discard.discard(future.get());
+        } catch (InterruptedException | ExecutionException e) {
+          // not prepared, nothing to discard
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,42 @@
+package org.thoughtcrime.securesms.video.recode;
+
+import java.util.Arrays;
+
+/**
+ * A growable array of primitive longs, used for the sample tables of a track
+ * that may have hundreds of thousands of entries.
+ */
+class LongArray {
+    private long[] values;
+    private int size = 0;
+
+    LongArray(int initialCapacity) {
+        values = new long[Math.max(initialCapacity, 1)];
+    }
+
+    void add(long value) {
+        if (size == values.length) {
+            values = Arrays.copyOf(values, size * 2);
+        }
+        values[size++] = value;
+    }
+
+    long get(int index) {
+        if (index >= size) {
+            throw new ArrayIndexOutOfBoundsException(index);
+        }
+        return values[index];
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    long[] toArray() {
+        return Arrays.copyOf(values, size);
+    }
+}
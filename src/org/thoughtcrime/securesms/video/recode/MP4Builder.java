@@ -37,7 +37,6 @@ import java.nio.channels.FileChannel;
 import java.nio.channels.WritableByteChannel;
 import java.util.ArrayList;
 import java.util.Date;
-import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 
@@ -51,9 +50,13 @@ public class MP4Builder {
     private long dataOffset = 0;
     private long writedSinceLastMdat = 0;
     private boolean writeNewMdat = true;
-    private HashMap<Track, long[]> track2SampleSizes = new HashMap<>();
     private ByteBuffer sizeBuffer = null;
 
+    // samples and mdat headers are collected here and written with one call,
+    // instead of writing each sample and its length prefix separately
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+    private ByteBuffer writeBuffer = null;
+
     public MP4Builder createMovie(Mp4Movie mp4Movie) throws Exception {
         currentMp4Movie = mp4Movie;
 
@@ -68,11 +71,21 @@ public class MP4Builder {
         mdat = new InterleaveChunkMdat();
 
         sizeBuffer = ByteBuffer.allocateDirect(4);
+        writeBuffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
 
         return this;
     }
 
+    private void flushWriteBuffer() throws IOException {
+        writeBuffer.flip();
+        while (writeBuffer.hasRemaining()) {
+            fc.write(writeBuffer);
+        }
+        writeBuffer.clear();
+    }
+
     private void flushCurrentMdat() throws Exception {
+        flushWriteBuffer();
         long oldPosition = fc.position();
         fc.position(mdat.getOffset());
         mdat.getBox(fc);
@@ -85,7 +98,11 @@ public class MP4Builder {
     public boolean writeSampleData(int trackIndex, ByteBuffer byteBuf, MediaCodec.BufferInfo bufferInfo, boolean isAudio) throws Exception {
         if (writeNewMdat) {
             mdat.setContentSize(0);
-            mdat.getBox(fc);
+            ByteBuffer header = mdat.getHeader();
+            if (writeBuffer.remaining() < header.remaining()) {
+                flushWriteBuffer();
+            }
+            writeBuffer.put(header);
             mdat.setDataOffset(dataOffset);
             dataOffset += 16;
             writedSinceLastMdat += 16;
@@ -107,14 +124,23 @@ public class MP4Builder {
         byteBuf.position(bufferInfo.offset + (isAudio ? 0 : 4));
         byteBuf.limit(bufferInfo.offset + bufferInfo.size);
 
-        if (!isAudio) {
+        if (writeBuffer.remaining() < bufferInfo.size) {
+            flushWriteBuffer();
+        }
+        if (writeBuffer.remaining() >= bufferInfo.size) {
+            if (!isAudio) {
+                writeBuffer.putInt(bufferInfo.size - 4);
+            }
+            writeBuffer.put(byteBuf);
+        } else if (!isAudio) {
+            // larger than the buffer, write length prefix and sample with one gathering write
             sizeBuffer.position(0);
             sizeBuffer.putInt(bufferInfo.size - 4);
             sizeBuffer.position(0);
-            fc.write(sizeBuffer);
+            fc.write(new ByteBuffer[]{sizeBuffer, byteBuf});
+        } else {
+            fc.write(byteBuf);
         }
-
-        fc.write(byteBuf);
         dataOffset += bufferInfo.size;
 
         if (flush) {
@@ -131,15 +157,7 @@ public class MP4Builder {
         if (mdat.getContentSize() != 0) {
             flushCurrentMdat();
         }
-
-        for (Track track : currentMp4Movie.getTracks()) {
-            List<Sample> samples = track.getSamples();
-            long[] sizes = new long[samples.size()];
-            for (int i = 0; i < sizes.length; i++) {
-                sizes[i] = samples.get(i).getSize();
-            }
-            track2SampleSizes.put(track, sizes);
-        }
+        flushWriteBuffer();
 
         Box moov = createMovieBox(currentMp4Movie);
         moov.getBox(fc);
@@ -203,6 +221,10 @@ public class MP4Builder {
         }
 
         public void getBox(WritableByteChannel writableByteChannel) throws IOException {
+            writableByteChannel.write(getHeader());
+        }
+
+        ByteBuffer getHeader() {
             ByteBuffer bb = ByteBuffer.allocate(16);
             long size = getSize();
             if (isSmallBox(size)) {
@@ -217,7 +239,7 @@ public class MP4Builder {
                 IsoTypeWriter.writeUInt64(bb, size);
             }
             bb.rewind();
-            writableByteChannel.write(bb);
+            return bb;
         }
     }
 
@@ -376,19 +398,17 @@ public class MP4Builder {
 
         int previousWritedChunkCount = -1;
 
-        int samplesCount = track.getSamples().size();
+        int samplesCount = track.getSampleCount();
         for (int a = 0; a < samplesCount; a++) {
-            Sample sample = track.getSamples().get(a);
-            long offset = sample.getOffset();
-            long size = sample.getSize();
+            long offset = track.getSampleOffset(a);
+            long size = track.getSampleSize(a);
 
             lastOffset = offset + size;
             lastSampleCount++;
 
             boolean write = false;
             if (a != samplesCount - 1) {
-                Sample nextSample = track.getSamples().get(a + 1);
-                if (lastOffset != nextSample.getOffset()) {
+                if (lastOffset != track.getSampleOffset(a + 1)) {
                     write = true;
                 }
             } else {
@@ -408,30 +428,27 @@ public class MP4Builder {
 
     protected void createStsz(Track track, SampleTableBox stbl) {
         SampleSizeBox stsz = new SampleSizeBox();
-        stsz.setSampleSizes(track2SampleSizes.get(track));
+        stsz.setSampleSizes(track.getSampleSizes());
         stbl.addBox(stsz);
     }
 
     protected void createStco(Track track, SampleTableBox stbl) {
-        ArrayList<Long> chunksOffsets = new ArrayList<>();
+        LongArray chunksOffsets = new LongArray(256);
         long lastOffset = -1;
-        for (Sample sample : track.getSamples()) {
-            long offset = sample.getOffset();
+        int samplesCount = track.getSampleCount();
+        for (int a = 0; a < samplesCount; a++) {
+            long offset = track.getSampleOffset(a);
             if (lastOffset != -1 && lastOffset != offset) {
                 lastOffset = -1;
             }
             if (lastOffset == -1) {
                 chunksOffsets.add(offset);
             }
-            lastOffset = offset + sample.getSize();
-        }
-        long[] chunkOffsetsLong = new long[chunksOffsets.size()];
-        for (int a = 0; a < chunksOffsets.size(); a++) {
-            chunkOffsetsLong[a] = chunksOffsets.get(a);
+            lastOffset = offset + track.getSampleSize(a);
         }
 
         StaticChunkOffsetBox stco = new StaticChunkOffsetBox();
-        stco.setChunkOffsets(chunkOffsetsLong);
+        stco.setChunkOffsets(chunksOffsets.toArray());
         stbl.addBox(stco);
     }
 }
@@ -21,24 +21,25 @@ import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
-import java.util.LinkedList;
 import java.util.Map;
 
 @TargetApi(16)
 public class Track {
     private long trackId = 0;
-    private ArrayList<Sample> samples = new ArrayList<>();
+    private LongArray sampleOffsets = new LongArray(1024);
+    private LongArray sampleSizes = new LongArray(1024);
     private long duration = 0;
     private String handler;
     private AbstractMediaHeaderBox headerBox = null;
     private SampleDescriptionBox sampleDescriptionBox = null;
-    private LinkedList<Integer> syncSamples = null;
+    private LongArray syncSamples = null;
     private int timeScale;
     private Date creationTime = new Date();
     private int height;
     private int width;
     private float volume = 0;
-    private ArrayList<Long> sampleDurations = new ArrayList<>();
+    private LongArray sampleDurations = new LongArray(1024); // all but the last sample
+    private long lastSampleDuration;
     private boolean isAudio = false;
     private static Map<Integer, Integer> samplingFrequencyIndexMap = new HashMap<>();
     private long lastPresentationTimeUs = 0;
@@ -63,12 +64,12 @@ public class Track {
         trackId = id;
         isAudio = audio;
         if (!isAudio) {
-            sampleDurations.add((long) 3015);
+            lastSampleDuration = 3015;
             duration = 3015;
             width = format.getInteger(MediaFormat.KEY_WIDTH);
             height = format.getInteger(MediaFormat.KEY_HEIGHT);
             timeScale = 90000;
-            syncSamples = new LinkedList<>();
+            syncSamples = new LongArray(64);
             handler = "vide";
             headerBox = new VideoMediaHeaderBox();
             sampleDescriptionBox = new SampleDescriptionBox();
@@ -127,7 +128,7 @@ public class Track {
                 sampleDescriptionBox.addBox(visualSampleEntry);
             }
         } else {
-            sampleDurations.add((long) 1024);
+            lastSampleDuration = 1024;
             duration = 1024;
             volume = 1;
             timeScale = format.getInteger(MediaFormat.KEY_SAMPLE_RATE);
@@ -181,22 +182,35 @@ public class Track {
             return;
         }
         boolean isSyncFrame = !isAudio && (bufferInfo.flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0;
-        samples.add(new Sample(offset, bufferInfo.size));
+        sampleOffsets.add(offset);
+        sampleSizes.add(bufferInfo.size);
         if (syncSamples != null && isSyncFrame) {
-            syncSamples.add(samples.size());
+            syncSamples.add(sampleSizes.size());
         }
 
         delta = (delta * timeScale + 500000L) / 1000000L;
         lastPresentationTimeUs = bufferInfo.presentationTimeUs;
         if (!first) {
-            sampleDurations.add(sampleDurations.size() - 1, delta);
+            sampleDurations.add(delta);
             duration += delta;
         }
         first = false;
     }
 
-    public ArrayList<Sample> getSamples() {
-        return samples;
+    public int getSampleCount() {
+        return sampleSizes.size();
+    }
+
+    public long getSampleOffset(int index) {
+        return sampleOffsets.get(index);
+    }
+
+    public long getSampleSize(int index) {
+        return sampleSizes.get(index);
+    }
+
+    public long[] getSampleSizes() {
+        return sampleSizes.toArray();
     }
 
     public long getDuration() {
@@ -219,11 +233,7 @@ public class Track {
         if (syncSamples == null || syncSamples.isEmpty()) {
             return null;
         }
-        long[] returns = new long[syncSamples.size()];
-        for (int i = 0; i < syncSamples.size(); i++) {
-            returns[i] = syncSamples.get(i);
-        }
-        return returns;
+        return syncSamples.toArray();
     }
 
     public int getTimeScale() {
@@ -246,8 +256,13 @@ public class Track {
         return volume;
     }
 
-    public ArrayList<Long> getSampleDurations() {
-        return sampleDurations;
+    public long[] getSampleDurations() {
+        long[] durations = new long[sampleDurations.size() + 1];
+        for (int i = 0; i < sampleDurations.size(); i++) {
+            durations[i] = sampleDurations.get(i);
+        }
+        durations[durations.length - 1] = lastSampleDuration;
+        return durations;
     }
 
     public boolean isAudio() {
@@ -0,0 +1,192 @@
+package org.thoughtcrime.securesms.video.recode;
+
+import android.content.Context;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.b44t.messenger.DcMsg;
+
+import org.thoughtcrime.securesms.ApplicationContext;
+import org.thoughtcrime.securesms.connect.ApplicationDcContext;
+import org.thoughtcrime.securesms.connect.DcHelper;
+import org.thoughtcrime.securesms.jobmanager.Job;
+import org.thoughtcrime.securesms.jobmanager.JobParameters;
+import org.thoughtcrime.securesms.util.Prefs;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Recodes the video of a message prepared by VideoRecoder.prepareVideo() and sends the message then;
+ * until the job is finished, the message stays in DC_STATE_OUT_PREPARING.
+ *
+ * The JobManager does not persist jobs, so the ids of the pending messages are kept in the preferences
+ * and resumePendingJobs() restarts their recoding from the beginning when the process was killed.
+ */
+public class VideoRecodeJob extends Job {
+
+  private static final long serialVersionUID = 1L;
+
+  private static final String TAG = VideoRecodeJob.class.getSimpleName();
+
+  // app-local event, outside the range used by the core; data1=msgId, data2=percent
+  public static final int EVENT_PROGRESS = 100000;
+
+  private static final String PENDING_PREF = "pref_pending_video_recodes";
+
+  // queued and running jobs by msgId, the keys are the persisted ids
+  private static final Map<Integer, VideoRecodeJob> jobs = new HashMap<>();
+
+  private final int msgId;
+
+  private transient Context      context;
+  private transient VideoRecoder videoRecoder; // guarded by jobs
+  private transient boolean      canceled;     // guarded by jobs
+  private transient volatile int progress = -1;
+
+  private VideoRecodeJob(Context context, int msgId) {
+    super(JobParameters.newBuilder()
+                       .withGroupId(VideoRecodeJob.class.getSimpleName())
+                       .withWakeLock(true)
+                       .withRetryCount(1)
+                       .create());
+    this.context = context.getApplicationContext();
+    this.msgId   = msgId;
+  }
+
+  static void enqueue(Context context, int msgId) {
+    VideoRecodeJob job = new VideoRecodeJob(context, msgId);
+    synchronized (jobs) {
+      if (jobs.containsKey(msgId)) {
+        return;
+      }
+      jobs.put(msgId, job);
+      savePendingMsgIds(context);
+    }
+    ApplicationContext.getInstance(context).getJobManager().add(job);
+  }
+
+  /**
+   * Restarts the jobs of messages that were still being recoded when the process was killed,
+   * to be called from a background thread on startup.
+   */
+  public static void resumePendingJobs(Context context) {
+    ApplicationDcContext dcContext = DcHelper.getContext(context);
+    String               pending   = Prefs.getStringPreference(context, PENDING_PREF, "");
+
+    for (String value : pending.split(",")) {
+      if (value.isEmpty()) {
+        continue;
+      }
+      try {
+        int   msgId = Integer.parseInt(value);
+        DcMsg msg   = dcContext.getMsg(msgId);
+        if (msg.getId() != 0 && msg.isPreparing()) {
+          Log.i(TAG, "restarting recoding for msg " + msgId);
+          enqueue(context, msgId);
+        }
+      } catch (NumberFormatException e) {
+        Log.w(TAG, e);
+      }
+    }
+
+    // forget the ids of messages that were deleted or sent meanwhile
+    synchronized (jobs) {
+      savePendingMsgIds(context);
+    }
+  }
+
+  /**
+   * Cancels the recoding of the given messages, if any, eg. because they are deleted.
+   */
+  public static void cancel(Context context, int[] msgIds) {
+    synchronized (jobs) {
+      boolean changed = false;
+      for (int msgId : msgIds) {
+        VideoRecodeJob job = jobs.remove(msgId);
+        if (job != null) {
+          job.canceled = true;
+          if (job.videoRecoder != null) {
+            job.videoRecoder.cancel();
+          }
+          changed = true;
+        }
+      }
+      if (changed) {
+        savePendingMsgIds(context);
+      }
+    }
+  }
+
+  /**
+   * @return the progress of the recoding in percent or -1 if the message is not recoded.
+   */
+  public static int getProgress(int msgId) {
+    synchronized (jobs) {
+      VideoRecodeJob job = jobs.get(msgId);
+      return job != null ? job.progress : -1;
+    }
+  }
+
+  private static void savePendingMsgIds(Context context) {
+    Prefs.setStringPreference(context, PENDING_PREF, TextUtils.join(",", jobs.keySet()));
+  }
+
+  @Override
+  public void onAdded() {}
+
+  @Override
+  protected void onRun() {
+    ApplicationDcContext dcContext = DcHelper.getContext(context);
+    VideoRecoder         recoder   = new VideoRecoder();
+
+    synchronized (jobs) {
+      if (canceled) {
+        return;
+      }
+      videoRecoder = recoder;
+    }
+
+    recoder.setProgressListener(percent -> {
+      progress = percent;
+      dcContext.eventCenter.sendToObservers(EVENT_PROGRESS, msgId, percent);
+    });
+
+    try {
+      DcMsg msg = dcContext.getMsg(msgId);
+      if (msg.getId() == 0 || !msg.isPreparing()) {
+        Log.w(TAG, "msg " + msgId + " is no longer prepared for sending");
+        return;
+      }
+
+      if (VideoRecoder.recodePreparedVideo(context, msg, recoder)) {
+        dcContext.sendMsg(msg.getChatId(), msg);
+      } else if (!recoder.isCanceled()) {
+        // the error is toasted already, do not leave a message behind that is never sent
+        dcContext.deleteMsgs(new int[]{msgId});
+      }
+    } catch (Exception e) {
+      // a RuntimeException would stop the JobConsumer thread;
+      // as the id is forgotten below, the msg would stay in DC_STATE_OUT_PREPARING otherwise.
+      Log.w(TAG, e);
+      if (!recoder.isCanceled()) {
+        dcContext.deleteMsgs(new int[]{msgId});
+      }
+    } finally {
+      synchronized (jobs) {
+        if (jobs.get(msgId) == this) {
+          jobs.remove(msgId);
+          savePendingMsgIds(context);
+        }
+      }
+    }
+  }
+
+  @Override
+  public boolean onShouldRetry(Exception exception) {
+    return false;
+  }
+
+  @Override
+  public void onCanceled() {}
+}
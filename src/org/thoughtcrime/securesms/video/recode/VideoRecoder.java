@@ -9,6 +9,7 @@ import android.media.MediaCodecList;
 import android.media.MediaExtractor;
 import android.media.MediaFormat;
 import android.os.Build;
+import android.os.SystemClock;
 import android.util.Log;
 import android.widget.Toast;
 
@@ -46,6 +47,41 @@ public class VideoRecoder {
   private boolean cancelCurrentVideoConversion = false;
   private final Object videoConvertSync = new Object();
 
+  public interface ProgressListener {
+    void onProgress(int percent);
+  }
+
+  private ProgressListener progressListener;
+  private long progressDurationUs;
+  private int lastProgress = -1;
+
+  void setProgressListener(ProgressListener progressListener) {
+    this.progressListener = progressListener;
+  }
+
+  // may be called from any thread, convertVideo() stops at the next frame then
+  void cancel() {
+    synchronized (videoConvertSync) {
+      cancelCurrentVideoConversion = true;
+    }
+  }
+
+  boolean isCanceled() {
+    synchronized (videoConvertSync) {
+      return cancelCurrentVideoConversion;
+    }
+  }
+
+  private void didWriteData(long presentationTimeUs) {
+    if (progressListener != null && progressDurationUs > 0) {
+      int progress = (int) Math.max(0, Math.min(99, presentationTimeUs * 100 / progressDurationUs));
+      if (progress != lastProgress) {
+        lastProgress = progress;
+        progressListener.onProgress(progress);
+      }
+    }
+  }
+
   private void checkConversionCanceled() throws Exception {
     boolean cancelConversion;
     synchronized (videoConvertSync) {
@@ -170,8 +206,8 @@ public class VideoRecoder {
               if (info.presentationTimeUs > lastTimestamp) {
                 info.offset = 0;
                 info.flags = extractor.getSampleFlags();
-                if (mediaMuxer.writeSampleData(muxerTrackIndex, buffer, info, isAudio)) {
-                  //didWriteData(messageObject, file, false, false);
+                if (mediaMuxer.writeSampleData(muxerTrackIndex, buffer, info, isAudio) && !isAudio) {
+                  didWriteData(info.presentationTimeUs);
                 }
               }
               lastTimestamp = info.presentationTimeUs;
@@ -247,6 +283,7 @@ public class VideoRecoder {
     videoConvertFirstWrite = true;
     boolean error = false;
     long videoStartTime = startTime;
+    progressDurationUs = (endTime > 0 ? endTime : (long) (videoEditedInfo.originalDurationMs * 1000)) - Math.max(0, startTime);
 
     long time = System.currentTimeMillis();
 
@@ -460,7 +497,7 @@ public class VideoRecoder {
                     if (info.size > 1) {
                       if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0) {
                         if (mediaMuxer.writeSampleData(videoTrackIndex, encodedData, info, false)) {
-                          //didWriteData(messageObject, cacheFile, false, false);
+                          didWriteData(info.presentationTimeUs);
                         }
                       } else if (videoTrackIndex == -5) {
                         byte[] csd = new byte[info.size];
@@ -656,6 +693,7 @@ public class VideoRecoder {
     int    resultVideoBitrate;
 
     int    estimatedBytes;
+    boolean recodeNeeded;
   }
 
   public static boolean canRecode()
@@ -767,113 +805,165 @@ public class VideoRecoder {
     Util.runOnMain(()->Toast.makeText(context, str, Toast.LENGTH_LONG).show());
   }
 
-  // prepareVideo() assumes the msg object is set up properly to being sent;
-  // the function fills out missing information and also recodes the video as needed;
-  // to get a responsive ui, DcChat.prepareMsg() may be called.
-  // return: true=video might be prepared, can be sent, false=error
-  public static boolean prepareVideo(Context context, int chatId, DcMsg msg) {
+  // getRecodeInfo() reads the video and calculates the parameters for recoding;
+  // missing information is set to the msg object.
+  // return: null=error, the error is logged and toasted
+  private static VideoEditedInfo getRecodeInfo(Context context, DcMsg msg) {
+    String inPath = msg.getFile();
 
-    try {
-      String inPath = msg.getFile();
+    // try to get information from video file
+    VideoEditedInfo vei = getVideoEditInfoFromFile(inPath);
+    if (vei == null) {
+      logNtoast(context, String.format("recoding for %s failed: cannot get info", inPath));
+      return null;
+    }
+    vei.rotationValue = vei.originalRotationValue;
+    vei.startTime = 0;
+    vei.endTime = -1;
+
+    // set these information to the message object (not yet in database);
+    // if we can recdode, this will be overwritten below
+    if (vei.originalRotationValue == 90 || vei.originalRotationValue == 270) {
+      msg.setDimension(vei.originalHeight, vei.originalWidth);
+    } else {
+      msg.setDimension(vei.originalWidth, vei.originalHeight);
+    }
+    msg.setDuration((int)vei.originalDurationMs);
 
-      // try to get information from video file
-      VideoEditedInfo vei = getVideoEditInfoFromFile(inPath);
-      if (vei == null) {
-        logNtoast(context, String.format("recoding for %s failed: cannot get info", inPath));
-        return false;
-      }
-      vei.rotationValue = vei.originalRotationValue;
-      vei.startTime = 0;
-      vei.endTime = -1;
-
-      // set these information to the message object (not yet in database);
-      // if we can recdode, this will be overwritten below
-      if (vei.originalRotationValue == 90 || vei.originalRotationValue == 270) {
-        msg.setDimension(vei.originalHeight, vei.originalWidth);
-      } else {
-        msg.setDimension(vei.originalWidth, vei.originalHeight);
-      }
-      msg.setDuration((int)vei.originalDurationMs);
+    if (!canRecode()) {
+      logNtoast(context, String.format("recoding for %s failed: this system cannot recode videos", inPath));
+      return null;
+    }
 
-      if (!canRecode()) {
-        logNtoast(context, String.format("recoding for %s failed: this system cannot recode videos", inPath));
-        return false;
-      }
+    // check if video bitrate is already reasonable
+    final int  MAX_KBPS = 1500000;
+    final long MAX_BYTES = DcHelper.getInt(context, "sys.msgsize_max_recommended");
+    long inBytes = new File(inPath).length();
+    if (inBytes > 0 && inBytes <= MAX_BYTES && vei.originalVideoBitrate <= MAX_KBPS*2 /*be tolerant as long the file size matches*/) {
+      Log.i(TAG, String.format("recoding for %s is not needed, %d bytes and %d kbps are ok", inPath, inBytes, vei.originalVideoBitrate));
+      vei.recodeNeeded = false;
+      return vei;
+    }
 
-      // check if video bitrate is already reasonable
-      final int  MAX_KBPS = 1500000;
-      final long MAX_BYTES = DcHelper.getInt(context, "sys.msgsize_max_recommended");
-      long inBytes = new File(inPath).length();
-      if (inBytes > 0 && inBytes <= MAX_BYTES && vei.originalVideoBitrate <= MAX_KBPS*2 /*be tolerant as long the file size matches*/) {
-        Log.i(TAG, String.format("recoding for %s is not needed, %d bytes and %d kbps are ok", inPath, inBytes, vei.originalVideoBitrate));
-        return true;
+    // calculate new video bitrate, sth. between 200 kbps and 1500 kbps
+    long resultDurationMs = (long) vei.originalDurationMs;
+    long maxVideoBytes = MAX_BYTES - vei.originalAudioBytes - resultDurationMs /*10 kbps codec overhead*/;
+    vei.resultVideoBitrate = (int) (maxVideoBytes / Math.max(1, resultDurationMs / 1000) * 8);
+
+    if (vei.resultVideoBitrate < 200000) {
+      vei.resultVideoBitrate = 200000;
+    } else if (vei.resultVideoBitrate > 500000) {
+      boolean hardCompression = Prefs.isHardCompressionEnabled(context);
+      if (resultDurationMs < 30 * 1000 && !hardCompression) {
+        vei.resultVideoBitrate = MAX_KBPS; // ~ 12 MB/minute, plus Audio
+      } else if (resultDurationMs < 60 * 1000 && !hardCompression) {
+        vei.resultVideoBitrate = 1000000; // ~ 8 MB/minute, plus Audio
+      } else {
+        vei.resultVideoBitrate = 500000; // ~ 3.7 MB/minute, plus Audio
       }
+    }
 
-      // calculate new video bitrate, sth. between 200 kbps and 1500 kbps
-      long resultDurationMs = (long) vei.originalDurationMs;
-      long maxVideoBytes = MAX_BYTES - vei.originalAudioBytes - resultDurationMs /*10 kbps codec overhead*/;
-      vei.resultVideoBitrate = (int) (maxVideoBytes / Math.max(1, resultDurationMs / 1000) * 8);
-
-      if (vei.resultVideoBitrate < 200000) {
-        vei.resultVideoBitrate = 200000;
-      } else if (vei.resultVideoBitrate > 500000) {
-        boolean hardCompression = Prefs.isHardCompressionEnabled(context);
-        if (resultDurationMs < 30 * 1000 && !hardCompression) {
-          vei.resultVideoBitrate = MAX_KBPS; // ~ 12 MB/minute, plus Audio
-        } else if (resultDurationMs < 60 * 1000 && !hardCompression) {
-          vei.resultVideoBitrate = 1000000; // ~ 8 MB/minute, plus Audio
-        } else {
-          vei.resultVideoBitrate = 500000; // ~ 3.7 MB/minute, plus Audio
-        }
-      }
+    // calculate video dimensions
+    int maxSide = vei.resultVideoBitrate > 400000 ? 640 : 480;
+    vei.resultWidth = vei.originalWidth;
+    vei.resultHeight = vei.originalHeight;
+    if (vei.resultWidth > maxSide || vei.resultHeight > maxSide) {
+      float scale = vei.resultWidth > vei.resultHeight ? (float) maxSide / vei.resultWidth : (float) maxSide / vei.resultHeight;
+      vei.resultWidth *= scale;
+      vei.resultHeight *= scale;
+    }
 
-      // calculate video dimensions
-      int maxSide = vei.resultVideoBitrate > 400000 ? 640 : 480;
-      vei.resultWidth = vei.originalWidth;
-      vei.resultHeight = vei.originalHeight;
-      if (vei.resultWidth > maxSide || vei.resultHeight > maxSide) {
-        float scale = vei.resultWidth > vei.resultHeight ? (float) maxSide / vei.resultWidth : (float) maxSide / vei.resultHeight;
-        vei.resultWidth *= scale;
-        vei.resultHeight *= scale;
-      }
+    if (vei.originalRotationValue == 90 || vei.originalRotationValue == 270) {
+      msg.setDimension(vei.resultHeight, vei.resultWidth);
+    } else {
+      msg.setDimension(vei.resultWidth, vei.resultHeight);
+    }
+    msg.setDuration((int) resultDurationMs);
 
-      // we know the most important things now, prepare the message to get a resposive ui
-      if (vei.originalRotationValue == 90 || vei.originalRotationValue == 270) {
-        msg.setDimension(vei.resultHeight, vei.resultWidth);
-      } else {
-        msg.setDimension(vei.resultWidth, vei.resultHeight);
-      }
-      msg.setDuration((int) resultDurationMs);
-      DcHelper.getContext(context).prepareMsg(chatId, msg);
+    // calulate bytes
+    vei.estimatedBytes = VideoRecoder.calculateEstimatedSize((float) resultDurationMs / vei.originalDurationMs,
+        vei.resultVideoBitrate, vei.originalDurationMs, vei.originalAudioBytes);
 
-      // calulate bytes
-      vei.estimatedBytes = VideoRecoder.calculateEstimatedSize((float) resultDurationMs / vei.originalDurationMs,
-          vei.resultVideoBitrate, vei.originalDurationMs, vei.originalAudioBytes);
+    if (vei.estimatedBytes > MAX_BYTES+MAX_BYTES/4) {
+      logNtoast(context, String.format("recoding for %s failed: resulting file probably too large", inPath));
+      return null;
+    }
 
-      if (vei.estimatedBytes > MAX_BYTES+MAX_BYTES/4) {
-        logNtoast(context, String.format("recoding for %s failed: resulting file probably too large", inPath));
-        return false;
-      }
+    vei.recodeNeeded = true;
+    return vei;
+  }
 
-      // recode
-      String tempPath = DcHelper.getContext(context).getBlobdirFile(inPath);
-      VideoRecoder videoRecoder = new VideoRecoder();
-      if (!videoRecoder.convertVideo(vei, tempPath)) {
-        logNtoast(context, String.format("recoding for %s failed: cannot convert to temporary file %s", inPath, tempPath));
-        return false;
-      }
+  // prepareVideo() assumes the msg object is set up properly to being sent;
+  // the function fills out missing information.
+  // if the video needs to be recoded, the msg is prepared by DcChat.prepareMsg() to get a responsive ui
+  // and a VideoRecodeJob is added that recodes and sends the msg in the background.
+  // return: true=video can be sent now, false=error or the msg is sent by the job
+  public static boolean prepareVideo(Context context, int chatId, DcMsg msg) {
 
-      if (!Util.moveFile(tempPath, inPath)) {
-        logNtoast(context, String.format("recoding for %s failed: cannot move temporary file %s", inPath, tempPath));
+    boolean prepared = false;
+    try {
+      VideoEditedInfo vei = getRecodeInfo(context, msg);
+      if (vei == null) {
         return false;
       }
+      if (!vei.recodeNeeded) {
+        return true;
+      }
 
-      Log.i(TAG, String.format("recoding for %s done", inPath));
+      // we know the most important things now, prepare the message to get a resposive ui
+      DcHelper.getContext(context).prepareMsg(chatId, msg);
+      prepared = true;
+      VideoRecodeJob.enqueue(context, msg.getId());
+      return false;
     }
     catch(Exception e) {
       e.printStackTrace();
     }
 
+    if (prepared) {
+      // the msg is shown already, but nobody will recode it; sending it now would skip the recoding
+      // (deleteMsgs() also cancels the job, if it was enqueued)
+      DcHelper.getContext(context).deleteMsgs(new int[]{msg.getId()});
+      logNtoast(context, String.format("recoding for %s failed: cannot start recoding", msg.getFile()));
+      return false;
+    }
+
+    return true;
+  }
+
+  // recodes the video of a msg prepared by prepareVideo(), the recoded file replaces the original one,
+  // which is left untouched until then, so that the recoding can be restarted from the beginning.
+  // return: true=video can be sent, false=error or canceled
+  static boolean recodePreparedVideo(Context context, DcMsg msg, VideoRecoder videoRecoder) {
+    String inPath = msg.getFile();
+    VideoEditedInfo vei = getRecodeInfo(context, msg);
+    if (vei == null) {
+      return false;
+    }
+    if (!vei.recodeNeeded) {
+      return true; // eg. recoded before the process was killed
+    }
+
+    String tempPath = DcHelper.getContext(context).getBlobdirFile(inPath);
+    long startTime = SystemClock.elapsedRealtime();
+    boolean converted = videoRecoder.convertVideo(vei, tempPath);
+    if (videoRecoder.isCanceled()) {
+      new File(tempPath).delete();
+      Log.i(TAG, String.format("recoding for %s canceled", inPath));
+      return false;
+    }
+    if (!converted) {
+      new File(tempPath).delete();
+      logNtoast(context, String.format("recoding for %s failed: cannot convert to temporary file %s", inPath, tempPath));
+      return false;
+    }
+
+    if (!Util.moveFile(tempPath, inPath)) {
+      logNtoast(context, String.format("recoding for %s failed: cannot move temporary file %s", inPath, tempPath));
+      return false;
+    }
+
+    Log.i(TAG, String.format("recoding for %s done in %d ms", inPath, SystemClock.elapsedRealtime() - startTime));
     return true;
   }
 }
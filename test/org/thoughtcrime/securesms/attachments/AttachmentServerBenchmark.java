@@ -0,0 +1,164 @@
+package org.thoughtcrime.securesms.attachments;
+
+import android.content.Context;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.powermock.api.mockito.PowerMockito;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.core.classloader.annotations.SuppressStaticInitializationFor;
+import org.powermock.modules.junit4.PowerMockRunner;
+import org.thoughtcrime.securesms.mms.PartAuthority;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assume.assumeTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.powermock.api.mockito.PowerMockito.mockStatic;
+
+@RunWith(PowerMockRunner.class)
+@PrepareForTest({ Log.class, Uri.class, SystemClock.class, PartAuthority.class })
+@SuppressStaticInitializationFor({ "org.thoughtcrime.securesms.mms.PartAuthority",
+                                   "org.thoughtcrime.securesms.util.Util" })
+public class AttachmentServerBenchmark {
+
+  private static final int ATTACHMENT_SIZE = 16 * 1024 * 1024;
+  private static final int CLIENTS         = 4;
+  private static final int SEEKS           = 50;
+  private static final int RANGE_LENGTH    = 256 * 1024;
+
+  private byte[]           data;
+  private File             file;
+  private AttachmentServer server;
+
+  private AttachmentServerBenchmarkClient client;
+
+  @Before
+  public void setUp() throws Exception {
+    mockStatic(Log.class);
+    mockStatic(Uri.class);
+    mockStatic(SystemClock.class);
+    mockStatic(PartAuthority.class);
+
+    data = new byte[ATTACHMENT_SIZE];
+    new Random(42).nextBytes(data);
+
+    file = File.createTempFile("attachment", ".mp4");
+    try (FileOutputStream out = new FileOutputStream(file)) {
+      out.write(data);
+    }
+  }
+
+  @After
+  public void tearDown() {
+    if (server != null) server.stop();
+    file.delete();
+  }
+
+  @Test
+  public void benchmarkFileRanges() throws Exception {
+    assumeTrue("timings only run with -Pbenchmark", Boolean.getBoolean("benchmark"));
+
+    when(PartAuthority.getAttachmentStream(any(Context.class), any(Uri.class)))
+        .thenAnswer(invocation -> new FileInputStream(file));
+    startServer();
+
+    AttachmentServerBenchmarkClient.Result result = client.run(CLIENTS, SEEKS, RANGE_LENGTH);
+    System.out.println("file, zero-copy: " + result);
+
+    assertThat(result.bytes).isEqualTo((long) CLIENTS * SEEKS * RANGE_LENGTH);
+    for (AttachmentServer.RequestMetrics metrics : server.getRecentRequests()) {
+      assertThat(metrics.zeroCopy).isTrue();
+    }
+  }
+
+  @Test
+  public void benchmarkStreamRanges() throws Exception {
+    assumeTrue("timings only run with -Pbenchmark", Boolean.getBoolean("benchmark"));
+
+    when(PartAuthority.getAttachmentStream(any(Context.class), any(Uri.class)))
+        .thenAnswer(invocation -> new BufferedInputStream(new FileInputStream(file)));
+    startServer();
+
+    AttachmentServerBenchmarkClient.Result result = client.run(CLIENTS, SEEKS, RANGE_LENGTH);
+    System.out.println("stream, copied: " + result);
+
+    assertThat(result.bytes).isEqualTo((long) CLIENTS * SEEKS * RANGE_LENGTH);
+    for (AttachmentServer.RequestMetrics metrics : server.getRecentRequests()) {
+      assertThat(metrics.zeroCopy).isFalse();
+    }
+  }
+
+  @Test
+  public void seekIsNotBlockedByStalledStream() throws Exception {
+    CountDownLatch stalled     = new CountDownLatch(1);
+    AtomicBoolean  firstStream = new AtomicBoolean(true);
+
+    // the first request gets a stream that blocks on reading until the test ends
+    when(PartAuthority.getAttachmentStream(any(Context.class), any(Uri.class))).thenAnswer(invocation -> {
+      if (!firstStream.getAndSet(false)) {
+        return new FileInputStream(file);
+      }
+      return new InputStream() {
+        @Override
+        public int read() throws IOException {
+          try {
+            stalled.countDown();
+            new CountDownLatch(1).await();
+            return -1;
+          } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+          }
+        }
+      };
+    });
+    startServer();
+
+    try (AttachmentServerBenchmarkClient.Connection stalledConnection = client.open();
+         AttachmentServerBenchmarkClient.Connection seekConnection    = client.open())
+    {
+      stalledConnection.request(null);
+      assertThat(stalledConnection.readHeader().status).isEqualTo(200);
+      stalled.await();
+
+      long start = System.nanoTime();
+      seekConnection.get(ATTACHMENT_SIZE / 2, ATTACHMENT_SIZE / 2 + RANGE_LENGTH - 1);
+      System.out.println("seek during stalled stream: " + (System.nanoTime() - start) / 1000000 + " ms");
+    }
+  }
+
+  private void startServer() throws IOException {
+    Attachment attachment = mock(Attachment.class);
+    when(attachment.getSize()).thenReturn((long) ATTACHMENT_SIZE);
+    when(attachment.getContentType()).thenReturn("video/mp4");
+
+    server = new AttachmentServer(mock(Context.class), attachment);
+    server.start();
+
+    // Uri is mocked, so get the uri from the string it is parsed from
+    ArgumentCaptor<String> uri = ArgumentCaptor.forClass(String.class);
+    server.getUri();
+    PowerMockito.verifyStatic();
+    Uri.parse(uri.capture());
+
+    client = new AttachmentServerBenchmarkClient(uri.getValue(), data);
+  }
+}
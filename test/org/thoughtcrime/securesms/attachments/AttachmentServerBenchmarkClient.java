@@ -0,0 +1,198 @@
+package org.thoughtcrime.securesms.attachments;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * A local HTTP client for AttachmentServer that seeks like a player does: every client keeps its
+ * connection alive and requests ranges at random positions; the received bytes are checked
+ * against the attachment and the overall throughput is measured.
+ */
+class AttachmentServerBenchmarkClient {
+
+  private final int    port;
+  private final String path;
+  private final byte[] attachment;
+
+  AttachmentServerBenchmarkClient(@NonNull String uri, @NonNull byte[] attachment) {
+    URI parsed = URI.create(uri);
+    this.port       = parsed.getPort();
+    this.path       = parsed.getPath();
+    this.attachment = attachment;
+  }
+
+  /**
+   * Runs the given number of clients in parallel, each sending requestsPerClient Range requests.
+   */
+  @NonNull Result run(int clients, int requestsPerClient, int rangeLength) throws Exception {
+    ExecutorService    executor = Executors.newFixedThreadPool(clients);
+    List<Future<Long>> futures  = new ArrayList<>();
+    long               start    = System.nanoTime();
+
+    try {
+      for (int i = 0; i < clients; i++) {
+        final long seed = i;
+        futures.add(executor.submit(() -> seek(seed, requestsPerClient, rangeLength)));
+      }
+
+      long bytes = 0;
+      for (Future<Long> future : futures) {
+        bytes += future.get();
+      }
+      return new Result(clients * requestsPerClient, bytes, (System.nanoTime() - start) / 1000000);
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  private long seek(long seed, int requests, int rangeLength) throws IOException {
+    Random random = new Random(seed);
+    long   bytes  = 0;
+
+    try (Connection connection = open()) {
+      for (int i = 0; i < requests; i++) {
+        int first = random.nextInt(attachment.length - rangeLength + 1);
+        bytes += connection.get(first, first + rangeLength - 1).length;
+      }
+    }
+    return bytes;
+  }
+
+  @NonNull Connection open() throws IOException {
+    return new Connection(new Socket("127.0.0.1", port));
+  }
+
+  /**
+   * One keep-alive connection to the server.
+   */
+  class Connection implements Closeable {
+
+    private final Socket       socket;
+    private final InputStream  in;
+    private final OutputStream out;
+
+    private Connection(@NonNull Socket socket) throws IOException {
+      this.socket = socket;
+      this.socket.setSoTimeout(10000);
+      this.in     = new BufferedInputStream(socket.getInputStream());
+      this.out    = socket.getOutputStream();
+    }
+
+    /**
+     * Requests the bytes first..last and checks that they are the ones of the attachment.
+     */
+    @NonNull byte[] get(long first, long last) throws IOException {
+      request("bytes=" + first + "-" + last);
+
+      ResponseHeader header = readHeader();
+      if (header.status != 206) {
+        throw new IOException("Expected 206, got " + header.status);
+      }
+
+      byte[] body = readBody(header.contentLength);
+      if (!Arrays.equals(body, Arrays.copyOfRange(attachment, (int) first, (int) last + 1))) {
+        throw new IOException("Wrong bytes for range " + first + "-" + last);
+      }
+      return body;
+    }
+
+    void request(@Nullable String range) throws IOException {
+      String request = "GET " + path + " HTTP/1.1\r\n" +
+                       "Host: 127.0.0.1:" + port + "\r\n" +
+                       (range != null ? "Range: " + range + "\r\n" : "") +
+                       "\r\n";
+      out.write(request.getBytes("ISO-8859-1"));
+      out.flush();
+    }
+
+    @NonNull ResponseHeader readHeader() throws IOException {
+      ByteArrayOutputStream header = new ByteArrayOutputStream();
+      int                   matched = 0;
+
+      while (matched < 4) {
+        int b = in.read();
+        if (b == -1) throw new EOFException("Connection closed in header");
+        header.write(b);
+        matched = (b == "\r\n\r\n".charAt(matched)) ? matched + 1 : (b == '\r' ? 1 : 0);
+      }
+
+      String[] lines         = header.toString("ISO-8859-1").split("\r\n");
+      int      status        = Integer.parseInt(lines[0].split(" ")[1]);
+      int      contentLength = 0;
+
+      for (String line : lines) {
+        if (line.toLowerCase(Locale.ROOT).startsWith("content-length:")) {
+          contentLength = Integer.parseInt(line.substring(15).trim());
+        }
+      }
+      return new ResponseHeader(status, contentLength);
+    }
+
+    @NonNull byte[] readBody(int length) throws IOException {
+      byte[] body = new byte[length];
+      int    read = 0;
+
+      while (read < length) {
+        int count = in.read(body, read, length - read);
+        if (count == -1) throw new EOFException("Connection closed after " + read + " of " + length + " bytes");
+        read += count;
+      }
+      return body;
+    }
+
+    @Override
+    public void close() throws IOException {
+      socket.close();
+    }
+  }
+
+  static class ResponseHeader {
+    final int status;
+    final int contentLength;
+
+    ResponseHeader(int status, int contentLength) {
+      this.status        = status;
+      this.contentLength = contentLength;
+    }
+  }
+
+  static class Result {
+    final int  requests;
+    final long bytes;
+    final long durationMs;
+
+    Result(int requests, long bytes, long durationMs) {
+      this.requests   = requests;
+      this.bytes      = bytes;
+      this.durationMs = durationMs;
+    }
+
+    long getBytesPerSecond() {
+      return bytes * 1000 / Math.max(1, durationMs);
+    }
+
+    @Override
+    public @NonNull String toString() {
+      return String.format(Locale.ROOT, "%d requests, %d bytes in %d ms, %d KB/s",
+                           requests, bytes, durationMs, getBytesPerSecond() / 1024);
+    }
+  }
+}
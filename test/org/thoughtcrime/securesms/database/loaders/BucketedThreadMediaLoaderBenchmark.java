@@ -0,0 +1,345 @@
+package org.thoughtcrime.securesms.database.loaders;
+
+import android.content.Context;
+
+import com.b44t.messenger.DcContext;
+import com.b44t.messenger.DcMsg;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.objenesis.ObjenesisStd;
+import org.thoughtcrime.securesms.database.loaders.BucketedThreadMediaLoader.BucketedThreadMedia;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assume.assumeTrue;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Loads the gallery of a chat with 20000 media messages over three years and compares the section index
+ * with the buckets it replaced: loading as loadInBackground() does, showing the first screen and scrolling
+ * through all sections as the adapter does. The core is stood in by creating a message object per message
+ * loaded, so both ways pay the same for the row loads, one per message either way; only the Java side and
+ * the number of core calls differ. The JNI calls saved are not part of the times, they need a device.
+ */
+public class BucketedThreadMediaLoaderBenchmark {
+
+  private static final int  MEDIA        = 20000;
+  private static final int  FIRST_SCREEN = 30;
+  private static final int  ROUNDS       = 5;
+  private static final long DAY_MS       = 24 * 60 * 60 * 1000L;
+
+  private Context  context;
+  private int[]    ids;
+  private CoreStub core;
+
+  @Before
+  public void setUp() {
+    context = mock(Context.class);
+    when(context.getString(anyInt())).thenReturn("section");
+
+    // ascending ids and timestamps as returned by getChatMedia(), about 18 media a day
+    Random random    = new Random(42);
+    long   timestamp = System.currentTimeMillis() - 3 * 365 * DAY_MS;
+    long   step      = 3 * 365 * DAY_MS / MEDIA;
+    ids  = new int[MEDIA];
+    core = (CoreStub) new ObjenesisStd().newInstance(CoreStub.class); // the constructor would open the native core
+    core.timestamps = new HashMap<>();
+    for (int i = 0; i < MEDIA; i++) {
+      timestamp += random.nextInt((int) (2 * step));
+      ids[i] = 10 + i;
+      core.timestamps.put(ids[i], Math.min(timestamp, System.currentTimeMillis()));
+    }
+  }
+
+  @Test
+  public void benchmarkLoading() {
+    assumeTrue("timings only run with -Pbenchmark", Boolean.getBoolean("benchmark"));
+
+    // take the best of some rounds, the first ones are only warming up
+    long[] current  = { Long.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE };
+    long[] previous = { Long.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE };
+    for (int round = 0; round < ROUNDS; round++) {
+      keepFastest(current, runCurrent());
+      keepFastest(previous, runPrevious());
+    }
+
+    // the rows are loaded again when the cells are bound, the cache only keeps the last ones
+    core.calls = 0;
+    core.rows  = 0;
+    BucketedThreadMedia currentMedia = load();
+    int currentCalls = core.calls, currentRows = core.rows;
+    bind(currentMedia, MEDIA);
+    int currentScrollRows = core.rows - currentRows;
+
+    core.calls = 0;
+    core.rows  = 0;
+    PreviousMedia previousMedia = loadPrevious();
+    int previousCalls = core.calls, previousRows = core.rows;
+    bind(previousMedia, MEDIA);
+    int previousScrollRows = core.rows - previousRows;
+
+    System.out.println(String.format(Locale.ROOT,
+        "%d media: load %d / %d ms, first %d cells %d / %d ms, scrolling all %d / %d ms (current / previous)",
+        MEDIA, current[0] / 1000000, previous[0] / 1000000, FIRST_SCREEN, current[1] / 1000000, previous[1] / 1000000,
+        current[2] / 1000000, previous[2] / 1000000));
+    System.out.println(String.format(Locale.ROOT,
+        "core calls on load %d / %d, rows loaded on load %d / %d and on scrolling all %d / %d (current / previous)",
+        currentCalls, previousCalls, currentRows, previousRows, currentScrollRows, previousScrollRows));
+  }
+
+  @Test
+  public void sectionsMatchPreviousBuckets() {
+    BucketedThreadMedia current  = load();
+    PreviousMedia       previous = loadPrevious();
+
+    assertThat(current.getSectionCount()).isEqualTo(previous.getSectionCount());
+    for (int section = 0; section < current.getSectionCount(); section++) {
+      assertThat(current.getName(section, Locale.ROOT)).isEqualTo(previous.getName(section, Locale.ROOT));
+      assertThat(current.getSectionItemCount(section)).isEqualTo(previous.getSectionItemCount(section));
+      for (int item = 0; item < current.getSectionItemCount(section); item++) {
+        assertThat(current.get(section, item)).isEqualTo(previous.get(section, item));
+      }
+    }
+  }
+
+  private static void keepFastest(long[] fastest, long[] nanos) {
+    for (int i = 0; i < fastest.length; i++) {
+      fastest[i] = Math.min(fastest[i], nanos[i]);
+    }
+  }
+
+  /**
+   * As loadInBackground() does now.
+   */
+  private BucketedThreadMedia load() {
+    BucketedThreadMedia media = new BucketedThreadMedia(context);
+    media.index(core, ids, core.getMsgTimestamps(ids));
+    return media;
+  }
+
+  /**
+   * As loadInBackground() did before.
+   */
+  private PreviousMedia loadPrevious() {
+    PreviousMedia media = new PreviousMedia(new BucketedThreadMedia(context));
+    for (int id : ids) {
+      media.add(core.getMsg(id));
+    }
+    return media;
+  }
+
+  private long[] runCurrent() {
+    long[] nanos = new long[3];
+    long   start = System.nanoTime();
+
+    BucketedThreadMedia media = load();
+    nanos[0] = System.nanoTime() - start;
+
+    bind(media, FIRST_SCREEN);
+    nanos[1] = System.nanoTime() - start;
+
+    bind(media, MEDIA);
+    nanos[2] = System.nanoTime() - start;
+    return nanos;
+  }
+
+  private long[] runPrevious() {
+    long[] nanos = new long[3];
+    long   start = System.nanoTime();
+
+    PreviousMedia media = loadPrevious();
+    nanos[0] = System.nanoTime() - start;
+
+    bind(media, FIRST_SCREEN);
+    nanos[1] = System.nanoTime() - start;
+
+    bind(media, MEDIA);
+    nanos[2] = System.nanoTime() - start;
+    return nanos;
+  }
+
+  /**
+   * Binds the given number of cells and their section headers, as the gallery adapter does on scrolling.
+   */
+  private static void bind(BucketedThreadMedia media, int cells) {
+    for (int section = 0; section < media.getSectionCount() && cells > 0; section++) {
+      media.getName(section, Locale.ROOT);
+      int items = media.getSectionItemCount(section);
+      for (int item = 0; item < items && cells > 0; item++, cells--) {
+        media.get(section, item).getTimestamp();
+      }
+    }
+  }
+
+  private static void bind(PreviousMedia media, int cells) {
+    for (int section = 0; section < media.getSectionCount() && cells > 0; section++) {
+      media.getName(section, Locale.ROOT);
+      int items = media.getSectionItemCount(section);
+      for (int item = 0; item < items && cells > 0; item++, cells--) {
+        media.get(section, item).getTimestamp();
+      }
+    }
+  }
+
+  /**
+   * Stands in for the core, each row loaded is a new message object as with dc_get_msg().
+   */
+  private static class CoreStub extends DcContext {
+    private Map<Integer, Long> timestamps;
+    private int                calls;
+    private int                rows;
+
+    CoreStub() {
+      super(null);
+    }
+
+    @Override
+    public DcMsg getMsg(int msgId) {
+      calls++;
+      rows++;
+      return new StubMsg(msgId, timestamps.get(msgId));
+    }
+
+    @Override
+    public long[] getMsgTimestamps(int[] msgIds) {
+      calls++;
+      rows += msgIds.length;
+      long[] result = new long[msgIds.length];
+      for (int i = 0; i < msgIds.length; i++) {
+        result[i] = new StubMsg(msgIds[i], timestamps.get(msgIds[i])).getTimestamp();
+      }
+      return result;
+    }
+  }
+
+  // the getters are overridden instead of mocked, as calling a mock is slower than loading a message
+  private static class StubMsg extends DcMsg {
+    private final int  id;
+    private final long timestamp;
+
+    StubMsg(int id, long timestamp) {
+      super(0);
+      this.id        = id;
+      this.timestamp = timestamp;
+    }
+
+    @Override
+    public int getId() {
+      return id;
+    }
+
+    @Override
+    public long getTimestamp() {
+      return timestamp;
+    }
+  }
+
+  /**
+   * The buckets BucketedThreadMedia used before, with loops instead of streams for the active buckets:
+   * all messages are loaded up front and each lookup filters the time buckets again.
+   */
+  private static class PreviousMedia {
+
+    private final List<PreviousBucket>    timeSections = new ArrayList<>();
+    private final Map<Date, List<DcMsg>> months       = new HashMap<>();
+
+    PreviousMedia(BucketedThreadMedia current) {
+      // the bucket boundaries as computed by the constructor of BucketedThreadMedia
+      long today     = current.addToCalendarFromTodayMidnight(Calendar.DAY_OF_YEAR, 0);
+      long yesterday = current.addToCalendarFromTodayMidnight(Calendar.DAY_OF_YEAR, -1);
+      long thisWeek  = current.setInCalendarFromTodayMidnight(Calendar.DAY_OF_WEEK, current.getCalendar().getFirstDayOfWeek());
+      long lastWeek  = current.addToCalendarFrom(thisWeek, Calendar.WEEK_OF_YEAR, -1);
+      long thisMonth = current.setInCalendarFromTodayMidnight(Calendar.DAY_OF_MONTH, 1);
+      long lastMonth = current.addToCalendarFrom(thisMonth, Calendar.MONTH, -1);
+      timeSections.add(new PreviousBucket(today, Long.MAX_VALUE));
+      timeSections.add(new PreviousBucket(yesterday, today));
+      timeSections.add(new PreviousBucket(thisWeek, yesterday));
+      timeSections.add(new PreviousBucket(lastWeek, thisWeek));
+      timeSections.add(new PreviousBucket(thisMonth, lastWeek));
+      timeSections.add(new PreviousBucket(lastMonth, lastWeek));
+    }
+
+    void add(DcMsg msg) {
+      for (PreviousBucket timeSection : timeSections) {
+        if (msg.getTimestamp() >= timeSection.startTime && msg.getTimestamp() < timeSection.endTime) {
+          timeSection.records.addFirst(msg);
+          return;
+        }
+      }
+
+      Calendar calendar = Calendar.getInstance();
+      calendar.setTimeInMillis(msg.getTimestamp());
+      Date date = new Date(calendar.get(Calendar.YEAR) - 1900, calendar.get(Calendar.MONTH), 1);
+      if (months.containsKey(date)) {
+        months.get(date).add(msg);
+      } else {
+        List<DcMsg> list = new LinkedList<>();
+        list.add(msg);
+        months.put(date, list);
+      }
+    }
+
+    int getSectionCount() {
+      return getActiveTimeSections().size() + months.size();
+    }
+
+    int getSectionItemCount(int section) {
+      List<PreviousBucket> active = getActiveTimeSections();
+      if (section < active.size()) return active.get(section).records.size();
+      else                         return months.get(getMonth(section - active.size())).size();
+    }
+
+    DcMsg get(int section, int item) {
+      List<PreviousBucket> active = getActiveTimeSections();
+      if (section < active.size()) return active.get(section).records.get(item);
+      else                         return months.get(getMonth(section - active.size())).get(item);
+    }
+
+    String getName(int section, Locale locale) {
+      List<PreviousBucket> active = getActiveTimeSections();
+      if (section < active.size()) return "section";
+      else                         return new SimpleDateFormat("MMMM yyyy", locale).format(getMonth(section - active.size()));
+    }
+
+    private List<PreviousBucket> getActiveTimeSections() {
+      List<PreviousBucket> active = new ArrayList<>();
+      for (PreviousBucket timeSection : timeSections) {
+        if (!timeSection.records.isEmpty()) {
+          active.add(timeSection);
+        }
+      }
+      return active;
+    }
+
+    private Date getMonth(int section) {
+      ArrayList<Date> keys = new ArrayList<>(months.keySet());
+      Collections.sort(keys, Collections.reverseOrder());
+      return keys.get(section);
+    }
+  }
+
+  private static class PreviousBucket {
+    private final LinkedList<DcMsg> records = new LinkedList<>();
+    private final long              startTime;
+    private final long              endTime;
+
+    PreviousBucket(long startTime, long endTime) {
+      this.startTime = startTime;
+      this.endTime   = endTime;
+    }
+  }
+}
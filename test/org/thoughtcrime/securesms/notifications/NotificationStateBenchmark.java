@@ -0,0 +1,186 @@
+package org.thoughtcrime.securesms.notifications;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Simulates 50 chats with 100 pending messages each, arriving interleaved as after being offline,
+ * and compares NotificationState with the single list it replaced: adding the items, rebuilding all
+ * notifications as postNotifications() does and removing the chats one by one as on marking them read.
+ */
+public class NotificationStateBenchmark {
+
+  private static final int CHATS             = 50;
+  private static final int MESSAGES_PER_CHAT = 100;
+  private static final int REBUILDS          = 20;
+  private static final int ROUNDS            = 10;
+
+  @Test
+  public void benchmarkPendingMessages() {
+    assumeTrue("timings only run with -Pbenchmark", Boolean.getBoolean("benchmark"));
+
+    List<NotificationItem> items = new ArrayList<>();
+    for (int i = 0; i < CHATS * MESSAGES_PER_CHAT; i++) {
+      // recipients are not needed to index the items
+      items.add(new NotificationItem(i + 1, null, null, 10 + i % CHATS, "message " + i, i, null));
+    }
+
+    // take the best of some rounds, the first ones are only warming up
+    long[] current  = { Long.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE };
+    long[] previous = { Long.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE };
+    for (int round = 0; round < ROUNDS; round++) {
+      keepFastest(current, runCurrent(items));
+      keepFastest(previous, runPrevious(items));
+    }
+
+    System.out.println(String.format(Locale.ROOT,
+        "%d chats x %d messages: add %d / %d us, %d rebuilds %d / %d us, remove %d / %d us (current / previous)",
+        CHATS, MESSAGES_PER_CHAT, current[0] / 1000, previous[0] / 1000,
+        REBUILDS, current[1] / 1000, previous[1] / 1000, current[2] / 1000, previous[2] / 1000));
+  }
+
+  @Test
+  public void stateMatchesPreviousList() {
+    NotificationState state    = new NotificationState();
+    PreviousState     previous = new PreviousState();
+    for (int i = 0; i < CHATS * MESSAGES_PER_CHAT; i++) {
+      NotificationItem item = new NotificationItem(i + 1, null, null, 10 + (i * 7) % CHATS, "message " + i, i, null);
+      state.addNotification(item);
+      previous.addNotification(item);
+    }
+
+    assertThat(state.getMessageCount()).isEqualTo(CHATS * MESSAGES_PER_CHAT);
+    assertThat(new ArrayList<>(state.getChats())).isEqualTo(new ArrayList<>(previous.chats));
+
+    // the newest items of each chat are retained, in the same order
+    for (int chatId : state.getChats()) {
+      List<NotificationItem> chatItems = state.getStateForChat(chatId).getNotifications();
+      List<NotificationItem> expected  = previous.getNotificationsForChat(chatId);
+      assertThat(chatItems).isEqualTo(expected.subList(0, chatItems.size()));
+    }
+
+    List<NotificationItem> all = state.getNotifications();
+    assertThat(all.get(0)).isSameAs(previous.notifications.getFirst());
+    for (int i = 1; i < all.size(); i++) {
+      assertThat(all.get(i).getTimestamp()).isLessThan(all.get(i - 1).getTimestamp());
+    }
+
+    int chatId = state.getChats().iterator().next();
+    assertThat(state.removeNotificationsForChat(chatId)).hasSize(50);
+    assertThat(state.getChats()).doesNotContain(chatId);
+    assertThat(state.getMessageCount()).isEqualTo((CHATS - 1) * MESSAGES_PER_CHAT);
+  }
+
+  private static void keepFastest(long[] fastest, long[] nanos) {
+    for (int i = 0; i < fastest.length; i++) {
+      fastest[i] = Math.min(fastest[i], nanos[i]);
+    }
+  }
+
+  private static long[] runCurrent(List<NotificationItem> items) {
+    long[] nanos = new long[3];
+
+    long start = System.nanoTime();
+    NotificationState state = new NotificationState();
+    for (NotificationItem item : items) {
+      state.addNotification(item);
+    }
+    nanos[0] = System.nanoTime() - start;
+
+    start = System.nanoTime();
+    for (int i = 0; i < REBUILDS; i++) {
+      for (int chatId : state.getChats()) {
+        state.getStateForChat(chatId).getNotifications();
+      }
+      state.getNotifications();
+    }
+    nanos[1] = System.nanoTime() - start;
+
+    start = System.nanoTime();
+    while (state.getChatCount() > 0) {
+      state.removeNotificationsForChat(state.getChats().iterator().next());
+      for (int chatId : state.getChats()) {
+        state.getStateForChat(chatId).getNotifications();
+      }
+      state.getNotifications();
+    }
+    nanos[2] = System.nanoTime() - start;
+
+    assertThat(state.getMessageCount()).isEqualTo(0);
+    return nanos;
+  }
+
+  private static long[] runPrevious(List<NotificationItem> items) {
+    long[] nanos = new long[3];
+
+    long start = System.nanoTime();
+    PreviousState state = new PreviousState();
+    for (NotificationItem item : items) {
+      state.addNotification(item);
+    }
+    nanos[0] = System.nanoTime() - start;
+
+    start = System.nanoTime();
+    for (int i = 0; i < REBUILDS; i++) {
+      for (int chatId : new ArrayList<>(state.chats)) {
+        new ArrayList<>(state.getNotificationsForChat(chatId));
+      }
+    }
+    nanos[1] = System.nanoTime() - start;
+
+    start = System.nanoTime();
+    while (!state.chats.isEmpty()) {
+      state.removeNotificationsForChat(state.chats.iterator().next());
+      for (int chatId : new ArrayList<>(state.chats)) {
+        new ArrayList<>(state.getNotificationsForChat(chatId));
+      }
+    }
+    nanos[2] = System.nanoTime() - start;
+
+    assertThat(state.notificationCount).isEqualTo(0);
+    return nanos;
+  }
+
+  /**
+   * The single list NotificationState used before, all items newest first.
+   */
+  private static class PreviousState {
+    final LinkedList<NotificationItem> notifications = new LinkedList<>();
+    final LinkedHashSet<Integer>       chats         = new LinkedHashSet<>();
+    int                                notificationCount;
+
+    void addNotification(NotificationItem item) {
+      notifications.addFirst(item);
+      chats.remove(item.getChatId());
+      chats.add(item.getChatId());
+      notificationCount++;
+    }
+
+    List<NotificationItem> getNotificationsForChat(int chatId) {
+      LinkedList<NotificationItem> list = new LinkedList<>();
+      for (NotificationItem item : notifications) {
+        if (item.getChatId() == chatId) list.addLast(item);
+      }
+      return list;
+    }
+
+    void removeNotificationsForChat(int chatId) {
+      chats.remove(chatId);
+      for (Iterator<NotificationItem> it = notifications.iterator(); it.hasNext();) {
+        if (it.next().getChatId() == chatId) {
+          it.remove();
+          notificationCount--;
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,388 @@
+package org.thoughtcrime.securesms.search;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.b44t.messenger.DcChat;
+import com.b44t.messenger.DcChatlist;
+import com.b44t.messenger.DcContact;
+import com.b44t.messenger.DcContext;
+import com.b44t.messenger.DcMsg;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+import org.powermock.reflect.Whitebox;
+import org.thoughtcrime.securesms.connect.ApplicationDcContext;
+import org.thoughtcrime.securesms.connect.DcHelper;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assume.assumeTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.powermock.api.mockito.PowerMockito.mockStatic;
+
+/**
+ * Looks up queries in an index built from synthetic messages and compares the time and the number of
+ * core calls with a scan of all messages. The core's searchMsgs() is stood in by scanning the corpus
+ * with the same LIKE matching and visibility rules, so its times are a lower bound, as are the times of
+ * the messages the index loads to check them; on a device, each load is a query of the database.
+ * The corpus has contact requests, hidden chats, a blocked sender, drafts, outgoing messages and
+ * non-ASCII words, so that all checks of lookup() are taken.
+ */
+@RunWith(PowerMockRunner.class)
+@PrepareForTest({ Log.class, DcHelper.class })
+public class MessageSearchIndexBenchmark {
+
+  private static final int      MESSAGES       = 20000;
+  private static final int      CHATS          = 100;
+  private static final int      HIDDEN_CHATS   = 5;
+  private static final int      SENDERS        = 200;
+  private static final int      BLOCKED_SENDER = DcContact.DC_CONTACT_ID_LAST_SPECIAL + 5;
+  private static final int      VOCABULARY     = 5000;
+  private static final int      ROUNDS         = 5;
+  private static final String[] QUERIES        = { "meeting", "tomorrow", "Tomorrow", "café", "see you", "Meetup", "xyzzy" };
+  private static final String[] WORDS          = { "meeting", "meetup", "tomorrow", "Tomorrow", "see you", "café", "Café",
+                                                   "cafe", "Straße" };
+
+  private final List<Integer> chatIds = new ArrayList<>();
+  private final List<Integer> fromIds = new ArrayList<>();
+  private final List<Integer> states  = new ArrayList<>();
+  private final List<String>  texts   = new ArrayList<>();
+  private final List<String>  names   = new ArrayList<>();
+
+  private File                 filesDir;
+  private Context              context;
+  private ApplicationDcContext dcContext;
+  private AtomicInteger        messageLoads;
+  private AtomicInteger        otherCalls;
+
+  @Before
+  public void setUp() throws Exception {
+    mockStatic(Log.class);
+    mockStatic(DcHelper.class);
+
+    // random words with some words searched for, these are in about 3% of the messages
+    Random   random     = new Random(42);
+    String[] vocabulary = new String[VOCABULARY];
+    for (int i = 0; i < VOCABULARY; i++) {
+      char[] word = new char[2 + random.nextInt(8)];
+      for (int j = 0; j < word.length; j++) {
+        word[j] = (char) ('a' + random.nextInt(26));
+      }
+      vocabulary[i] = new String(word);
+    }
+
+    // message ids start at 10; chats 10 to 14 are hidden, eg. blocked, every 50th message is a contact request,
+    // every 3rd message is outgoing and every 200th a draft
+    for (int i = 0; i < MESSAGES; i++) {
+      StringBuilder text  = new StringBuilder();
+      int           words = 3 + random.nextInt(15);
+      for (int j = 0; j < words; j++) {
+        String word = random.nextInt(300) == 0 ? WORDS[random.nextInt(WORDS.length)] : vocabulary[random.nextInt(VOCABULARY)];
+        text.append(j == 0 ? "" : " ").append(word);
+      }
+      texts.add(text.toString());
+      chatIds.add(i % 50 == 0 ? DcChat.DC_CHAT_ID_DEADDROP : DcChat.DC_CHAT_ID_LAST_SPECIAL + 1 + i % CHATS);
+      fromIds.add(i % 3 == 0 ? DcContact.DC_CONTACT_ID_SELF : DcContact.DC_CONTACT_ID_LAST_SPECIAL + 1 + i % SENDERS);
+      states.add(i % 200 == 3 ? DcMsg.DC_STATE_OUT_DRAFT : 0);
+    }
+    for (int i = 0; i < SENDERS; i++) {
+      names.add(i % 10 == 0 ? "Meetup Bot " + i : "Sender " + i);
+    }
+
+    filesDir     = File.createTempFile("search-index", "");
+    filesDir.delete();
+    filesDir.mkdir();
+    messageLoads = new AtomicInteger();
+    otherCalls   = new AtomicInteger();
+    dcContext    = mock(ApplicationDcContext.class);
+
+    // the getters are overridden instead of mocked, as calling a mock is slower than loading a message
+    List<DcMsg> msgs = new ArrayList<>();
+    for (int i = 0; i < MESSAGES; i++) {
+      final int index = i;
+      msgs.add(new DcMsg(0) {
+        @Override
+        public int getId() {
+          return 10 + index;
+        }
+
+        @Override
+        public String getText() {
+          return texts.get(index);
+        }
+
+        @Override
+        public int getFromId() {
+          return fromIds.get(index);
+        }
+
+        @Override
+        public int getChatId() {
+          return chatIds.get(index);
+        }
+
+        @Override
+        public int getState() {
+          return states.get(index);
+        }
+
+        @Override
+        public long getSortTimestamp() {
+          return 1500000000L + index;
+        }
+      });
+    }
+    when(dcContext.getMsg(anyInt())).thenAnswer(invocation -> {
+      messageLoads.incrementAndGet();
+      return msgs.get((Integer) invocation.getArguments()[0] - 10);
+    });
+
+    List<DcContact> contacts = new ArrayList<>();
+    for (int i = 0; i < SENDERS; i++) {
+      final String name = names.get(i);
+      contacts.add(new DcContact(0) {
+        @Override
+        public String getName() {
+          return name;
+        }
+      });
+    }
+    when(dcContext.getContact(anyInt())).thenAnswer(invocation -> {
+      otherCalls.incrementAndGet();
+      return contacts.get((Integer) invocation.getArguments()[0] - DcContact.DC_CONTACT_ID_LAST_SPECIAL - 1);
+    });
+
+    DcChatlist chatlist = new DcChatlist(0) {
+      @Override
+      public int getCnt() {
+        return CHATS - HIDDEN_CHATS;
+      }
+
+      @Override
+      public int getChatId(int index) {
+        return DcChat.DC_CHAT_ID_LAST_SPECIAL + 1 + HIDDEN_CHATS + index;
+      }
+    };
+    when(dcContext.getChatlist(anyInt(), anyString(), anyInt())).thenAnswer(invocation -> {
+      otherCalls.incrementAndGet();
+      return (Integer) invocation.getArguments()[0] == DcContext.DC_GCL_ARCHIVED_ONLY ? new DcChatlist(0) {
+        @Override
+        public int getCnt() {
+          return 0;
+        }
+      } : chatlist;
+    });
+    when(dcContext.getChatMsgs(anyInt(), anyInt(), anyInt())).thenAnswer(invocation -> {
+      int           chatId = (Integer) invocation.getArguments()[0];
+      List<Integer> ids    = new ArrayList<>();
+      for (int i = 0; i < MESSAGES; i++) {
+        if (chatIds.get(i) == chatId && states.get(i) != DcMsg.DC_STATE_OUT_DRAFT) {
+          ids.add(10 + i);
+        }
+      }
+      int[] ret = new int[ids.size()];
+      for (int i = 0; i < ret.length; i++) {
+        ret[i] = ids.get(i);
+      }
+      return ret;
+    });
+    when(dcContext.getBlockedContacts()).thenAnswer(invocation -> {
+      otherCalls.incrementAndGet();
+      return new int[]{ BLOCKED_SENDER };
+    });
+    when(dcContext.getConfig("configured_addr")).thenReturn("me@example.org");
+
+    context = mock(Context.class);
+    when(context.getApplicationContext()).thenReturn(context);
+    when(context.getFilesDir()).thenReturn(filesDir);
+    when(DcHelper.getContext(any(Context.class))).thenReturn(dcContext);
+    Whitebox.setInternalState(MessageSearchIndex.class, "instance", (MessageSearchIndex) null);
+  }
+
+  @After
+  public void tearDown() {
+    Whitebox.setInternalState(MessageSearchIndex.class, "instance", (MessageSearchIndex) null);
+    for (File file : filesDir.listFiles()) {
+      file.delete();
+    }
+    filesDir.delete();
+  }
+
+  @Test
+  public void benchmarkLookup() throws Exception {
+    assumeTrue("timings only run with -Pbenchmark", Boolean.getBoolean("benchmark"));
+
+    MessageSearchIndex index = buildIndex();
+
+    // warm up both paths
+    for (String query : QUERIES) {
+      index.lookup(query);
+      scan(query);
+    }
+
+    for (String query : QUERIES) {
+      // take the best of some rounds, the counts are the same in every round
+      long  lookupNanos = Long.MAX_VALUE;
+      long  scanNanos   = Long.MAX_VALUE;
+      int[] hits        = null;
+      int   loads       = 0;
+      int   calls       = 0;
+      for (int round = 0; round < ROUNDS; round++) {
+        messageLoads.set(0);
+        otherCalls.set(0);
+        long start = System.nanoTime();
+        hits        = index.lookup(query);
+        lookupNanos = Math.min(lookupNanos, System.nanoTime() - start);
+        loads       = messageLoads.get();
+        calls       = otherCalls.get();
+
+        start     = System.nanoTime();
+        scan(query);
+        scanNanos = Math.min(scanNanos, System.nanoTime() - start);
+      }
+
+      System.out.println(String.format(Locale.ROOT,
+          "\"%s\": %d hits, %d candidates; lookup %d us with %d message loads and %d other core calls, scan of %d messages %d us",
+          query, hits.length, countCandidates(query), lookupNanos / 1000, loads, calls, MESSAGES, scanNanos / 1000));
+
+      assertThat(hits).isEqualTo(scan(query));
+      assertThat(loads).isLessThan(countCandidates(query) + 1);
+    }
+  }
+
+  @Test
+  public void lookupMatchesScan() throws Exception {
+    MessageSearchIndex index = buildIndex();
+    for (String query : QUERIES) {
+      assertThat(index.lookup(query)).isEqualTo(scan(query));
+    }
+
+    // plain words in plain texts are not loaded, but contact requests and non-ASCII queries are
+    messageLoads.set(0);
+    index.lookup("meeting");
+    int plainLoads = messageLoads.get();
+    messageLoads.set(0);
+    index.lookup("café");
+    assertThat(plainLoads).isLessThan(countCandidates("meeting") / 10);
+    assertThat(messageLoads.get()).isGreaterThan(countCandidates("café") / 2);
+
+    // the messages of a deleted chat are dropped without asking the core
+    int chatId = DcChat.DC_CHAT_ID_LAST_SPECIAL + 1 + HIDDEN_CHATS;
+    index.onChatDeleted(chatId);
+    for (int i = 0; i < MESSAGES; i++) {
+      if (chatIds.get(i) == chatId) {
+        chatIds.set(i, DcChat.DC_CHAT_NO_CHAT);
+      }
+    }
+    awaitIdle(index);
+    assertThat(index.lookup("meeting")).isEqualTo(scan("meeting"));
+
+    // the messages, their data and the deletion are read back from the file and the journal
+    Whitebox.setInternalState(MessageSearchIndex.class, "instance", (MessageSearchIndex) null);
+    MessageSearchIndex loaded = buildIndex();
+    for (String query : QUERIES) {
+      assertThat(loaded.lookup(query)).isEqualTo(scan(query));
+    }
+  }
+
+  private MessageSearchIndex buildIndex() throws Exception {
+    long start = System.nanoTime();
+    MessageSearchIndex index = MessageSearchIndex.getInstance(context);
+    for (int i = 0; i < 600 && !index.isReady(); i++) {
+      Thread.sleep(100);
+    }
+    assertThat(index.isReady()).isTrue();
+    awaitIdle(index);
+    System.out.println(String.format(Locale.ROOT, "indexed %d messages in %d ms, %s",
+        MESSAGES, (System.nanoTime() - start) / 1000000, index.getInfo().trim()));
+    return index;
+  }
+
+  private static void awaitIdle(MessageSearchIndex index) throws Exception {
+    // changes and compactions run on the single executor of the index
+    Object done = new Object();
+    synchronized (done) {
+      ((ExecutorService) Whitebox.getInternalState(index, "executor")).execute(() -> {
+        synchronized (done) {
+          done.notify();
+        }
+      });
+      done.wait(60000);
+    }
+  }
+
+  /**
+   * The messages a lookup without stored chats, senders and timestamps loaded one by one:
+   * those with a word containing the query or from a sender whose name starts with it.
+   */
+  private int countCandidates(String query) {
+    String needle = query.trim().toLowerCase(Locale.ROOT);
+    int    cnt    = 0;
+    for (int i = 0; i < MESSAGES; i++) {
+      // the contact requests and the messages of the chatlist are indexed, but no drafts
+      int chatId = chatIds.get(i);
+      if ((chatId != DcChat.DC_CHAT_ID_DEADDROP && chatId < DcChat.DC_CHAT_ID_LAST_SPECIAL + 1 + HIDDEN_CHATS)
+       || states.get(i) == DcMsg.DC_STATE_OUT_DRAFT) {
+        continue;
+      }
+      boolean candidate = fromIds.get(i) != DcContact.DC_CONTACT_ID_SELF
+                       && MessageSearchIndex.startsWithIgnoreAsciiCase(names.get(fromIds.get(i) - DcContact.DC_CONTACT_ID_LAST_SPECIAL - 1), query);
+      if (!candidate) {
+        Set<String> words = MessageSearchIndex.tokenize(texts.get(i));
+        candidate = true;
+        for (String segment : MessageSearchIndex.tokenize(needle)) {
+          boolean found = false;
+          for (String word : words) {
+            found |= word.contains(segment);
+          }
+          candidate &= found;
+        }
+      }
+      if (candidate) {
+        cnt++;
+      }
+    }
+    return cnt;
+  }
+
+  /**
+   * Stands in for DcContext.searchMsgs(): all messages in visible chats, newest first.
+   */
+  private int[] scan(String query) {
+    String needle = query.trim();
+    int[]  hits   = new int[MESSAGES];
+    int    cnt    = 0;
+    for (int i = MESSAGES - 1; i >= 0; i--) {
+      int chatId = chatIds.get(i);
+      int fromId = fromIds.get(i);
+      if (chatId >= DcChat.DC_CHAT_ID_LAST_SPECIAL + 1 + HIDDEN_CHATS
+       && states.get(i) != DcMsg.DC_STATE_OUT_DRAFT
+       && fromId != BLOCKED_SENDER
+       && (MessageSearchIndex.containsIgnoreAsciiCase(texts.get(i), needle)
+        || (fromId != DcContact.DC_CONTACT_ID_SELF
+         && MessageSearchIndex.startsWithIgnoreAsciiCase(names.get(fromId - DcContact.DC_CONTACT_ID_LAST_SPECIAL - 1), needle)))) {
+        hits[cnt++] = 10 + i;
+      }
+    }
+    int[] result = new int[cnt];
+    System.arraycopy(hits, 0, result, 0, cnt);
+    return result;
+  }
+}
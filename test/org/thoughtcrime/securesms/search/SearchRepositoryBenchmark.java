@@ -0,0 +1,269 @@
+package org.thoughtcrime.securesms.search;
+
+import android.content.Context;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.b44t.messenger.DcChatlist;
+import com.b44t.messenger.DcContact;
+import com.b44t.messenger.DcMsg;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+import org.powermock.reflect.Whitebox;
+import org.thoughtcrime.securesms.connect.ApplicationDcContext;
+import org.thoughtcrime.securesms.connect.DcHelper;
+import org.thoughtcrime.securesms.search.model.SearchResult;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assume.assumeTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.powermock.api.mockito.PowerMockito.mockStatic;
+
+/**
+ * Types queries key by key against a corpus of synthetic messages and measures the latency from
+ * keystroke to complete result, refining the previous hits in memory versus scanning all messages
+ * on every keystroke. The core's scan is stood in by scanning the corpus with the same LIKE
+ * matching, so the times are a lower bound for a full scan; the number of core calls is reported, too.
+ */
+@RunWith(PowerMockRunner.class)
+@PrepareForTest({ Log.class, TextUtils.class, DcHelper.class })
+public class SearchRepositoryBenchmark {
+
+  private static final int      MESSAGES   = 10000;
+  private static final int      SENDERS    = 50;
+  private static final int      VOCABULARY = 5000;
+  private static final int      ROUNDS     = 5;
+  private static final String[] QUERIES    = { "meeting", "Tomorrow", "deltachat" };
+  private static final String[] WORDS      = { "meet", "meeting", "meetup", "tomorrow", "today", "delta", "deltachat",
+                                               "Meeting", "TOMORROW", "Delta" };
+
+  private final List<String> texts = new ArrayList<>();
+  private final List<String> names = new ArrayList<>();
+
+  private ApplicationDcContext dcContext;
+  private AtomicInteger        fullScans;
+  private AtomicInteger        messageLoads;
+
+  @Before
+  public void setUp() {
+    mockStatic(Log.class);
+    mockStatic(TextUtils.class);
+    mockStatic(DcHelper.class);
+
+    // random words with some words searched for, these are in about 3% of the messages
+    Random   random     = new Random(42);
+    String[] vocabulary = new String[VOCABULARY];
+    for (int i = 0; i < VOCABULARY; i++) {
+      char[] word = new char[2 + random.nextInt(8)];
+      for (int j = 0; j < word.length; j++) {
+        word[j] = (char) ('a' + random.nextInt(26));
+      }
+      vocabulary[i] = new String(word);
+    }
+    for (int i = 0; i < MESSAGES; i++) {
+      StringBuilder text  = new StringBuilder();
+      int           words = 3 + random.nextInt(15);
+      for (int j = 0; j < words; j++) {
+        String word = random.nextInt(300) == 0 ? WORDS[random.nextInt(WORDS.length)] : vocabulary[random.nextInt(VOCABULARY)];
+        text.append(j == 0 ? "" : " ").append(word);
+      }
+      texts.add(text.toString());
+    }
+    for (int i = 0; i < SENDERS; i++) {
+      names.add(i % 10 == 0 ? "Meetup Bot " + i : "Sender " + i);
+    }
+
+    fullScans    = new AtomicInteger();
+    messageLoads = new AtomicInteger();
+    dcContext    = mock(ApplicationDcContext.class);
+
+    // message ids start at 10, the ones below are special; sender ids are above DC_CONTACT_ID_LAST_SPECIAL
+    when(dcContext.searchMsgs(anyInt(), anyString())).thenAnswer(invocation -> {
+      fullScans.incrementAndGet();
+      String query = ((String) invocation.getArguments()[1]).trim();
+      int[]  hits  = new int[MESSAGES];
+      int    cnt   = 0;
+      for (int i = 0; i < MESSAGES; i++) {
+        if (MessageSearchIndex.containsIgnoreAsciiCase(texts.get(i), query)
+         || MessageSearchIndex.startsWithIgnoreAsciiCase(names.get(i % SENDERS), query)) {
+          hits[cnt++] = 10 + i;
+        }
+      }
+      int[] result = new int[cnt];
+      System.arraycopy(hits, 0, result, 0, cnt);
+      return result;
+    });
+
+    // the getters are overridden instead of mocked, as calling a mock is slower than loading a message
+    List<DcMsg> msgs = new ArrayList<>();
+    for (int i = 0; i < MESSAGES; i++) {
+      final int index = i;
+      msgs.add(new DcMsg(0) {
+        @Override
+        public String getText() {
+          return texts.get(index);
+        }
+
+        @Override
+        public int getFromId() {
+          return DcContact.DC_CONTACT_ID_LAST_SPECIAL + 1 + index % SENDERS;
+        }
+      });
+    }
+    when(dcContext.getMsg(anyInt())).thenAnswer(invocation -> {
+      messageLoads.incrementAndGet();
+      return msgs.get((Integer) invocation.getArguments()[0] - 10);
+    });
+
+    List<DcContact> contacts = new ArrayList<>();
+    for (int i = 0; i < SENDERS; i++) {
+      final String name = names.get(i);
+      contacts.add(new DcContact(0) {
+        @Override
+        public String getName() {
+          return name;
+        }
+      });
+    }
+    when(dcContext.getContact(anyInt())).thenAnswer(invocation ->
+        contacts.get((Integer) invocation.getArguments()[0] - DcContact.DC_CONTACT_ID_LAST_SPECIAL - 1));
+
+    when(dcContext.getContacts(anyInt(), anyString())).thenReturn(new int[0]);
+    when(dcContext.getChatlist(anyInt(), anyString(), anyInt())).thenReturn(mock(DcChatlist.class));
+    when(DcHelper.getContext(any(Context.class))).thenReturn(dcContext);
+
+    // without a ready index, lookup() returns null and the messages are scanned
+    Whitebox.setInternalState(MessageSearchIndex.class, "instance", mock(MessageSearchIndex.class));
+  }
+
+  @After
+  public void tearDown() {
+    Whitebox.setInternalState(MessageSearchIndex.class, "instance", (MessageSearchIndex) null);
+  }
+
+  @Test
+  public void benchmarkKeystrokeLatency() throws Exception {
+    assumeTrue("timings only run with -Pbenchmark", Boolean.getBoolean("benchmark"));
+
+    // warm up both paths
+    typeRefined(QUERIES[0]);
+    typeFullScans(QUERIES[0]);
+
+    for (String query : QUERIES) {
+      // take the best of some rounds for each keystroke, the counts are the same in every round
+      long[] refined = new long[query.length()];
+      long[] scanned = new long[query.length()];
+      Arrays.fill(refined, Long.MAX_VALUE);
+      Arrays.fill(scanned, Long.MAX_VALUE);
+      int refinedScans = 0, refinedLoads = 0, scannedScans = 0;
+
+      for (int round = 0; round < ROUNDS; round++) {
+        fullScans.set(0);
+        messageLoads.set(0);
+        keepFastest(refined, typeRefined(query));
+        refinedScans = fullScans.get();
+        refinedLoads = messageLoads.get();
+
+        fullScans.set(0);
+        keepFastest(scanned, typeFullScans(query));
+        scannedScans = fullScans.get();
+      }
+
+      StringBuilder keys = new StringBuilder();
+      for (int i = 0; i < query.length(); i++) {
+        keys.append(String.format(Locale.ROOT, " %s %d/%d", query.substring(0, i + 1), refined[i] / 1000, scanned[i] / 1000));
+      }
+      System.out.println(String.format(Locale.ROOT,
+          "\"%s\": %d full scans and %d message loads refined, %d full scans else; us refined/full scan per key:%s",
+          query, refinedScans, refinedLoads, scannedScans, keys));
+
+      assertThat(refinedScans).isLessThan(query.length());
+      assertThat(scannedScans).isEqualTo(query.length());
+    }
+  }
+
+  @Test
+  public void refinedResultsMatchFullScans() throws Exception {
+    for (String query : QUERIES) {
+      SearchRepository refining = new SearchRepository(mock(Context.class));
+      for (int i = 1; i <= query.length(); i++) {
+        String prefix = query.substring(0, i);
+        assertThat(search(refining, prefix)).isEqualTo(search(new SearchRepository(mock(Context.class)), prefix));
+      }
+
+      // on backspace the messages are scanned again
+      fullScans.set(0);
+      String shorter = query.substring(0, query.length() - 1);
+      assertThat(search(refining, shorter)).isEqualTo(search(new SearchRepository(mock(Context.class)), shorter));
+      assertThat(fullScans.get()).isEqualTo(2);
+    }
+  }
+
+  private static void keepFastest(long[] fastest, long[] nanos) {
+    for (int i = 0; i < fastest.length; i++) {
+      fastest[i] = Math.min(fastest[i], nanos[i]);
+    }
+  }
+
+  /**
+   * Types the query key by key into one repository, so that each keystroke refines the previous hits.
+   */
+  private long[] typeRefined(String query) throws Exception {
+    SearchRepository repository = new SearchRepository(mock(Context.class));
+    long[]           nanos      = new long[query.length()];
+    for (int i = 0; i < query.length(); i++) {
+      long start = System.nanoTime();
+      search(repository, query.substring(0, i + 1));
+      nanos[i] = System.nanoTime() - start;
+    }
+    return nanos;
+  }
+
+  /**
+   * Types the query key by key, each keystroke scanning all messages as before.
+   */
+  private long[] typeFullScans(String query) throws Exception {
+    long[] nanos = new long[query.length()];
+    for (int i = 0; i < query.length(); i++) {
+      SearchRepository repository = new SearchRepository(mock(Context.class));
+      long start = System.nanoTime();
+      search(repository, query.substring(0, i + 1));
+      nanos[i] = System.nanoTime() - start;
+    }
+    return nanos;
+  }
+
+  private static int[] search(SearchRepository repository, String query) throws Exception {
+    CountDownLatch                done   = new CountDownLatch(1);
+    AtomicReference<SearchResult> result = new AtomicReference<>();
+
+    repository.query(query, searchResult -> {
+      if (searchResult.isComplete()) {
+        result.set(searchResult);
+        done.countDown();
+      }
+    });
+
+    assertThat(done.await(10, TimeUnit.SECONDS)).isTrue();
+    return result.get().getMessages();
+  }
+}
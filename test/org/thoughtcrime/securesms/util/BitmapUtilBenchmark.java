@@ -0,0 +1,211 @@
+package org.thoughtcrime.securesms.util;
+
+import org.junit.Test;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Locale;
+import java.util.Random;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Compares the quality search of createScaledBytes() with the loop it replaced, on a corpus of
+ * synthetic photos of different sizes and detail, encoded with the JPEG encoder of the JVM.
+ */
+public class BitmapUtilBenchmark {
+
+  private static final int[][] SIZES   = { {1280, 960}, {1920, 1080}, {2560, 1920} };
+  private static final int[]   DETAILS = { 4, 16, 48 };
+
+  // the limit relative to the size at the best quality
+  private static final double[] LIMITS = { 1.2, 0.6, 0.3 };
+
+  @Test
+  public void benchmarkQualitySearch() {
+    assumeTrue("timings only run with -Pbenchmark", Boolean.getBoolean("benchmark"));
+
+    long oldMillis = 0, newMillis = 0;
+    int  oldAttempts = 0, newAttempts = 0;
+
+    for (int[] size : SIZES) {
+      for (int detail : DETAILS) {
+        BufferedImage image            = createPhoto(size[0], size[1], detail, size[0] * 31 + detail);
+        BufferedImage probe            = createProbe(image);
+        int           sizeAtMaxQuality = encode(image, BitmapUtil.MAX_COMPRESSION_QUALITY).length;
+
+        for (double limit : LIMITS) {
+          int     maxSize = (int) (sizeAtMaxQuality * limit);
+          Counter full    = new Counter(image);
+          Counter probes  = new Counter(probe);
+          Counter oldFull = new Counter(image);
+
+          long start = System.nanoTime();
+          BitmapUtil.QualitySearch search = BitmapUtil.searchQuality(full, probes, maxSize);
+          long newTime = (System.nanoTime() - start) / 1000000;
+
+          start = System.nanoTime();
+          int oldQuality = previousLoop(oldFull, maxSize);
+          long oldTime = (System.nanoTime() - start) / 1000000;
+
+          System.out.println(String.format(Locale.ROOT,
+              "%dx%d detail %2d limit %.1f: old quality %2d, %d attempts, %4d ms | new quality %2d, %d attempts + %d probes, %4d ms",
+              size[0], size[1], detail, limit,
+              oldQuality, oldFull.count, oldTime,
+              search.quality, search.attempts, probes.count, newTime));
+
+          assertThat(search.attempts).isEqualTo(full.count);
+          assertThat(search.attempts).isLessThanOrEqualTo(BitmapUtil.MAX_COMPRESSION_ATTEMPTS);
+          if (search.quality != -1) {
+            assertThat(encode(image, search.quality).length).isLessThanOrEqualTo(maxSize);
+          }
+
+          oldMillis   += oldTime;
+          newMillis   += newTime;
+          oldAttempts += oldFull.count;
+          newAttempts += search.attempts;
+        }
+      }
+    }
+
+    System.out.println(String.format(Locale.ROOT, "total: old %d attempts in %d ms, new %d attempts in %d ms",
+                                     oldAttempts, oldMillis, newAttempts, newMillis));
+  }
+
+  @Test
+  public void searchQualityFitsLimit() {
+    BufferedImage image            = createPhoto(640, 480, 16, 42);
+    BufferedImage probe            = createProbe(image);
+    int           sizeAtMaxQuality = encode(image, BitmapUtil.MAX_COMPRESSION_QUALITY).length;
+
+    for (double limit : LIMITS) {
+      int     maxSize = (int) (sizeAtMaxQuality * limit);
+      Counter full    = new Counter(image);
+
+      BitmapUtil.QualitySearch search = BitmapUtil.searchQuality(full, new Counter(probe), maxSize);
+
+      assertThat(search.attempts).isEqualTo(full.count);
+      assertThat(search.attempts).isLessThanOrEqualTo(BitmapUtil.MAX_COMPRESSION_ATTEMPTS);
+      if (search.quality != -1) {
+        assertThat(encode(image, search.quality).length).isLessThanOrEqualTo(maxSize);
+      }
+    }
+  }
+
+  /**
+   * The loop createScaledBytes() used before: the quality is lowered by the square root of the size
+   * ratio, at least by 5, until the image fits.
+   *
+   * @return the quality found or -1.
+   */
+  private static int previousLoop(BitmapUtil.Compression full, int maxSize) {
+    int quality  = BitmapUtil.MAX_COMPRESSION_QUALITY;
+    int attempts = 0;
+    int size;
+
+    do {
+      size = full.compress(quality);
+      if (size <= maxSize) return quality;
+      if (quality == BitmapUtil.MIN_COMPRESSION_QUALITY) break;
+
+      int nextQuality = (int) Math.floor(quality * Math.sqrt((double) maxSize / size));
+      if (quality - nextQuality < 5) {
+        nextQuality = quality - 5;
+      }
+      quality = Math.max(nextQuality, BitmapUtil.MIN_COMPRESSION_QUALITY);
+    }
+    while (attempts++ < BitmapUtil.MAX_COMPRESSION_ATTEMPTS);
+
+    return -1;
+  }
+
+  /**
+   * Soft gradients with shapes and sensor-like noise, the amount of noise sets the detail.
+   */
+  static BufferedImage createPhoto(int width, int height, int detail, long seed) {
+    Random        random = new Random(seed);
+    BufferedImage image  = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+    Graphics2D    canvas = image.createGraphics();
+
+    canvas.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+    canvas.setPaint(new java.awt.GradientPaint(0, 0, new Color(random.nextInt()), width, height, new Color(random.nextInt())));
+    canvas.fillRect(0, 0, width, height);
+
+    for (int i = 0; i < 40; i++) {
+      canvas.setColor(new Color(random.nextInt(256), random.nextInt(256), random.nextInt(256), 40 + random.nextInt(150)));
+      canvas.fillOval(random.nextInt(width), random.nextInt(height), 20 + random.nextInt(width / 3), 20 + random.nextInt(height / 3));
+    }
+    canvas.dispose();
+
+    int[] pixels = image.getRGB(0, 0, width, height, null, 0, width);
+    for (int i = 0; i < pixels.length; i++) {
+      int noise = (int) (random.nextGaussian() * detail);
+      int r     = clamp(((pixels[i] >> 16) & 0xff) + noise);
+      int g     = clamp(((pixels[i] >> 8) & 0xff) + noise);
+      int b     = clamp((pixels[i] & 0xff) + noise);
+      pixels[i] = (r << 16) | (g << 8) | b;
+    }
+    image.setRGB(0, 0, width, height, pixels, 0, width);
+    return image;
+  }
+
+  private static BufferedImage createProbe(BufferedImage image) {
+    BufferedImage probe  = new BufferedImage(image.getWidth() / 2, image.getHeight() / 2, BufferedImage.TYPE_INT_RGB);
+    Graphics2D    canvas = probe.createGraphics();
+    canvas.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+    canvas.drawImage(image, 0, 0, probe.getWidth(), probe.getHeight(), null);
+    canvas.dispose();
+    return probe;
+  }
+
+  private static int clamp(int value) {
+    return Math.max(0, Math.min(255, value));
+  }
+
+  private static byte[] encode(BufferedImage image, int quality) {
+    ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+    try {
+      ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+      ImageWriteParam       param  = writer.getDefaultWriteParam();
+      param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+      param.setCompressionQuality(quality / 100f);
+
+      try (MemoryCacheImageOutputStream output = new MemoryCacheImageOutputStream(buffer)) {
+        writer.setOutput(output);
+        writer.write(null, new IIOImage(image, null, null), param);
+      }
+      return buffer.toByteArray();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    } finally {
+      writer.dispose();
+    }
+  }
+
+  private static class Counter implements BitmapUtil.Compression {
+    private final BufferedImage image;
+    private       int           count;
+
+    Counter(BufferedImage image) {
+      this.image = image;
+    }
+
+    @Override
+    public int compress(int quality) {
+      count++;
+      return encode(image, quality).length;
+    }
+  }
+}
@@ -0,0 +1,136 @@
+package org.thoughtcrime.securesms.util;
+
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Locale;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Compares JPEG and WebP as recodeImageMsg() uses them, on the synthetic photos of BitmapUtilBenchmark
+ * scaled to the recoded sizes: 1280 pixels at quality 85 and, with hard compression, 640 pixels at
+ * quality 75. WebP is encoded by libwebp through webp-imageio, the library Android's encoder is based on,
+ * JPEG by the encoder of the JVM, so the times only compare the formats roughly.
+ * The quality is reported as PSNR of the decoded image against the original. As the quality settings of
+ * the formats do not match, the lowest WebP quality in steps of 5 reaching the PSNR of JPEG is reported, too.
+ */
+public class RecodeFormatBenchmark {
+
+  private static final int[][] SIZES   = { {1280, 960, 85}, {640, 480, 75} }; // width, height and quality
+  private static final int[]   DETAILS = { 4, 16, 48 };
+  private static final int     ROUNDS  = 3;
+
+  @Test
+  public void benchmarkFormats() {
+    assumeTrue("timings only run with -Pbenchmark", Boolean.getBoolean("benchmark"));
+
+    long jpegBytes = 0, webpBytes = 0, jpegMillis = 0, webpMillis = 0;
+
+    for (int[] size : SIZES) {
+      for (int detail : DETAILS) {
+        BufferedImage image   = BitmapUtilBenchmark.createPhoto(size[0], size[1], detail, size[0] * 31 + detail);
+        int           quality = size[2];
+
+        // take the best of some rounds, the first one is only warming up
+        byte[] jpeg = null, webp = null;
+        long   jpegNanos = Long.MAX_VALUE, webpNanos = Long.MAX_VALUE;
+        for (int round = 0; round < ROUNDS; round++) {
+          long start = System.nanoTime();
+          jpeg      = encode(image, "jpeg", null, quality);
+          jpegNanos = Math.min(jpegNanos, System.nanoTime() - start);
+
+          start     = System.nanoTime();
+          webp      = encode(image, "webp", "Lossy", quality);
+          webpNanos = Math.min(webpNanos, System.nanoTime() - start);
+        }
+
+        double jpegPsnr = psnr(image, decode(jpeg));
+        double webpPsnr = psnr(image, decode(webp));
+
+        int    equalQuality = 20;
+        byte[] equal        = encode(image, "webp", "Lossy", equalQuality);
+        while (equalQuality < quality && psnr(image, decode(equal)) < jpegPsnr) {
+          equalQuality += 5;
+          equal = encode(image, "webp", "Lossy", equalQuality);
+        }
+
+        System.out.println(String.format(Locale.ROOT,
+            "%dx%d detail %2d quality %d: jpeg %4d KB %.1f dB %3d ms | webp %4d KB %.1f dB %3d ms | webp/jpeg bytes %.2f, %.2f at quality %d with the psnr of jpeg",
+            size[0], size[1], detail, quality,
+            jpeg.length / 1024, jpegPsnr, jpegNanos / 1000000,
+            webp.length / 1024, webpPsnr, webpNanos / 1000000,
+            (double) webp.length / jpeg.length, (double) equal.length / jpeg.length, equalQuality));
+
+        assertThat(decode(webp).getWidth()).isEqualTo(size[0]);
+        assertThat(webpPsnr).isGreaterThan(25.0);
+
+        jpegBytes  += jpeg.length;
+        webpBytes  += webp.length;
+        jpegMillis += jpegNanos / 1000000;
+        webpMillis += webpNanos / 1000000;
+      }
+    }
+
+    System.out.println(String.format(Locale.ROOT, "total: jpeg %d KB in %d ms, webp %d KB in %d ms",
+                                     jpegBytes / 1024, jpegMillis, webpBytes / 1024, webpMillis));
+  }
+
+  private static byte[] encode(BufferedImage image, String format, String compressionType, int quality) {
+    ImageWriter writer = ImageIO.getImageWritersByFormatName(format).next();
+    try {
+      ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+      ImageWriteParam       param  = writer.getDefaultWriteParam();
+      param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+      if (compressionType != null) {
+        param.setCompressionType(compressionType);
+      }
+      param.setCompressionQuality(quality / 100f);
+
+      try (MemoryCacheImageOutputStream output = new MemoryCacheImageOutputStream(buffer)) {
+        writer.setOutput(output);
+        writer.write(null, new IIOImage(image, null, null), param);
+      }
+      return buffer.toByteArray();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    } finally {
+      writer.dispose();
+    }
+  }
+
+  private static BufferedImage decode(byte[] bytes) {
+    try {
+      return ImageIO.read(new ByteArrayInputStream(bytes));
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private static double psnr(BufferedImage original, BufferedImage decoded) {
+    int    width  = original.getWidth();
+    int    height = original.getHeight();
+    int[]  a      = original.getRGB(0, 0, width, height, null, 0, width);
+    int[]  b      = decoded.getRGB(0, 0, width, height, null, 0, width);
+    double sum    = 0;
+    for (int i = 0; i < a.length; i++) {
+      for (int shift = 0; shift <= 16; shift += 8) {
+        int diff = ((a[i] >> shift) & 0xff) - ((b[i] >> shift) & 0xff);
+        sum += diff * diff;
+      }
+    }
+    double mse = sum / (a.length * 3.0);
+    return mse == 0 ? Double.POSITIVE_INFINITY : 10 * Math.log10(255 * 255 / mse);
+  }
+}
@@ -0,0 +1,146 @@
+package org.thoughtcrime.securesms.util.concurrent;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Relays shared files as RelayingTask does: each file is copied to another directory, as to the blobdir,
+ * and the copies are handed on in the shared order. The copies are made one by one, as before,
+ * and on 4 threads, the largest pool of RelayingTask. Sending is not part of the times;
+ * on a device, reading from the content provider of the sharing app adds to each copy.
+ */
+public class OrderedPreparerBenchmark {
+
+  private static final int FILES      = 24;
+  private static final int FILE_BYTES = 4 * 1024 * 1024;
+  private static final int ROUNDS     = 3;
+
+  private File       dir;
+  private List<File> files;
+
+  @Before
+  public void setUp() throws Exception {
+    dir = File.createTempFile("relay", "");
+    dir.delete();
+    dir.mkdir();
+
+    Random random = new Random(42);
+    byte[] bytes  = new byte[FILE_BYTES];
+    files = new ArrayList<>();
+    for (int i = 0; i < FILES; i++) {
+      random.nextBytes(bytes);
+      File file = new File(dir, "shared-" + i);
+      try (OutputStream out = new FileOutputStream(file)) {
+        out.write(bytes);
+      }
+      files.add(file);
+    }
+  }
+
+  @After
+  public void tearDown() {
+    for (File file : dir.listFiles()) {
+      file.delete();
+    }
+    dir.delete();
+  }
+
+  @Test
+  public void benchmarkRelaying() throws Exception {
+    assumeTrue("timings only run with -Pbenchmark", Boolean.getBoolean("benchmark"));
+
+    // the pool of RelayingTask on a device with 4 cores or more
+    int threads = 4;
+
+    // take the best of some rounds, the first one is only warming up
+    long sequentialNanos = Long.MAX_VALUE;
+    long parallelNanos   = Long.MAX_VALUE;
+    for (int round = 0; round < ROUNDS; round++) {
+      sequentialNanos = Math.min(sequentialNanos, relay(1));
+      parallelNanos   = Math.min(parallelNanos, relay(threads));
+    }
+
+    System.out.println(String.format(Locale.ROOT,
+        "%d files of %d MB: one by one %d ms (%.1f/s), %d threads %d ms (%.1f/s)",
+        FILES, FILE_BYTES / 1024 / 1024,
+        sequentialNanos / 1000000, FILES * 1e9 / sequentialNanos,
+        threads, parallelNanos / 1000000, FILES * 1e9 / parallelNanos));
+  }
+
+  @Test
+  public void failedPreparationDiscardsUnhandledResults() throws Exception {
+    Set<Integer>  prepared  = Collections.synchronizedSet(new HashSet<>());
+    List<Integer> handled   = new ArrayList<>();
+    Set<Integer>  discarded = new HashSet<>();
+    List<Integer> items     = new ArrayList<>();
+    for (int i = 0; i < 40; i++) {
+      items.add(i);
+    }
+
+    try {
+      OrderedPreparer.run(items, 4, item -> {
+        if (item == 10) {
+          throw new IOException("cannot copy");
+        }
+        Thread.sleep(item % 3);
+        prepared.add(item);
+        return item;
+      }, (index, item, result) -> handled.add(result), discarded::add);
+      fail("the failed preparation is not reported");
+    } catch (ExecutionException e) {
+      assertThat(e.getCause()).isInstanceOf(IOException.class);
+    }
+
+    // the items before the failed one are handled in order, all other prepared ones are discarded
+    assertThat(handled).isEqualTo(items.subList(0, 10));
+    Set<Integer> all = new HashSet<>(handled);
+    all.addAll(discarded);
+    assertThat(all).isEqualTo(prepared);
+  }
+
+  private long relay(int threads) throws Exception {
+    List<File> handled = new ArrayList<>();
+    long       start   = System.nanoTime();
+
+    OrderedPreparer.run(files, threads, file -> {
+      File copy = new File(dir, "blob-" + file.getName());
+      try (InputStream in = new FileInputStream(file); OutputStream out = new FileOutputStream(copy)) {
+        byte[] buffer = new byte[8192];
+        int    read;
+        while ((read = in.read(buffer)) != -1) {
+          out.write(buffer, 0, read);
+        }
+      }
+      return copy;
+    }, (index, file, copy) -> handled.add(copy), File::delete);
+
+    long nanos = System.nanoTime() - start;
+    assertThat(handled).hasSize(FILES);
+    for (int i = 0; i < FILES; i++) {
+      assertThat(handled.get(i).getName()).isEqualTo("blob-" + files.get(i).getName());
+      assertThat(handled.get(i).length()).isEqualTo(FILE_BYTES);
+      handled.get(i).delete();
+    }
+    return nanos;
+  }
+}